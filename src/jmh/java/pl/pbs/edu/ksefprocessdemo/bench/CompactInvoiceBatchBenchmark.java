@@ -0,0 +1,72 @@
+package pl.pbs.edu.ksefprocessdemo.bench;
+
+import jakarta.xml.bind.JAXBException;
+import org.openjdk.jmh.annotations.*;
+import pl.pbs.edu.ksefprocessdemo.generated.Faktura;
+import pl.pbs.edu.ksefprocessdemo.model.CompactInvoiceBatch;
+import pl.pbs.edu.ksefprocessdemo.utils.FakturaUnmarshaller;
+
+import javax.xml.stream.XMLStreamException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holding a package in memory: a CompactInvoiceBatch (_compact_, _compactWithXml_ with the deflated XML kept) vs the
+ * bound Faktura objects (_bound_). Compare _gc.alloc.rate.norm_ of the gc profiler - bytes allocated to build the
+ * whole set, an upper bound of what it retains.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CompactInvoiceBatchBenchmark {
+
+  @Param({"2000"})
+  private int invoiceCount;
+
+  private String[] ksefIds;
+  private byte[][] xml;
+
+  @Setup
+  public void setUp() throws JAXBException {
+    String template = new String(SyntheticPackage.mockInvoice(), StandardCharsets.UTF_8);
+    ksefIds = new String[invoiceCount];
+    xml = new byte[invoiceCount][];
+    for (int i = 0; i < invoiceCount; i++) {
+      ksefIds[i] = String.format("5265877635-20250826-%012X-%02X", i, i & 0xFF);
+      xml[i] = template
+          .replace("<P_2>420/P/10/2137</P_2>", "<P_2>BENCH/" + i + "</P_2>")
+          .getBytes(StandardCharsets.UTF_8);
+    }
+    FakturaUnmarshaller.shared().warmUp();
+  }
+
+  @Benchmark
+  public CompactInvoiceBatch compact() throws XMLStreamException {
+    return batch(false);
+  }
+
+  @Benchmark
+  public CompactInvoiceBatch compactWithXml() throws XMLStreamException {
+    return batch(true);
+  }
+
+  @Benchmark
+  public List<Faktura> bound() throws JAXBException {
+    List<Faktura> invoices = new ArrayList<>(invoiceCount);
+    for (byte[] invoiceXml : xml) {
+      invoices.add(FakturaUnmarshaller.shared().unmarshal(invoiceXml));
+    }
+    return invoices;
+  }
+
+  private CompactInvoiceBatch batch(boolean keepXml) throws XMLStreamException {
+    CompactInvoiceBatch batch = new CompactInvoiceBatch(keepXml);
+    for (int i = 0; i < invoiceCount; i++) {
+      batch.add(ksefIds[i], xml[i]);
+    }
+    batch.seal();
+    return batch;
+  }
+}
@@ -0,0 +1,94 @@
+package pl.pbs.edu.ksefprocessdemo.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import pl.akmf.ksef.sdk.api.services.DefaultCryptographyService;
+import pl.akmf.ksef.sdk.client.interfaces.KSeFClient;
+import pl.pbs.edu.ksefprocessdemo.utils.PackagePartDownloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AES part decryption: whole part in memory with DefaultCryptographyService::decryptBytesWithAes256 (the
+ * non-streaming path of KsefPayloadProcessor) vs the streaming CipherInputStream of PackagePartDownloader::decrypt.
+ * Throughput in bytes/s is in the _bytes_ counter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DecryptBenchmark {
+
+  @Param({"5000"})
+  private int invoiceCount;
+
+  @Param({"1048576", "16777216"})
+  private int partSize;
+
+  private SyntheticPackage ksefPackage;
+  private DefaultCryptographyService cryptographyService;
+
+  @Setup
+  public void setUp() {
+    ksefPackage = SyntheticPackage.generate(invoiceCount, partSize);
+    cryptographyService = new DefaultCryptographyService(offlineClient());
+  }
+
+  @Benchmark
+  public void decryptInMemory(ByteCounters counters, Blackhole blackhole) {
+    for (byte[] part : ksefPackage.encryptedParts()) {
+      byte[] plain = cryptographyService.decryptBytesWithAes256(
+          part,
+          ksefPackage.encryptionData().cipherKey(),
+          ksefPackage.encryptionData().cipherIv()
+      );
+      blackhole.consume(plain);
+      counters.bytes += plain.length;
+    }
+  }
+
+  @Benchmark
+  public void decryptStreaming(ByteCounters counters, Blackhole blackhole) throws IOException {
+    byte[] buffer = new byte[64 * 1024];
+    for (byte[] part : ksefPackage.encryptedParts()) {
+      InputStream encrypted = new ByteArrayInputStream(part);
+      try (InputStream in = PackagePartDownloader.decrypt(encrypted, ksefPackage.encryptionData())) {
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+          counters.bytes += len;
+        }
+      }
+      blackhole.consume(buffer);
+    }
+  }
+
+  /**
+   * The service only asks KSeF for its public key certificates when created (none are needed to decrypt), an empty
+   * list keeps it usable without a server.
+   */
+  private static KSeFClient offlineClient() {
+    return (KSeFClient) Proxy.newProxyInstance(
+        KSeFClient.class.getClassLoader(),
+        new Class<?>[]{KSeFClient.class},
+        (proxy, method, args) -> {
+          if (method.getName().equals("retrievePublicKeyCertificate")) return List.of();
+          throw new UnsupportedOperationException(method.getName() + " is not available in benchmarks");
+        }
+    );
+  }
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class ByteCounters {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytes = 0;
+    }
+  }
+}
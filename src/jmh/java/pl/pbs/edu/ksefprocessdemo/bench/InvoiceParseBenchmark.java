@@ -0,0 +1,70 @@
+package pl.pbs.edu.ksefprocessdemo.bench;
+
+import jakarta.xml.bind.JAXBException;
+import org.openjdk.jmh.annotations.*;
+import org.xml.sax.SAXException;
+import pl.pbs.edu.ksefprocessdemo.generated.Faktura;
+import pl.pbs.edu.ksefprocessdemo.model.KsefInvoiceHeader;
+import pl.pbs.edu.ksefprocessdemo.utils.FakturaUnmarshaller;
+import pl.pbs.edu.ksefprocessdemo.utils.KsefInvoiceHeaderReader;
+import pl.pbs.edu.ksefprocessdemo.utils.KsefUtils;
+import pl.pbs.edu.ksefprocessdemo.validation.InvoiceSchema;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single invoice: full JAXB binding vs the StAX header projection, and the cost of FA(3) schema validation - fused
+ * with binding (_unwrapValidated_ vs _unwrapInvoice_) or as a separate pass (_validate_). Schemas imported by FA(3)
+ * are downloaded unless -Dksef.bench.xsd-imports points at local copies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InvoiceParseBenchmark {
+
+  private byte[] xml;
+
+  /**
+   * Compiled only for the benchmarks that validate.
+   */
+  @State(Scope.Benchmark)
+  public static class Validation {
+    private InvoiceSchema schema;
+
+    @Setup
+    public void setUp() throws SAXException {
+      String imports = System.getProperty("ksef.bench.xsd-imports");
+      schema = InvoiceSchema.compile("xsd/fa3_schema.xsd", imports == null ? null : Path.of(imports));
+    }
+  }
+
+  @Setup
+  public void setUp() throws JAXBException {
+    xml = SyntheticPackage.mockInvoice();
+    FakturaUnmarshaller.shared().warmUp();
+  }
+
+  @Benchmark
+  public Faktura unwrapInvoice() throws JAXBException {
+    return KsefUtils.unwrapInvoice(xml);
+  }
+
+  @Benchmark
+  public Faktura unwrapValidated(Validation validation) throws JAXBException {
+    return FakturaUnmarshaller.shared().unmarshal(xml, validation.schema.getSchema(), event -> true);
+  }
+
+  @Benchmark
+  public List<String> validate(Validation validation) throws SAXException, IOException {
+    return validation.schema.validate(xml, 10);
+  }
+
+  @Benchmark
+  public KsefInvoiceHeader readHeader() throws XMLStreamException {
+    return KsefInvoiceHeaderReader.read(xml);
+  }
+}
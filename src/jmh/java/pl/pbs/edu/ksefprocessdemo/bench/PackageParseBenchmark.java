@@ -0,0 +1,112 @@
+package pl.pbs.edu.ksefprocessdemo.bench;
+
+import jakarta.xml.bind.JAXBException;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import pl.pbs.edu.ksefprocessdemo.archive.InvoiceArchive;
+import pl.pbs.edu.ksefprocessdemo.config.props.ArchiveProps;
+import pl.pbs.edu.ksefprocessdemo.config.props.ValidationProps;
+import pl.pbs.edu.ksefprocessdemo.metrics.KsefMetrics;
+import pl.pbs.edu.ksefprocessdemo.utils.*;
+import pl.pbs.edu.ksefprocessdemo.validation.InvoiceValidator;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole package through KsefPayloadProcessor::parseDecryptedPackage, the parse loop parseKsefPayload runs once
+ * the parts are downloaded: _parse_ starts from the decrypted ZIP, _endToEnd_ from the encrypted parts (decrypted
+ * by PackagePartDownloader::decrypt, as the streaming download does). _sequential_ and _parallel_ are the
+ * ParallelInvoiceParser parallelism (1, or all cores). Invoices/s and MB/s are in the _invoices_ and _bytes_
+ * counters (bytes of the encrypted package).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PackageParseBenchmark {
+
+  @Param({"1000", "10000"})
+  private int invoiceCount;
+
+  @Param({"sequential", "parallel"})
+  private String parser;
+
+  private SyntheticPackage ksefPackage;
+  private ParallelInvoiceParser parallelInvoiceParser;
+  private KsefPayloadProcessor ksefPayloadProcessor;
+
+  @Setup
+  public void setUp() throws JAXBException {
+    ksefPackage = SyntheticPackage.generate(invoiceCount, 1024 * 1024);
+    FakturaUnmarshaller.shared().warmUp();
+    // Archive and validation stay disabled - props defaults outside Spring.
+    KsefInvoiceFactory ksefInvoiceFactory = new KsefInvoiceFactory(
+        FakturaUnmarshaller.shared(),
+        new InvoiceArchive(new ArchiveProps()),
+        new InvoiceValidator(new ValidationProps(), KsefMetrics.noop()),
+        KsefMetrics.noop()
+    );
+    parallelInvoiceParser = new ParallelInvoiceParser(ksefInvoiceFactory, parser.equals("parallel") ? 0 : 1, 256);
+    // The package comes from memory - the KSeF client, decryption service and part downloaders are not used.
+    ksefPayloadProcessor = new KsefPayloadProcessor(
+        null,
+        null,
+        ksefInvoiceFactory,
+        null,
+        null,
+        parallelInvoiceParser,
+        KsefMetrics.noop()
+    );
+  }
+
+  @TearDown
+  public void tearDown() {
+    parallelInvoiceParser.shutdown();
+  }
+
+  @Benchmark
+  public void parse(Counters counters, Blackhole blackhole) {
+    counters.invoices += parse(new ByteArrayInputStream(ksefPackage.zip()), blackhole);
+    counters.bytes += ksefPackage.zip().length;
+  }
+
+  @Benchmark
+  public void endToEnd(Counters counters, Blackhole blackhole) {
+    List<ChainedInputStream.StreamOpener> openers = ksefPackage
+        .encryptedParts()
+        .stream()
+        .<ChainedInputStream.StreamOpener>map(part -> () -> PackagePartDownloader.decrypt(
+            new ByteArrayInputStream(part),
+            ksefPackage.encryptionData()
+        ))
+        .toList();
+    InputStream zip = new BufferedInputStream(new ChainedInputStream(openers.iterator()), 64 * 1024);
+    counters.invoices += parse(zip, blackhole);
+    counters.bytes += ksefPackage.encryptedSize();
+  }
+
+  private int parse(InputStream zip, Blackhole blackhole) {
+    int[] count = {0};
+    ksefPayloadProcessor.parseDecryptedPackage(zip, ParallelInvoiceParser.Ordering.UNORDERED, invoice -> {
+      blackhole.consume(invoice);
+      count[0]++;
+    });
+    return count[0];
+  }
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Counters {
+    public long invoices;
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      invoices = 0;
+      bytes = 0;
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package pl.pbs.edu.ksefprocessdemo.bench;
+
+import pl.akmf.ksef.sdk.client.model.session.EncryptionData;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Export package built the way KSeF does it: N invoices (copies of _demo/mock.xml_ with unique numbers) zipped as
+ * _ksefId.xml_ entries, the ZIP split into parts and every part encrypted separately with AES-256-CBC.
+ */
+public record SyntheticPackage(
+    byte[] invoiceXml,
+    byte[] zip,
+    List<byte[]> encryptedParts,
+    EncryptionData encryptionData,
+    int invoiceCount
+) {
+
+  private static final String MOCK_PROPERTY = "ksef.bench.mock";
+  private static final String DEFAULT_MOCK = "src/main/java/pl/pbs/edu/ksefprocessdemo/demo/mock.xml";
+
+  public static byte[] mockInvoice() {
+    try {
+      return Files.readAllBytes(Path.of(System.getProperty(MOCK_PROPERTY, DEFAULT_MOCK)));
+    } catch (IOException e) {
+      throw new UncheckedIOException("Set -D" + MOCK_PROPERTY + " to the path of demo/mock.xml", e);
+    }
+  }
+
+  public static SyntheticPackage generate(int invoiceCount, int partSize) {
+    byte[] mock = mockInvoice();
+    String template = new String(mock, StandardCharsets.UTF_8);
+    byte[] zip = zip(template, invoiceCount);
+
+    SecureRandom random = new SecureRandom();
+    byte[] key = new byte[32];
+    byte[] iv = new byte[16];
+    random.nextBytes(key);
+    random.nextBytes(iv);
+
+    List<byte[]> parts = new ArrayList<>();
+    for (int offset = 0; offset < zip.length; offset += partSize) {
+      parts.add(encrypt(Arrays.copyOfRange(zip, offset, Math.min(zip.length, offset + partSize)), key, iv));
+    }
+    return new SyntheticPackage(mock, zip, parts, new EncryptionData(key, iv, null, null), invoiceCount);
+  }
+
+  public long encryptedSize() {
+    return encryptedParts.stream().mapToLong(part -> part.length).sum();
+  }
+
+  private static byte[] zip(String template, int invoiceCount) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ZipOutputStream zos = new ZipOutputStream(out)) {
+      for (int i = 0; i < invoiceCount; i++) {
+        String ksefId = String.format("5265877635-20250826-%012X-%02X", i, i & 0xFF);
+        String xml = template.replace("<P_2>420/P/10/2137</P_2>", "<P_2>BENCH/" + i + "</P_2>");
+        zos.putNextEntry(new ZipEntry(ksefId + ".xml"));
+        zos.write(xml.getBytes(StandardCharsets.UTF_8));
+        zos.closeEntry();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  static byte[] encrypt(byte[] data, byte[] key, byte[] iv) {
+    try {
+      Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+      return cipher.doFinal(data);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
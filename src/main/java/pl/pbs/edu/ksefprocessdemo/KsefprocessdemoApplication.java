@@ -2,8 +2,10 @@ package pl.pbs.edu.ksefprocessdemo;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class KsefprocessdemoApplication {
 
   public static void main(String[] args) {
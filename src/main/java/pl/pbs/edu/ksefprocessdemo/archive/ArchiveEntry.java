@@ -0,0 +1,24 @@
+package pl.pbs.edu.ksefprocessdemo.archive;
+
+import java.time.LocalDate;
+
+/**
+ * Index entry of an archived invoice.
+ *
+ * @param segment   Number of the segment file holding the record.
+ * @param offset    Position of the record in the segment.
+ * @param xmlOffset Position of the invoice XML in the segment.
+ * @param xmlLength Length of the invoice XML.
+ * @param issueDate P_1 of the invoice, may be null.
+ * @param sellerNip NIP of Podmiot1, may be null.
+ */
+public record ArchiveEntry(
+    String ksefId,
+    int segment,
+    long offset,
+    long xmlOffset,
+    int xmlLength,
+    LocalDate issueDate,
+    String sellerNip
+) {
+}
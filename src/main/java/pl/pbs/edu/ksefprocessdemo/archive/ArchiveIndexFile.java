@@ -0,0 +1,130 @@
+package pl.pbs.edu.ksefprocessdemo.archive;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Snapshot of the archive index. It remembers up to which position every segment was indexed, records appended
+ * later are recovered by scanning the segments from there. The snapshot is written to a temp file and atomically
+ * moved in place, so a crash leaves either the old or the new one.
+ */
+class ArchiveIndexFile {
+
+  static final String FILE_NAME = "index.dat";
+  private static final int MAGIC = 0x4B534958; // "KSIX"
+  private static final int VERSION = 1;
+
+  record Snapshot(Map<Integer, Long> indexedSizes, List<ArchiveEntry> entries) {
+  }
+
+  private ArchiveIndexFile() {
+  }
+
+  static void write(Path directory, Map<Integer, Long> indexedSizes, Collection<ArchiveEntry> entries)
+      throws IOException {
+    Path temp = directory.resolve(FILE_NAME + ".tmp");
+    CRC32 crc = new CRC32();
+    try (FileOutputStream fos = new FileOutputStream(temp.toFile());
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fos, crc)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(indexedSizes.size());
+      for (Map.Entry<Integer, Long> segment : indexedSizes.entrySet()) {
+        out.writeInt(segment.getKey());
+        out.writeLong(segment.getValue());
+      }
+      out.writeInt(entries.size());
+      for (ArchiveEntry entry : entries) {
+        out.writeUTF(entry.ksefId());
+        out.writeInt(entry.segment());
+        out.writeLong(entry.offset());
+        out.writeLong(entry.xmlOffset());
+        out.writeInt(entry.xmlLength());
+        out.writeLong(entry.issueDate() == null ? Long.MIN_VALUE : entry.issueDate().toEpochDay());
+        out.writeUTF(entry.sellerNip() == null ? "" : entry.sellerNip());
+      }
+      out.flush();
+      // CRC of everything above, so a half written snapshot is never trusted.
+      new DataOutputStream(fos).writeLong(crc.getValue());
+      fos.getFD().sync();
+    }
+    Files.move(temp, directory.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @return Snapshot, or empty if there is none or it is damaged (then the index is rebuilt from the segments).
+   */
+  static Optional<Snapshot> read(Path directory) {
+    Path file = directory.resolve(FILE_NAME);
+    if (!Files.exists(file)) return Optional.empty();
+
+    try {
+      long dataLength = Files.size(file) - 8;
+      if (dataLength < 0 || crcOf(file, dataLength) != readChecksum(file, dataLength)) return Optional.empty();
+    } catch (IOException e) {
+      return Optional.empty();
+    }
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) return Optional.empty();
+
+      int segments = in.readInt();
+      Map<Integer, Long> indexedSizes = new HashMap<>();
+      for (int i = 0; i < segments; i++) {
+        indexedSizes.put(in.readInt(), in.readLong());
+      }
+      int count = in.readInt();
+      List<ArchiveEntry> entries = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        String ksefId = in.readUTF();
+        int segment = in.readInt();
+        long offset = in.readLong();
+        long xmlOffset = in.readLong();
+        int xmlLength = in.readInt();
+        long epochDay = in.readLong();
+        String sellerNip = in.readUTF();
+        entries.add(new ArchiveEntry(
+            ksefId,
+            segment,
+            offset,
+            xmlOffset,
+            xmlLength,
+            epochDay == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(epochDay),
+            sellerNip.isEmpty() ? null : sellerNip
+        ));
+      }
+
+      return Optional.of(new Snapshot(indexedSizes, entries));
+    } catch (IOException | RuntimeException e) {
+      return Optional.empty();
+    }
+  }
+
+  private static long readChecksum(Path file, long dataLength) throws IOException {
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+      in.skipNBytes(dataLength);
+      return in.readLong();
+    }
+  }
+
+  private static long crcOf(Path file, long dataLength) throws IOException {
+    CRC32 crc = new CRC32();
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+      byte[] buffer = new byte[8192];
+      long remaining = dataLength;
+      while (remaining > 0) {
+        int len = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (len < 0) throw new EOFException();
+        crc.update(buffer, 0, len);
+        remaining -= len;
+      }
+    }
+    return crc.getValue();
+  }
+}
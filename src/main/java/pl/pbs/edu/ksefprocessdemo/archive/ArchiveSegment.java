@@ -0,0 +1,191 @@
+package pl.pbs.edu.ksefprocessdemo.archive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Single append-only segment file. Record layout:
+ * <pre>
+ * int   MAGIC
+ * int   body length
+ * body: short ksefId length, ksefId (UTF-8), long issue date (epoch day or NO_DATE),
+ *       short seller NIP length, seller NIP (UTF-8), int XML length, XML
+ * int   CRC32 of the body
+ * </pre>
+ * A record is valid only with correct magic and CRC, so a torn write (crash during append) is detected and cut off.
+ */
+class ArchiveSegment implements AutoCloseable {
+
+  static final int MAGIC = 0x4B534546; // "KSEF"
+  private static final long NO_DATE = Long.MIN_VALUE;
+  private static final int RECORD_OVERHEAD = 4 + 4 + 4;
+
+  private final int number;
+  private final Path path;
+  private final FileChannel channel;
+  private long size;
+  // Mapped once the segment is sealed - it never changes afterwards.
+  private volatile MappedByteBuffer mapped;
+
+  private ArchiveSegment(int number, Path path, FileChannel channel, long size) {
+    this.number = number;
+    this.path = path;
+    this.channel = channel;
+    this.size = size;
+  }
+
+  static ArchiveSegment open(Path directory, int number) throws IOException {
+    Path path = directory.resolve(fileName(number));
+    FileChannel channel = FileChannel.open(
+        path,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE
+    );
+    return new ArchiveSegment(number, path, channel, channel.size());
+  }
+
+  static String fileName(int number) {
+    return String.format("segment-%06d.dat", number);
+  }
+
+  static int parseNumber(String fileName) {
+    return Integer.parseInt(fileName.substring("segment-".length(), fileName.length() - ".dat".length()));
+  }
+
+  int number() {
+    return number;
+  }
+
+  Path path() {
+    return path;
+  }
+
+  synchronized long size() {
+    return size;
+  }
+
+  synchronized ArchiveEntry append(String ksefId, LocalDate issueDate, String sellerNip, byte[] xml)
+      throws IOException {
+    byte[] id = ksefId.getBytes(StandardCharsets.UTF_8);
+    byte[] nip = sellerNip == null ? new byte[0] : sellerNip.getBytes(StandardCharsets.UTF_8);
+    int bodyLength = 2 + id.length + 8 + 2 + nip.length + 4 + xml.length;
+
+    ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + bodyLength);
+    record.putInt(MAGIC).putInt(bodyLength);
+    int bodyStart = record.position();
+    record.putShort((short) id.length).put(id);
+    record.putLong(issueDate == null ? NO_DATE : issueDate.toEpochDay());
+    record.putShort((short) nip.length).put(nip);
+    record.putInt(xml.length);
+    int xmlStart = record.position();
+    record.put(xml);
+
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), bodyStart, bodyLength);
+    record.putInt((int) crc.getValue());
+    record.flip();
+
+    long offset = size;
+    while (record.hasRemaining()) {
+      channel.write(record, offset + record.position());
+    }
+    size += record.limit();
+    return new ArchiveEntry(ksefId, number, offset, offset + xmlStart, xml.length, issueDate, sellerNip);
+  }
+
+  byte[] read(ArchiveEntry entry) throws IOException {
+    byte[] xml = new byte[entry.xmlLength()];
+    MappedByteBuffer map = mapped;
+    if (map != null) {
+      map.get(Math.toIntExact(entry.xmlOffset()), xml);
+      return xml;
+    }
+
+    ByteBuffer buffer = ByteBuffer.wrap(xml);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, entry.xmlOffset() + buffer.position()) < 0)
+        throw new IOException("Unexpected end of " + path);
+    }
+    return xml;
+  }
+
+  /**
+   * Maps the segment read-only, after this no more appends are expected.
+   */
+  synchronized void seal() throws IOException {
+    if (mapped == null && size > 0 && size <= Integer.MAX_VALUE)
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+  }
+
+  void force() throws IOException {
+    channel.force(false);
+  }
+
+  /**
+   * Reads records from _from_ on, handing every valid one to the consumer. Everything after the first invalid
+   * (torn) record is cut off.
+   *
+   * @return Position right after the last valid record.
+   */
+  synchronized long recover(long from, Consumer<ArchiveEntry> consumer) throws IOException {
+    long position = from;
+    ByteBuffer head = ByteBuffer.allocate(8);
+    while (position + RECORD_OVERHEAD <= size) {
+      head.clear();
+      channel.read(head, position);
+      head.flip();
+      if (head.getInt() != MAGIC) break;
+      int bodyLength = head.getInt();
+      if (bodyLength <= 0 || position + RECORD_OVERHEAD + bodyLength > size) break;
+
+      ByteBuffer body = ByteBuffer.allocate(bodyLength + 4);
+      while (body.hasRemaining()) {
+        if (channel.read(body, position + 8 + body.position()) < 0) break;
+      }
+      body.flip();
+      CRC32 crc = new CRC32();
+      crc.update(body.array(), 0, bodyLength);
+      if (body.getInt(bodyLength) != (int) crc.getValue()) break;
+
+      byte[] id = new byte[body.getShort()];
+      body.get(id);
+      long epochDay = body.getLong();
+      byte[] nip = new byte[body.getShort()];
+      body.get(nip);
+      int xmlLength = body.getInt();
+      long xmlOffset = position + 8 + body.position();
+
+      consumer.accept(new ArchiveEntry(
+          new String(id, StandardCharsets.UTF_8),
+          number,
+          position,
+          xmlOffset,
+          xmlLength,
+          epochDay == NO_DATE ? null : LocalDate.ofEpochDay(epochDay),
+          nip.length == 0 ? null : new String(nip, StandardCharsets.UTF_8)
+      ));
+      position += RECORD_OVERHEAD + bodyLength;
+    }
+
+    if (position < size) {
+      channel.truncate(position);
+      size = position;
+    }
+    return position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    mapped = null;
+    channel.close();
+  }
+}
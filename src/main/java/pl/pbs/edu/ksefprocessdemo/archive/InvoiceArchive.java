@@ -0,0 +1,342 @@
+package pl.pbs.edu.ksefprocessdemo.archive;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import pl.pbs.edu.ksefprocessdemo.config.props.ArchiveProps;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Local, append-only store of raw invoice XML keyed by ksefId.
+ * <p>
+ * Invoices are appended to segment files (a new one is started after _ksef.archive.segment-size_), sealed segments
+ * are read through memory mapping. The index (ksefId -> segment, offset, length + issue date and seller NIP) is held
+ * in memory and snapshotted to _index.dat_ on close and after compaction. On start the snapshot is loaded and the
+ * segments are scanned from the snapshotted positions, so records appended after the last snapshot are recovered
+ * and a torn record from a crash is cut off.
+ * <p>
+ * KSeF invoices are immutable, so an already archived ksefId is never appended again.
+ * <p>
+ * Reads may run during a compaction: segments are removed only when no read is in progress, and an entry looked up
+ * before the compaction moved it is resolved again by its ksefId.
+ */
+@Component
+@Slf4j
+public class InvoiceArchive {
+
+  private static final Comparator<ArchiveEntry> BY_DATE = Comparator
+      .comparing(ArchiveEntry::issueDate, Comparator.nullsFirst(Comparator.naturalOrder()))
+      .thenComparing(ArchiveEntry::ksefId);
+
+  private final ArchiveProps props;
+  private final ReentrantLock writeLock = new ReentrantLock();
+  // Read lock held while reading a segment, write lock while removing segments.
+  private final ReadWriteLock segmentsLock = new ReentrantReadWriteLock();
+  private final Map<String, ArchiveEntry> byId = new ConcurrentHashMap<>();
+  private final NavigableSet<ArchiveEntry> byDate = new ConcurrentSkipListSet<>(BY_DATE);
+  private final Map<Integer, ArchiveSegment> segments = new ConcurrentHashMap<>();
+  private volatile ArchiveSegment active;
+  private volatile boolean opened;
+
+  public InvoiceArchive(ArchiveProps props) {
+    this.props = props;
+  }
+
+  public boolean isEnabled() {
+    return props.isEnabled();
+  }
+
+  public boolean contains(String ksefId) {
+    ensureOpen();
+    return byId.containsKey(ksefId);
+  }
+
+  public int size() {
+    ensureOpen();
+    return byId.size();
+  }
+
+  public Optional<ArchiveEntry> findEntry(String ksefId) {
+    ensureOpen();
+    return Optional.ofNullable(byId.get(ksefId));
+  }
+
+  public Optional<byte[]> read(String ksefId) {
+    return findEntry(ksefId).flatMap(this::readIfPresent);
+  }
+
+  /**
+   * @throws NoSuchElementException The invoice was removed by a compaction since the entry was looked up.
+   */
+  public byte[] read(ArchiveEntry entry) {
+    return readIfPresent(entry).orElseThrow(() -> new NoSuchElementException(
+        "Invoice " + entry.ksefId() + " is no longer archived"));
+  }
+
+  private Optional<byte[]> readIfPresent(ArchiveEntry entry) {
+    segmentsLock.readLock().lock();
+    try {
+      ArchiveSegment segment = segments.get(entry.segment());
+      if (segment == null) {
+        // Moved (or dropped) by a compaction.
+        ArchiveEntry current = byId.get(entry.ksefId());
+        if (current == null) return Optional.empty();
+        entry = current;
+        segment = segments.get(current.segment());
+      }
+      return Optional.of(segment.read(entry));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      segmentsLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Entries with issue date in [from, to] (inclusive), ordered by date.
+   *
+   * @param sellerNip Only invoices of this seller, or null for all.
+   */
+  public Stream<ArchiveEntry> entriesBetween(LocalDate from, LocalDate to, String sellerNip) {
+    ensureOpen();
+    ArchiveEntry lower = new ArchiveEntry("", 0, 0, 0, 0, from, null);
+    ArchiveEntry upper = new ArchiveEntry("", 0, 0, 0, 0, to.plusDays(1), null);
+    return byDate
+        .subSet(lower, true, upper, false)
+        .stream()
+        .filter(entry -> sellerNip == null || sellerNip.equals(entry.sellerNip()));
+  }
+
+  /**
+   * Invoices dropped by a compaction running at the same time are skipped.
+   */
+  public void scan(LocalDate from, LocalDate to, String sellerNip, BiConsumer<ArchiveEntry, byte[]> consumer) {
+    entriesBetween(from, to, sellerNip).forEach(entry -> readIfPresent(entry).ifPresent(
+        xml -> consumer.accept(entry, xml)));
+  }
+
+  /**
+   * @return false if the invoice was already archived.
+   */
+  public boolean append(String ksefId, LocalDate issueDate, String sellerNip, byte[] xml) {
+    ensureOpen();
+    if (byId.containsKey(ksefId)) return false;
+
+    writeLock.lock();
+    try {
+      if (byId.containsKey(ksefId)) return false;
+      if (active.size() >= props.getSegmentSize()) roll();
+
+      ArchiveEntry entry = active.append(ksefId, issueDate, sellerNip, xml);
+      if (props.isSyncEveryAppend()) active.force();
+      index(entry);
+      return true;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Rewrites all sealed segments, keeping only records the index points to (e.g. dropping duplicates left by a
+   * crash), and removes invoices issued before _dropIssuedBefore_ (if given).
+   */
+  public void compact(LocalDate dropIssuedBefore) {
+    ensureOpen();
+    writeLock.lock();
+    try {
+      roll();
+      List<ArchiveSegment> sealed = segments
+          .values()
+          .stream()
+          .filter(segment -> segment != active)
+          .sorted(Comparator.comparingInt(ArchiveSegment::number))
+          .toList();
+      if (sealed.isEmpty()) return;
+
+      ArchiveSegment target = ArchiveSegment.open(props.getDirectory(), active.number() + 1);
+      List<ArchiveEntry> moved = new ArrayList<>();
+      for (ArchiveSegment segment : sealed) {
+        for (ArchiveEntry entry : liveEntriesOf(segment.number())) {
+          if (dropIssuedBefore != null && entry.issueDate() != null && entry.issueDate().isBefore(dropIssuedBefore)) {
+            unindex(entry);
+            continue;
+          }
+          if (target.size() >= props.getSegmentSize()) {
+            target = sealAndNext(target);
+          }
+          moved.add(target.append(entry.ksefId(), entry.issueDate(), entry.sellerNip(), segment.read(entry)));
+        }
+      }
+      target.force();
+      segments.put(target.number(), target);
+      target.seal();
+
+      // Index is switched first and snapshotted, only then the old segments are deleted.
+      moved.forEach(this::index);
+      ArchiveSegment previousActive = active;
+      active = ArchiveSegment.open(props.getDirectory(), target.number() + 1);
+      segments.put(active.number(), active);
+      snapshot();
+      segmentsLock.writeLock().lock();
+      try {
+        for (ArchiveSegment segment : sealed) {
+          remove(segment);
+        }
+        if (previousActive.size() == 0) remove(previousActive);
+      } finally {
+        segmentsLock.writeLock().unlock();
+      }
+      log.info("Archive compacted, {} invoice(s) in {} segment(s)", byId.size(), segments.size());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  public void flush() {
+    if (!opened) return;
+    writeLock.lock();
+    try {
+      active.force();
+      snapshot();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @PreDestroy
+  public void close() {
+    if (!opened) return;
+    flush();
+    segmentsLock.writeLock().lock();
+    try {
+      opened = false;
+      for (ArchiveSegment segment : segments.values()) {
+        try {
+          segment.close();
+        } catch (IOException e) {
+          log.warn("Could not close archive segment {}", segment.path(), e);
+        }
+      }
+      segments.clear();
+      byId.clear();
+      byDate.clear();
+    } finally {
+      segmentsLock.writeLock().unlock();
+    }
+  }
+
+  private void remove(ArchiveSegment segment) throws IOException {
+    segments.remove(segment.number());
+    segment.close();
+    Files.deleteIfExists(segment.path());
+  }
+
+  private ArchiveSegment sealAndNext(ArchiveSegment target) throws IOException {
+    target.force();
+    target.seal();
+    segments.put(target.number(), target);
+    return ArchiveSegment.open(props.getDirectory(), target.number() + 1);
+  }
+
+  private List<ArchiveEntry> liveEntriesOf(int segment) {
+    return byId.values().stream().filter(entry -> entry.segment() == segment).toList();
+  }
+
+  private void roll() throws IOException {
+    if (active.size() == 0) return;
+    active.force();
+    active.seal();
+    active = ArchiveSegment.open(props.getDirectory(), active.number() + 1);
+    segments.put(active.number(), active);
+  }
+
+  private void index(ArchiveEntry entry) {
+    ArchiveEntry previous = byId.put(entry.ksefId(), entry);
+    if (previous != null) byDate.remove(previous);
+    byDate.add(entry);
+  }
+
+  private void unindex(ArchiveEntry entry) {
+    byId.remove(entry.ksefId());
+    byDate.remove(entry);
+  }
+
+  private void snapshot() throws IOException {
+    Map<Integer, Long> sizes = new HashMap<>();
+    segments.values().forEach(segment -> sizes.put(segment.number(), segment.size()));
+    ArchiveIndexFile.write(props.getDirectory(), sizes, byId.values());
+  }
+
+  private void ensureOpen() {
+    if (opened) return;
+    if (!props.isEnabled()) throw new IllegalStateException("Invoice archive is disabled (ksef.archive.enabled)");
+
+    writeLock.lock();
+    try {
+      if (!opened) open();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  private void open() throws IOException {
+    Path directory = props.getDirectory();
+    Files.createDirectories(directory);
+
+    List<Integer> numbers;
+    try (Stream<Path> files = Files.list(directory)) {
+      numbers = files
+          .map(file -> file.getFileName().toString())
+          .filter(name -> name.startsWith("segment-") && name.endsWith(".dat"))
+          .map(ArchiveSegment::parseNumber)
+          .sorted()
+          .toList();
+    }
+
+    ArchiveIndexFile.Snapshot snapshot = ArchiveIndexFile
+        .read(directory)
+        .orElse(new ArchiveIndexFile.Snapshot(Map.of(), List.of()));
+    snapshot.entries().stream().filter(entry -> numbers.contains(entry.segment())).forEach(this::index);
+
+    int recovered = 0;
+    for (int number : numbers) {
+      ArchiveSegment segment = ArchiveSegment.open(directory, number);
+      segments.put(number, segment);
+      long indexed = Math.min(snapshot.indexedSizes().getOrDefault(number, 0L), segment.size());
+      int before = byId.size();
+      segment.recover(indexed, this::index);
+      recovered += byId.size() - before;
+    }
+
+    int lastNumber = numbers.isEmpty() ? 1 : numbers.get(numbers.size() - 1);
+    active = segments.containsKey(lastNumber) ? segments.get(lastNumber) : ArchiveSegment.open(directory, lastNumber);
+    segments.put(lastNumber, active);
+    for (ArchiveSegment segment : segments.values()) {
+      if (segment != active) segment.seal();
+    }
+
+    opened = true;
+    log.info("Invoice archive opened: {} invoice(s), {} recovered from segments", byId.size(), recovered);
+  }
+}
@@ -1,71 +1,222 @@
 package pl.pbs.edu.ksefprocessdemo.auth;
 
+import jakarta.annotation.PreDestroy;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Component;
 import pl.akmf.ksef.sdk.api.builders.auth.AuthKsefTokenRequestBuilder;
 import pl.akmf.ksef.sdk.api.services.DefaultCryptographyService;
 import pl.akmf.ksef.sdk.client.interfaces.KSeFClient;
 import pl.akmf.ksef.sdk.client.model.ApiException;
 import pl.akmf.ksef.sdk.client.model.auth.*;
+import pl.pbs.edu.ksefprocessdemo.config.props.AuthProps;
+import pl.pbs.edu.ksefprocessdemo.exception.KsefAuthorizationException;
+import pl.pbs.edu.ksefprocessdemo.metrics.KsefMetrics;
+import pl.pbs.edu.ksefprocessdemo.ratelimit.KsefRateLimiter;
 
+import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.Base64;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This spring component provides ksef tokens in AuthOperationStatusResponse object using _getTokens()_ method
+ * <p>
+ * Tokens are kept in an atomic snapshot, so reading them never locks. They are refreshed in the background
+ * (_ksef.auth.refresh-before_ ahead of expiry) using the refresh token, the full challenge flow is only used when
+ * the refresh token has expired too. Concurrent callers finding an expired token all wait for one shared renewal.
+ * <p>
+ * The bean serves _ksef.nip_, providers of other NIPs come from _forTenant_. A provider that is no longer used must
+ * be shut down, otherwise its refreshes go on.
  */
 @Component
 @Slf4j
 public class KsefAuthorizationProvider {
+  private static final int AUTH_STATUS_MAX_RETRIES = 30;
+
   private final KSeFClient ksefClient;
   private final DefaultCryptographyService defaultCryptographyService;
-  private final ScheduledExecutorService poolingScheduler = Executors.newSingleThreadScheduledExecutor();
-  private final CompletableFuture<AuthStatus> poolingAwait = new CompletableFuture<>();
-  @Value("${ksef.apiToken}")
-  private String ksefToken;
-  @Value("${ksef.nip}")
-  private String NIP;
-  private AuthOperationStatusResponse tokens;
-
-  public KsefAuthorizationProvider(KSeFClient ksefClient, DefaultCryptographyService defaultCryptographyService) {
+  private final KsefMetrics metrics;
+  private final KsefRateLimiter rateLimiter;
+  private final AuthProps props;
+  // Only times the refreshes (they run on virtual threads), so one thread serves all tenants.
+  private final ScheduledExecutorService refreshScheduler;
+  private final boolean sharedScheduler;
+  private final AtomicReference<AuthOperationStatusResponse> tokens = new AtomicReference<>();
+  private final AtomicReference<CompletableFuture<AuthOperationStatusResponse>> renewal = new AtomicReference<>();
+  private final AtomicReference<ScheduledFuture<?>> nextRefresh = new AtomicReference<>();
+  private volatile boolean stopped;
+  private final String ksefToken;
+  @Getter
+  private final String NIP;
+
+  public KsefAuthorizationProvider(
+      KSeFClient ksefClient,
+      @Lazy DefaultCryptographyService defaultCryptographyService,
+      KsefMetrics metrics,
+      KsefRateLimiter rateLimiter,
+      AuthProps props
+  ) {
+    this(
+        ksefClient,
+        defaultCryptographyService,
+        metrics,
+        rateLimiter,
+        props,
+        props.getNip(),
+        props.getApiToken(),
+        null
+    );
+  }
+
+  private KsefAuthorizationProvider(
+      KSeFClient ksefClient,
+      DefaultCryptographyService defaultCryptographyService,
+      KsefMetrics metrics,
+      KsefRateLimiter rateLimiter,
+      AuthProps props,
+      String nip,
+      String apiToken,
+      ScheduledExecutorService sharedRefreshScheduler
+  ) {
     this.ksefClient = ksefClient;
     this.defaultCryptographyService = defaultCryptographyService;
+    this.metrics = metrics;
+    this.rateLimiter = rateLimiter;
+    this.props = props;
+    this.NIP = nip;
+    this.ksefToken = apiToken;
+    this.sharedScheduler = sharedRefreshScheduler != null;
+    this.refreshScheduler = sharedScheduler ? sharedRefreshScheduler : Executors.newSingleThreadScheduledExecutor(
+        Thread.ofPlatform().name("ksef-token-refresh").daemon().factory()
+    );
+  }
+
+  /**
+   * @return Provider of another NIP (own tokens, same props), sharing the refresh scheduler of this one.
+   */
+  public KsefAuthorizationProvider forTenant(String nip, String apiToken) {
+    return new KsefAuthorizationProvider(
+        ksefClient,
+        defaultCryptographyService,
+        metrics,
+        rateLimiter,
+        props,
+        nip,
+        apiToken,
+        refreshScheduler
+    );
   }
 
   /**
-   * Synchronized to ensure thread safety and avoid redundant requests in parallel workflows. (No need for ReentrantLock)
-   * It could be changed to a strategy for future implementation of Auth from certificate.
+   * Lock-free on the hot path. Blocks only when there is no valid access token at all (first call, or background
+   * refresh failed).
    *
    * @return Returns the current tokens, renewing them if expired.
    */
-  public synchronized AuthOperationStatusResponse getTokens() {
-    if (isTokenExpired()) renewTokens();
+  public AuthOperationStatusResponse getTokens() {
+    AuthOperationStatusResponse current = tokens.get();
+    if (isValid(current)) return current;
 
-    return tokens;
+    try {
+      return renew(current).join();
+    } catch (CompletionException e) {
+      throw new KsefAuthorizationException("Could not obtain KSeF tokens", e.getCause());
+    }
   }
 
-  private void renewTokens() {
+  /**
+   * Single-flight renewal - only the first caller starts it, others get the same future.
+   *
+   * @param seen Snapshot the caller wants to replace. If it was replaced meanwhile, no new renewal is started.
+   */
+  private CompletableFuture<AuthOperationStatusResponse> renew(AuthOperationStatusResponse seen) {
+    CompletableFuture<AuthOperationStatusResponse> running = renewal.get();
+    if (running != null) return running;
+
+    CompletableFuture<AuthOperationStatusResponse> mine = new CompletableFuture<>();
+    if (!renewal.compareAndSet(null, mine)) {
+      running = renewal.get();
+      return running != null ? running : CompletableFuture.completedFuture(tokens.get());
+    }
+    if (tokens.get() != seen) {
+      renewal.set(null);
+      mine.complete(tokens.get());
+      return mine;
+    }
+
     try {
       log.debug("Renewing tokens...");
-      this.tokens = getKsefAuthentication();
-    } catch (ApiException e) {
+      AuthOperationStatusResponse renewed = renewTokens(tokens.get());
+      // KSeF limits are per context - let the rate limiter know whose requests carry this token.
+      rateLimiter.bindToken(renewed.getAccessToken().getToken(), NIP);
+      tokens.set(renewed);
+      scheduleRefresh(renewed);
+      mine.complete(renewed);
+    } catch (ApiException | RuntimeException e) {
       log.error("Error occurred while renewing tokens in KsefAuthorizationProvider", e);
+      mine.completeExceptionally(e);
+    } finally {
+      renewal.set(null);
     }
+    return mine;
+  }
 
+  private AuthOperationStatusResponse renewTokens(AuthOperationStatusResponse current) throws ApiException {
+    if (current != null && !isExpired(current.getRefreshToken())) {
+      try {
+        AuthenticationTokenRefreshResponse refreshed = metrics.api("refreshToken", () -> ksefClient.refreshAccessToken(
+            current.getRefreshToken().getToken()
+        ));
+        metrics.tokenRenewal("refresh", true);
+        return new AuthOperationStatusResponse(refreshed.getAccessToken(), current.getRefreshToken());
+      } catch (ApiException e) {
+        metrics.tokenRenewal("refresh", false);
+        log.warn("Refreshing access token failed ({}), falling back to full authentication", e.getMessage());
+      }
+    }
+    try {
+      AuthOperationStatusResponse authenticated = getKsefAuthentication();
+      metrics.tokenRenewal("full", true);
+      return authenticated;
+    } catch (ApiException | RuntimeException e) {
+      metrics.tokenRenewal("full", false);
+      throw e;
+    }
+  }
+
+  private void scheduleRefresh(AuthOperationStatusResponse renewed) {
+    if (stopped) return;
+    OffsetDateTime refreshAt = renewed.getAccessToken().getValidUntil().minus(props.getRefreshBefore());
+    long delay = Math.max(1_000, Duration.between(now(), refreshAt).toMillis());
+    ScheduledFuture<?> previous = nextRefresh.getAndSet(refreshScheduler.schedule(
+        () -> {
+          if (!stopped) Thread.startVirtualThread(() -> renew(renewed));
+        },
+        delay,
+        TimeUnit.MILLISECONDS
+    ));
+    if (previous != null) previous.cancel(false);
+    log.debug("Next token refresh of {} in {} ms", NIP, delay);
+  }
+
+  private boolean isValid(AuthOperationStatusResponse current) {
+    return current != null && !isExpired(current.getAccessToken());
+  }
+
+  private static boolean isExpired(TokenInfo token) {
+    return token == null || token.getValidUntil() == null || !now().isBefore(token.getValidUntil());
   }
 
-  private boolean isTokenExpired() {
-    if (tokens == null) return true;
-    return OffsetDateTime.now(ZoneOffset.UTC).isAfter(tokens.getAccessToken().getValidUntil()) || OffsetDateTime
-        .now(ZoneOffset.UTC)
-        .isAfter(tokens.getRefreshToken().getValidUntil());
+  private static OffsetDateTime now() {
+    return OffsetDateTime.now(ZoneOffset.UTC);
   }
 
   private AuthOperationStatusResponse getKsefAuthentication() throws ApiException {
-    AuthenticationChallengeResponse challenge = ksefClient.getAuthChallenge();
+    AuthenticationChallengeResponse challenge = metrics.api("authChallenge", ksefClient::getAuthChallenge);
     byte[] encryptedToken = encrypt(EncryptionMethod.Rsa, challenge);
 
     AuthKsefTokenRequest authKsefTokenRequest = new AuthKsefTokenRequestBuilder()
@@ -73,43 +224,31 @@ public class KsefAuthorizationProvider {
         .withContextIdentifier(new ContextIdentifier(ContextIdentifier.IdentifierType.NIP, NIP))
         .withEncryptedToken(Base64.getEncoder().encodeToString(encryptedToken))
         .build();
-    SignatureResponse signature = ksefClient.authenticateByKSeFToken(authKsefTokenRequest);
-    poolingScheduler.scheduleAtFixedRate(getPoolingTask(signature), 0, 1, TimeUnit.SECONDS);
+    SignatureResponse signature = metrics.api(
+        "authKsefToken",
+        () -> ksefClient.authenticateByKSeFToken(authKsefTokenRequest)
+    );
+    awaitAuthentication(signature);
 
-    try {
-      poolingAwait.get();
-    } catch (Exception e) {
-      log.error(e.getMessage());
-    }
-    return ksefClient.redeemToken(signature.getAuthenticationToken().getToken());
+    return metrics.api("redeemToken", () -> ksefClient.redeemToken(signature.getAuthenticationToken().getToken()));
   }
 
-  private Runnable getPoolingTask(SignatureResponse signature) {
-    return new Runnable() {
-      private int retries = 0;
-
-      @Override
-      public void run() {
-        try {
-          AuthStatus authStatus = ksefClient.getAuthStatus(
-              signature.getReferenceNumber(),
-              signature.getAuthenticationToken().getToken()
-          );
-
-          if (authStatus.getStatus().getCode() == 200) {
-            poolingAwait.complete(authStatus);
-            poolingScheduler.shutdown();
-            return;
-          }
-          if (++retries > 30) {
-            poolingAwait.completeExceptionally(new TimeoutException("Token pooling failed after " + retries + " attempt(s)"));
-            poolingScheduler.shutdown();
-          }
-        } catch (ApiException e) {
-          log.error(e.getMessage());
-        }
+  private void awaitAuthentication(SignatureResponse signature) throws ApiException {
+    for (int retries = 0; retries <= AUTH_STATUS_MAX_RETRIES; retries++) {
+      AuthStatus authStatus = metrics.api("authStatus", () -> ksefClient.getAuthStatus(
+          signature.getReferenceNumber(),
+          signature.getAuthenticationToken().getToken()
+      ));
+      if (authStatus.getStatus().getCode() == 200) return;
+
+      try {
+        Thread.sleep(1_000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ApiException(e);
       }
-    };
+    }
+    throw new ApiException("Token pooling failed after " + AUTH_STATUS_MAX_RETRIES + " attempt(s)");
   }
 
   private byte[] encrypt(EncryptionMethod encryptionMethod, AuthenticationChallengeResponse ch) {
@@ -118,4 +257,15 @@ public class KsefAuthorizationProvider {
       case ECDsa -> defaultCryptographyService.encryptKsefTokenWithECDsaUsingPublicKey(ksefToken, ch.getTimestamp());
     };
   }
+
+  /**
+   * Stops the background refreshes (and the scheduler, unless it is shared with the provider this one came from).
+   */
+  @PreDestroy
+  public void shutdown() {
+    stopped = true;
+    ScheduledFuture<?> refresh = nextRefresh.getAndSet(null);
+    if (refresh != null) refresh.cancel(false);
+    if (!sharedScheduler) refreshScheduler.shutdownNow();
+  }
 }
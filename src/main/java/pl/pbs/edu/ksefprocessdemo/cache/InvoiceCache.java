@@ -0,0 +1,98 @@
+package pl.pbs.edu.ksefprocessdemo.cache;
+
+import org.springframework.stereotype.Component;
+import pl.pbs.edu.ksefprocessdemo.config.props.InvoiceCacheProps;
+import pl.pbs.edu.ksefprocessdemo.utils.KsefUtils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory LRU cache of raw invoice XML by ksefId, bounded by _ksef.invoice-cache.max-bytes_. XML is kept deflated
+ * (several times smaller) and counted with its key. KSeF invoices are immutable, so a cached invoice never goes
+ * stale - the local archive, when enabled, is the unbounded disk tier behind it (see InvoiceFetchService).
+ */
+@Component
+public class InvoiceCache {
+
+  // Map entry, key and array headers.
+  private static final int ENTRY_OVERHEAD = 96;
+
+  private final InvoiceCacheProps props;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(256, 0.75f, true);
+  private long bytes;
+
+  public InvoiceCache(InvoiceCacheProps props) {
+    this.props = props;
+  }
+
+  public boolean isEnabled() {
+    return props.isEnabled();
+  }
+
+  public Optional<byte[]> get(String ksefId) {
+    if (!isEnabled()) return Optional.empty();
+
+    byte[] compressed;
+    lock.lock();
+    try {
+      compressed = entries.get(ksefId);
+    } finally {
+      lock.unlock();
+    }
+    return Optional.ofNullable(compressed).map(KsefUtils::inflate);
+  }
+
+  /**
+   * Invoices bigger than the whole cache are not kept.
+   */
+  public void put(String ksefId, byte[] rawXml) {
+    if (!isEnabled()) return;
+
+    byte[] compressed = KsefUtils.deflate(rawXml);
+    long weight = weigh(ksefId, compressed);
+    if (weight > props.getMaxBytes()) return;
+
+    lock.lock();
+    try {
+      byte[] previous = entries.put(ksefId, compressed);
+      if (previous != null) bytes -= weigh(ksefId, previous);
+      bytes += weight;
+
+      Iterator<Map.Entry<String, byte[]>> eldest = entries.entrySet().iterator();
+      while (bytes > props.getMaxBytes() && eldest.hasNext()) {
+        Map.Entry<String, byte[]> entry = eldest.next();
+        bytes -= weigh(entry.getKey(), entry.getValue());
+        eldest.remove();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int size() {
+    lock.lock();
+    try {
+      return entries.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long bytes() {
+    lock.lock();
+    try {
+      return bytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static long weigh(String ksefId, byte[] compressed) {
+    return ENTRY_OVERHEAD + 2L * ksefId.length() + compressed.length;
+  }
+}
@@ -0,0 +1,17 @@
+package pl.pbs.edu.ksefprocessdemo.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import pl.pbs.edu.ksefprocessdemo.utils.FakturaUnmarshaller;
+
+@Configuration
+public class FakturaParserConfig {
+
+  /**
+   * The (huge) FA(3) JAXBContext is built in the background by StartupWarmUp, not by the first package parse.
+   */
+  @Bean
+  public FakturaUnmarshaller fakturaUnmarshaller() {
+    return FakturaUnmarshaller.shared();
+  }
+}
@@ -4,23 +4,33 @@ import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
 import pl.akmf.ksef.sdk.api.DefaultKsefClient;
 import pl.akmf.ksef.sdk.api.KsefApiProperties;
 import pl.akmf.ksef.sdk.api.services.*;
 import pl.akmf.ksef.sdk.client.interfaces.*;
+import pl.pbs.edu.ksefprocessdemo.config.props.HttpTransportProps;
 import pl.pbs.edu.ksefprocessdemo.config.props.KsefApiProps;
+import pl.pbs.edu.ksefprocessdemo.ratelimit.KsefRateLimiter;
 import pl.pbs.edu.ksefprocessdemo.utils.HttpClientBuilder;
 import pl.pbs.edu.ksefprocessdemo.utils.HttpClientConfig;
+import pl.pbs.edu.ksefprocessdemo.utils.KsefHttpClient;
 
 import java.net.http.HttpClient;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 @Configuration
 @RequiredArgsConstructor
 public class KsefClientConfig {
 
+  private ExecutorService httpExecutor;
+
   @Bean
   public KsefApiProperties apiProperties() {
     return new KsefApiProps();
@@ -46,17 +56,60 @@ public class KsefClientConfig {
     return new DefaultQrCodeService();
   }
 
+  /**
+   * The one connection pool for all KSeF traffic - every KSeFClient (tenant) and the part downloads share it, so
+   * connections (and HTTP/2 streams) are reused instead of opened per client.
+   */
+  @Bean
+  public HttpClient ksefHttpClient(HttpTransportProps transportProps) {
+    httpExecutor = createHttpExecutor(transportProps);
+    HttpClientConfig config = new HttpClientConfig()
+        .setExecutor(httpExecutor)
+        .setVersion(transportProps.getVersion())
+        .setConnectTimeout(transportProps.getConnectTimeout());
+    return HttpClientBuilder.createHttpBuilder(config).build();
+  }
+
   @Bean
-  public KSeFClient initDefaultKsefClient() {
+  public KSeFClient initDefaultKsefClient(
+      HttpClient ksefHttpClient,
+      HttpTransportProps transportProps,
+      KsefRateLimiter rateLimiter
+  ) {
     ObjectMapper objectMapper = new ObjectMapper()
         .registerModule(new JavaTimeModule())
         .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
         .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
-    HttpClient apiClient = HttpClientBuilder.createHttpBuilder(new HttpClientConfig()).build();
-    return new DefaultKsefClient(apiClient, apiProperties(), objectMapper);
+    return new DefaultKsefClient(
+        new KsefHttpClient(ksefHttpClient, transportProps, rateLimiter),
+        apiProperties(),
+        objectMapper
+    );
+  }
+
+  // Not a bean - an Executor bean would replace Spring Boot's own task executor.
+  private static ExecutorService createHttpExecutor(HttpTransportProps transportProps) {
+    return switch (transportProps.getExecutor()) {
+      case VIRTUAL -> Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ksef-http-", 0).factory());
+      case POOL -> Executors.newFixedThreadPool(
+          Math.max(1, transportProps.getPoolSize()),
+          Thread.ofPlatform().name("ksef-http-", 0).daemon().factory()
+      );
+      case COMMON -> ForkJoinPool.commonPool();
+    };
+  }
+
+  @PreDestroy
+  public void shutdownHttpExecutor() {
+    if (httpExecutor != null && httpExecutor != ForkJoinPool.commonPool()) httpExecutor.shutdownNow();
   }
 
+  /**
+   * Lazy (and injected as a lazy proxy) - its constructor downloads the KSeF public keys, which would otherwise block
+   * startup. StartupWarmUp creates it in the background.
+   */
   @Bean
+  @Lazy
   public DefaultCryptographyService initDefaultCryptographyService(KSeFClient kSeFClient) {
     return new DefaultCryptographyService(kSeFClient);
   }
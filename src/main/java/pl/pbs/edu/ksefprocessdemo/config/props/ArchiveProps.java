@@ -0,0 +1,29 @@
+package pl.pbs.edu.ksefprocessdemo.config.props;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+
+/**
+ * Settings of the local invoice archive (see InvoiceArchive).
+ */
+@Getter
+@Component
+public class ArchiveProps {
+
+  @Value("${ksef.archive.enabled:false}")
+  private boolean enabled;
+
+  @Value("${ksef.archive.dir:ksef-archive}")
+  private Path directory;
+
+  // New segment is started once the active one grows over this size.
+  @Value("${ksef.archive.segment-size:268435456}")
+  private long segmentSize;
+
+  // fsync after every append - safest, but much slower for big packages.
+  @Value("${ksef.archive.sync-every-append:false}")
+  private boolean syncEveryAppend;
+}
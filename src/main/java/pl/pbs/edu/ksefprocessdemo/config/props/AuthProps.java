@@ -0,0 +1,26 @@
+package pl.pbs.edu.ksefprocessdemo.config.props;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Settings of KsefAuthorizationProvider. NIP and API token are those of the default provider, tenant providers
+ * (see KsefTenantRegistry) bring their own and share the rest.
+ */
+@Getter
+@Component
+public class AuthProps {
+
+  @Value("${ksef.nip}")
+  private String nip;
+
+  @Value("${ksef.apiToken}")
+  private String apiToken;
+
+  // Access token is refreshed this long before it expires.
+  @Value("${ksef.auth.refresh-before:PT2M}")
+  private Duration refreshBefore;
+}
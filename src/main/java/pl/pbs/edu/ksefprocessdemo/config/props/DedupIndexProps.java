@@ -0,0 +1,29 @@
+package pl.pbs.edu.ksefprocessdemo.config.props;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+
+/**
+ * Settings of the persistent ksefId deduplication index (see KsefIdIndex).
+ */
+@Getter
+@Component
+public class DedupIndexProps {
+
+  @Value("${ksef.dedup.enabled:false}")
+  private boolean enabled;
+
+  @Value("${ksef.dedup.file:ksef-dedup.idx}")
+  private Path file;
+
+  // Slots of a new table (rounded up to a power of two), the table doubles once it is 70% full.
+  @Value("${ksef.dedup.initial-capacity:65536}")
+  private int initialCapacity;
+
+  // Off-heap Bloom filter in front of the table (1 byte per slot), saves touching cold table pages on misses.
+  @Value("${ksef.dedup.bloom-filter:true}")
+  private boolean bloomFilter;
+}
@@ -0,0 +1,27 @@
+package pl.pbs.edu.ksefprocessdemo.config.props;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Settings of the export status poller - first probes are fast, then the delay grows up to _maxDelay_.
+ */
+@Getter
+@Component
+public class ExportPollProps {
+
+  @Value("${ksef.export.poll.initial-delay:PT0.5S}")
+  private Duration initialDelay;
+
+  @Value("${ksef.export.poll.max-delay:PT15S}")
+  private Duration maxDelay;
+
+  @Value("${ksef.export.poll.multiplier:1.6}")
+  private double multiplier;
+
+  @Value("${ksef.export.poll.timeout:PT30M}")
+  private Duration timeout;
+}
@@ -0,0 +1,27 @@
+package pl.pbs.edu.ksefprocessdemo.config.props;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Settings of splitting a date range into concurrently exported windows (see InvoiceExportPlanner).
+ */
+@Getter
+@Component
+public class ExportShardingProps {
+
+  // Max. number of export jobs (init -> poll -> download -> parse) running at the same time.
+  @Value("${ksef.export.concurrency:3}")
+  private int concurrency;
+
+  // Initial window length, the requested range is cut into windows of this size.
+  @Value("${ksef.export.window:P31D}")
+  private Duration window;
+
+  // Truncated windows shorter than this are continued sequentially instead of being split again.
+  @Value("${ksef.export.min-window:PT1H}")
+  private Duration minWindow;
+}
@@ -0,0 +1,59 @@
+package pl.pbs.edu.ksefprocessdemo.config.props;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+
+/**
+ * Settings of the HTTP transport shared by all KSeF calls (see KsefClientConfig::ksefHttpClient).
+ */
+@Getter
+@Component
+public class HttpTransportProps {
+
+  public enum ExecutorType {
+    // A virtual thread per task - blocking calls never take a carrier from CPU-bound work for long.
+    VIRTUAL,
+    // Dedicated fixed pool of _pool-size_ platform threads.
+    POOL,
+    // ForkJoinPool.commonPool(), shared with parallel streams (the old behaviour).
+    COMMON
+  }
+
+  @Value("${ksef.http.executor:VIRTUAL}")
+  private ExecutorType executor;
+
+  @Value("${ksef.http.pool-size:16}")
+  private int poolSize;
+
+  // HTTP_2 falls back to HTTP/1.1 when the server does not support it.
+  @Value("${ksef.http.version:HTTP_2}")
+  private HttpClient.Version version;
+
+  @Value("${ksef.http.connect-timeout:PT5S}")
+  private Duration connectTimeout;
+
+  // Authentication: challenge, token, status, redeem, refresh.
+  @Value("${ksef.http.timeout.auth:PT30S}")
+  private Duration authTimeout;
+
+  // Starting an export and checking its status.
+  @Value("${ksef.http.timeout.export:PT30S}")
+  private Duration exportTimeout;
+
+  // Until the storage starts sending a package part, the body itself then streams without a timeout.
+  @Value("${ksef.http.timeout.part-download:PT2M}")
+  private Duration partDownloadTimeout;
+
+  // Everything else (metadata queries, single invoices, ...).
+  @Value("${ksef.http.timeout.default:PT100S}")
+  private Duration defaultTimeout;
+
+  // Asks KSeF API for gzip responses (metadata pages and invoice XML compress well). Parts are encrypted, so
+  // compression is never requested for them.
+  @Value("${ksef.http.compression:true}")
+  private boolean compression;
+}
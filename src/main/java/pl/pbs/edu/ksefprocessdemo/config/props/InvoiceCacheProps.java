@@ -0,0 +1,25 @@
+package pl.pbs.edu.ksefprocessdemo.config.props;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Settings of single-invoice fetches by ksefId (see InvoiceFetchService and InvoiceCache).
+ */
+@Getter
+@Component
+public class InvoiceCacheProps {
+
+  // Keep fetched invoices in memory. KSeF invoices never change, so entries are only evicted, never refreshed.
+  @Value("${ksef.invoice-cache.enabled:true}")
+  private boolean enabled;
+
+  // Memory for the cached (deflated) XML, least recently used invoices are evicted first.
+  @Value("${ksef.invoice-cache.max-bytes:67108864}")
+  private long maxBytes;
+
+  // Invoices downloaded at the same time. Downloads also wait for the invoice-download rate limit.
+  @Value("${ksef.invoice-fetch.concurrency:16}")
+  private int fetchConcurrency;
+}
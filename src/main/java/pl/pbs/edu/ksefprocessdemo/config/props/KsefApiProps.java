@@ -11,6 +11,9 @@ public class KsefApiProps extends KsefApiProperties {
 
   @Value("${ksef.url}")
   private String ksefUrl;
+  // Only a fallback, KsefHttpClient sets the timeout of every request by its operation class.
+  @Value("${ksef.http.timeout.default:PT100S}")
+  private Duration requestTimeout;
 
   @Override
   public String getBaseUri() {
@@ -19,7 +22,7 @@ public class KsefApiProps extends KsefApiProperties {
 
   @Override
   public Duration getRequestTimeout() {
-    return Duration.ofSeconds(100);
+    return requestTimeout;
   }
 
   @Override
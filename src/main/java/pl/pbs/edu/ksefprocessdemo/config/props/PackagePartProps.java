@@ -0,0 +1,32 @@
+package pl.pbs.edu.ksefprocessdemo.config.props;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Settings of package part download (see ParallelPartFetcher).
+ */
+@Getter
+@Component
+public class PackagePartProps {
+
+  // How many parts may be downloaded/decrypted (or wait for the ZIP stage) at the same time.
+  @Value("${ksef.package.parts.concurrency:4}")
+  private int concurrency;
+
+  // Upper bound of decrypted bytes held in memory by parts that were not consumed yet.
+  @Value("${ksef.package.parts.max-in-flight-bytes:268435456}")
+  private long maxInFlightBytes;
+
+  @Value("${ksef.package.parts.retry.max-attempts:3}")
+  private int retryMaxAttempts;
+
+  @Value("${ksef.package.parts.retry.backoff:PT1S}")
+  private Duration retryBackoff;
+
+  @Value("${ksef.package.parts.retry.backoff-multiplier:2.0}")
+  private double retryBackoffMultiplier;
+}
@@ -0,0 +1,28 @@
+package pl.pbs.edu.ksefprocessdemo.config.props;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Settings of spooled package download (see PackageSpool).
+ */
+@Getter
+@Component
+public class PackageSpoolProps {
+
+  // Parts go to disk first and are parsed from there, an interrupted export is resumed after restart.
+  @Value("${ksef.package.spool.enabled:false}")
+  private boolean enabled;
+
+  // One subdirectory per export in progress. Holds the AES key of the export next to its parts - keep it private.
+  @Value("${ksef.package.spool.dir:ksef-spool}")
+  private Path directory;
+
+  // A spooled export is resumed only if the URLs of its missing parts stay valid at least this long.
+  @Value("${ksef.package.spool.min-url-validity:PT5M}")
+  private Duration minUrlValidity;
+}
@@ -0,0 +1,40 @@
+package pl.pbs.edu.ksefprocessdemo.config.props;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Settings of the client-side rate limiter (see KsefRateLimiter).
+ */
+@Getter
+@Component
+public class RateLimitProps {
+
+  @Value("${ksef.rate-limit.enabled:true}")
+  private boolean enabled;
+
+  // Fraction of the server limit used, so clock skew and other clients of the same context do not cause 429s.
+  @Value("${ksef.rate-limit.headroom:0.9}")
+  private double headroom;
+
+  // Concurrent requests per operation class and context - AIMD moves the current limit between min and max.
+  @Value("${ksef.rate-limit.concurrency.initial:8}")
+  private int initialConcurrency;
+
+  @Value("${ksef.rate-limit.concurrency.min:1}")
+  private int minConcurrency;
+
+  @Value("${ksef.rate-limit.concurrency.max:32}")
+  private int maxConcurrency;
+
+  // Pause after a 429 without Retry-After.
+  @Value("${ksef.rate-limit.default-retry-after:PT5S}")
+  private Duration defaultRetryAfter;
+
+  // 429 responses retried by the transport (after the pause) before the caller gets the error.
+  @Value("${ksef.rate-limit.max-retries:3}")
+  private int maxRetries;
+}
@@ -0,0 +1,34 @@
+package pl.pbs.edu.ksefprocessdemo.config.props;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+
+/**
+ * Settings of startup warm-up and the CDS training run (see StartupWarmUp).
+ */
+@Getter
+@Component
+public class StartupProps {
+
+  // JAXB context, KSeF public keys and tokens are prepared in the background, readiness waits for them.
+  @Value("${ksef.startup.warm-up:true}")
+  private boolean warmUp;
+
+  // Also acquire tokens (of every tenant) during warm-up.
+  @Value("${ksef.startup.warm-up-tokens:true}")
+  private boolean warmUpTokens;
+
+  // Training run for the CDS archive (./gradlew cdsArchive) - parses a package of mock invoices and exits.
+  @Value("${ksef.startup.training:false}")
+  private boolean training;
+
+  @Value("${ksef.startup.training-file:src/main/java/pl/pbs/edu/ksefprocessdemo/demo/mock.xml}")
+  private Path trainingFile;
+
+  // Copies of the training file in the training package.
+  @Value("${ksef.startup.training-invoices:500}")
+  private int trainingInvoices;
+}
@@ -0,0 +1,38 @@
+package pl.pbs.edu.ksefprocessdemo.config.props;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Settings of sync jobs submitted over HTTP (see SyncJobService).
+ */
+@Getter
+@Component
+public class SyncJobProps {
+
+  // Jobs running at the same time. Their exports still go through the export caps of the tenants.
+  @Value("${ksef.jobs.max-concurrent:4}")
+  private int maxConcurrent;
+
+  // Jobs waiting for a slot. Submitting more is rejected with 429.
+  @Value("${ksef.jobs.queue-capacity:64}")
+  private int queueCapacity;
+
+  // NDJSON results of the jobs, one file per job.
+  @Value("${ksef.jobs.dir:ksef-jobs}")
+  private Path directory;
+
+  // Finished jobs (and their results) are dropped this long after they finish.
+  @Value("${ksef.jobs.retention:PT24H}")
+  private Duration retention;
+
+  // A results request ends after this long even if the job still runs - the client goes on with ?offset=. Keeps a
+  // request (and the MVC async thread streaming it) from lasting the whole job, keep it below
+  // spring.mvc.async.request-timeout.
+  @Value("${ksef.jobs.stream-timeout:PT5M}")
+  private Duration streamTimeout;
+}
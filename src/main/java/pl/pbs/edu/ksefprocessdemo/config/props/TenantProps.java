@@ -0,0 +1,29 @@
+package pl.pbs.edu.ksefprocessdemo.config.props;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Settings of multi-tenant sync (see KsefTenantRegistry and TenantSyncScheduler).
+ */
+@Getter
+@Component
+public class TenantProps {
+
+  // Tenants to load on startup, one _nip;apiToken_ per line (# starts a comment). Empty - no tenants.
+  @Value("${ksef.tenants.file:}")
+  private String file;
+
+  // How many tenants are synced at the same time. Syncs mostly wait for KSeF, so this can be well above CPU count.
+  @Value("${ksef.tenants.sync-concurrency:32}")
+  private int syncConcurrency;
+
+  // Max. number of exports (init -> poll -> download -> parse) running at the same time, all tenants together.
+  @Value("${ksef.tenants.max-exports:16}")
+  private int maxExports;
+
+  // Max. number of exports of a single tenant running at the same time.
+  @Value("${ksef.tenants.max-exports-per-tenant:${ksef.export.concurrency:3}}")
+  private int maxExportsPerTenant;
+}
@@ -0,0 +1,40 @@
+package pl.pbs.edu.ksefprocessdemo.config.props;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+
+/**
+ * Settings of FA(3) schema validation of downloaded invoices (see InvoiceValidator).
+ */
+@Getter
+@Component
+public class ValidationProps {
+
+  // Validate every invoice of a package against the FA(3) schema. Invalid invoices are reported, not rejected.
+  @Value("${ksef.validation.enabled:false}")
+  private boolean enabled;
+
+  // Classpath location of the schema.
+  @Value("${ksef.validation.schema:xsd/fa3_schema.xsd}")
+  private String schema;
+
+  // Local copies of the schemas FA(3) imports from crd.gov.pl, looked up by file name. Without them the imports
+  // are downloaded once, when the schema is compiled.
+  @Value("${ksef.validation.imports-dir:#{null}}")
+  private Path importsDirectory;
+
+  // Validate while binding (one pass over the XML). Lazy binding always validates in a separate pass.
+  @Value("${ksef.validation.fused:true}")
+  private boolean fused;
+
+  // Errors kept per invalid invoice.
+  @Value("${ksef.validation.max-errors:10}")
+  private int maxErrors;
+
+  // Invalid invoices kept in the report, the oldest are dropped first.
+  @Value("${ksef.validation.report-size:1000}")
+  private int reportSize;
+}
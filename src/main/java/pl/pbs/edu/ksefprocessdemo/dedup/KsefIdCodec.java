@@ -0,0 +1,99 @@
+package pl.pbs.edu.ksefprocessdemo.dedup;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+
+/**
+ * Packs a KSeF number (_NIP-YYYYMMDD-HEX12-CRC2_, e.g. 5265877635-20250826-0100001AF629-AF) into two longs:
+ * <pre>
+ * hi: NIP (34 bits) | epoch day (24 bits)
+ * lo: 1 (occupied flag) | HEX12 (48 bits) | CRC (8 bits)
+ * </pre>
+ * The encoding is lossless, so a key comparison is exact. Numbers that do not have this shape are not encoded.
+ */
+public final class KsefIdCodec {
+
+  public static final int KEY_BYTES = 16;
+  static final long OCCUPIED = 1L << 63;
+  private static final int LENGTH = 35;
+
+  private KsefIdCodec() {
+  }
+
+  public record Key(long hi, long lo) {
+  }
+
+  /**
+   * @return null if the ksefId does not have the standard shape.
+   */
+  public static Key encode(String ksefId) {
+    if (ksefId == null || ksefId.length() != LENGTH
+        || ksefId.charAt(10) != '-' || ksefId.charAt(19) != '-' || ksefId.charAt(32) != '-') return null;
+
+    long nip = digits(ksefId, 0, 10);
+    long year = digits(ksefId, 11, 15);
+    long month = digits(ksefId, 15, 17);
+    long day = digits(ksefId, 17, 19);
+    long hex = hex(ksefId, 20, 32);
+    long crc = hex(ksefId, 33, 35);
+    if (nip < 0 || year < 0 || month < 0 || day < 0 || hex < 0 || crc < 0) return null;
+
+    long epochDay;
+    try {
+      epochDay = LocalDate.of((int) year, (int) month, (int) day).toEpochDay();
+    } catch (DateTimeException e) {
+      return null;
+    }
+    if (epochDay < 0 || epochDay >= 1L << 24) return null;
+
+    return new Key(nip << 24 | epochDay, OCCUPIED | hex << 8 | crc);
+  }
+
+  public static String decode(long hi, long lo) {
+    LocalDate date = LocalDate.ofEpochDay(hi & 0xFFFFFF);
+    return String.format(
+        "%010d-%04d%02d%02d-%012X-%02X",
+        hi >>> 24,
+        date.getYear(),
+        date.getMonthValue(),
+        date.getDayOfMonth(),
+        lo >>> 8 & 0xFFFFFFFFFFFFL,
+        lo & 0xFF
+    );
+  }
+
+  // Murmur3 finalizer - ksefIds of one seller differ only in a few bits, hash tables need them spread.
+  static long hash(long hi, long lo) {
+    long h = hi * 0x9E3779B97F4A7C15L ^ lo;
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private static long digits(String s, int from, int to) {
+    long value = 0;
+    for (int i = from; i < to; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') return -1;
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  // Upper case only - KSeF issues upper case numbers and a lower case one would not decode back to itself.
+  private static long hex(String s, int from, int to) {
+    long value = 0;
+    for (int i = from; i < to; i++) {
+      char c = s.charAt(i);
+      int digit;
+      if (c >= '0' && c <= '9') digit = c - '0';
+      else if (c >= 'A' && c <= 'F') digit = c - 'A' + 10;
+      else return -1;
+      value = value << 4 | digit;
+    }
+    return value;
+  }
+}
@@ -0,0 +1,321 @@
+package pl.pbs.edu.ksefprocessdemo.dedup;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import pl.pbs.edu.ksefprocessdemo.config.props.DedupIndexProps;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Exact, persistent "have I seen this ksefId?" index - 16 bytes per invoice instead of whole invoice objects in
+ * a HashSet.
+ * <p>
+ * ksefIds are packed by {@link KsefIdCodec} and kept in an open addressing (linear probing) hash table inside
+ * a memory-mapped file, so it lives off-heap and survives restarts. The table doubles (rehash into a new file that is
+ * then moved over the old one) once it is 70% full. An optional Bloom filter (direct buffer, rebuilt on open) answers
+ * most misses without touching table pages that may not be in memory.
+ * <p>
+ * ksefIds of a non-standard shape cannot be packed - they are kept in a small side file (one per line) instead, so
+ * the answers stay exact.
+ * <p>
+ * Adds to the table reach the disk whenever the OS writes the mapped pages back - call {@link #force()} at the
+ * points the caller commits to (e.g. after every package), so that a crash loses nothing committed before it.
+ * The rare side file ids are written through.
+ * <p>
+ * File layout: int MAGIC, int VERSION, long capacity, long size, long reserved, then capacity * (long hi, long lo).
+ * An empty slot has lo == 0 (a packed key always has the occupied bit set).
+ */
+@Slf4j
+@Component
+public class KsefIdIndex {
+
+  private static final int MAGIC = 0x4B494458; // "KIDX"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 32;
+  private static final int SIZE_OFFSET = 16;
+  // Single MappedByteBuffer is limited to 2 GB.
+  private static final int MAX_CAPACITY = 1 << 26;
+  private static final double MAX_LOAD = 0.7;
+  private static final int BLOOM_HASHES = 5;
+
+  private final DedupIndexProps props;
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Set<String> unpacked = ConcurrentHashMap.newKeySet();
+  private FileChannel channel;
+  private MappedByteBuffer table;
+  private ByteBuffer bloom;
+  private int capacity;
+  private long size;
+  private volatile boolean opened;
+
+  public KsefIdIndex(DedupIndexProps props) {
+    this.props = props;
+  }
+
+  public boolean isEnabled() {
+    return props.isEnabled();
+  }
+
+  public boolean contains(String ksefId) {
+    ensureOpen();
+    KsefIdCodec.Key key = KsefIdCodec.encode(ksefId);
+    if (key == null) return unpacked.contains(ksefId);
+
+    lock.readLock().lock();
+    try {
+      if (bloom != null && !mightContain(key)) return false;
+      return table.getLong(slotOffset(find(key)) + 8) != 0;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return false if the ksefId was already indexed.
+   */
+  public boolean add(String ksefId) {
+    ensureOpen();
+    KsefIdCodec.Key key = KsefIdCodec.encode(ksefId);
+    lock.writeLock().lock();
+    try {
+      if (key == null) return addUnpacked(ksefId);
+
+      int slot = find(key);
+      if (table.getLong(slotOffset(slot) + 8) != 0) return false;
+      if (size + 1 > capacity * MAX_LOAD) {
+        grow();
+        slot = find(key);
+      }
+      put(slot, key);
+      table.putLong(SIZE_OFFSET, ++size);
+      return true;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public long size() {
+    ensureOpen();
+    lock.readLock().lock();
+    try {
+      return size + unpacked.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Writes all adds so far to the disk.
+   */
+  public void force() {
+    if (!opened) return;
+    lock.writeLock().lock();
+    try {
+      table.force();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @PreDestroy
+  public void close() {
+    if (!opened) return;
+    lock.writeLock().lock();
+    try {
+      table.force();
+      channel.close();
+      opened = false;
+    } catch (IOException e) {
+      log.warn("Could not close dedup index {}", props.getFile(), e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Slot holding the key, or the empty slot where it belongs.
+   */
+  private int find(KsefIdCodec.Key key) {
+    int mask = capacity - 1;
+    int slot = (int) KsefIdCodec.hash(key.hi(), key.lo()) & mask;
+    while (true) {
+      int offset = slotOffset(slot);
+      long lo = table.getLong(offset + 8);
+      if (lo == 0 || lo == key.lo() && table.getLong(offset) == key.hi()) return slot;
+      slot = slot + 1 & mask;
+    }
+  }
+
+  private void put(int slot, KsefIdCodec.Key key) {
+    int offset = slotOffset(slot);
+    table.putLong(offset, key.hi());
+    table.putLong(offset + 8, key.lo());
+    if (bloom != null) addToBloom(key.hi(), key.lo());
+  }
+
+  private void grow() throws IOException {
+    if (capacity >= MAX_CAPACITY) throw new IllegalStateException("Dedup index is full (" + size + " ksefIds)");
+
+    Path file = props.getFile();
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    int newCapacity = capacity * 2;
+    FileChannel newChannel = create(tmp, newCapacity);
+    MappedByteBuffer newTable = map(newChannel, newCapacity);
+
+    MappedByteBuffer oldTable = table;
+    int oldCapacity = capacity;
+    channel.close();
+    channel = newChannel;
+    table = newTable;
+    capacity = newCapacity;
+    if (bloom != null) bloom = ByteBuffer.allocateDirect(capacity);
+    for (int slot = 0; slot < oldCapacity; slot++) {
+      int offset = slotOffset(slot);
+      long lo = oldTable.getLong(offset + 8);
+      if (lo == 0) continue;
+      KsefIdCodec.Key key = new KsefIdCodec.Key(oldTable.getLong(offset), lo);
+      put(find(key), key);
+    }
+    table.putLong(SIZE_OFFSET, size);
+    table.force();
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    log.debug("Dedup index grown to {} slots", capacity);
+  }
+
+  private boolean addUnpacked(String ksefId) throws IOException {
+    if (!unpacked.add(ksefId)) return false;
+    Files.writeString(
+        unpackedFile(),
+        ksefId + System.lineSeparator(),
+        StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND,
+        StandardOpenOption.DSYNC
+    );
+    return true;
+  }
+
+  // Bloom filter with 8 bits per slot (~11 per key at full load) and double hashing, false positives under 1%.
+  private boolean mightContain(KsefIdCodec.Key key) {
+    long h1 = KsefIdCodec.hash(key.hi(), key.lo());
+    long h2 = Long.rotateLeft(h1, 32) | 1;
+    long bits = (long) capacity * 8;
+    for (int i = 0; i < BLOOM_HASHES; i++) {
+      long bit = Math.floorMod(h1 + i * h2, bits);
+      if ((bloom.get((int) (bit >>> 3)) & 1 << (bit & 7)) == 0) return false;
+    }
+    return true;
+  }
+
+  private void addToBloom(long hi, long lo) {
+    long h1 = KsefIdCodec.hash(hi, lo);
+    long h2 = Long.rotateLeft(h1, 32) | 1;
+    long bits = (long) capacity * 8;
+    for (int i = 0; i < BLOOM_HASHES; i++) {
+      long bit = Math.floorMod(h1 + i * h2, bits);
+      int index = (int) (bit >>> 3);
+      bloom.put(index, (byte) (bloom.get(index) | 1 << (bit & 7)));
+    }
+  }
+
+  // Fits an int - capacity is at most MAX_CAPACITY.
+  private static int slotOffset(int slot) {
+    return HEADER_BYTES + slot * KsefIdCodec.KEY_BYTES;
+  }
+
+  private Path unpackedFile() {
+    Path file = props.getFile();
+    return file.resolveSibling(file.getFileName() + ".ids");
+  }
+
+  private void ensureOpen() {
+    if (opened) return;
+    if (!props.isEnabled()) throw new IllegalStateException("Dedup index is disabled (ksef.dedup.enabled)");
+
+    lock.writeLock().lock();
+    try {
+      if (!opened) open();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void open() throws IOException {
+    Path file = props.getFile();
+    if (file.toAbsolutePath().getParent() != null) Files.createDirectories(file.toAbsolutePath().getParent());
+    // Leftover of a crash during grow - the old file is still complete.
+    Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".tmp"));
+
+    if (Files.exists(file) && Files.size(file) >= HEADER_BYTES) {
+      channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      channel.read(header, 0);
+      header.flip();
+      if (header.getInt() != MAGIC || header.getInt() != VERSION)
+        throw new IOException("Not a dedup index file: " + file);
+      capacity = (int) header.getLong();
+      if (Integer.bitCount(capacity) != 1 || Files.size(file) != slotOffset(capacity))
+        throw new IOException("Dedup index file is damaged: " + file);
+    } else {
+      capacity = Math.min(Integer.highestOneBit(Math.max(16, props.getInitialCapacity() - 1)) << 1, MAX_CAPACITY);
+      channel = create(file, capacity);
+    }
+    table = map(channel, capacity);
+    if (props.isBloomFilter()) bloom = ByteBuffer.allocateDirect(capacity);
+
+    // Size is recounted (and the Bloom filter rebuilt) from the slots, the header value is only informative.
+    size = 0;
+    for (int slot = 0; slot < capacity; slot++) {
+      int offset = slotOffset(slot);
+      long lo = table.getLong(offset + 8);
+      if (lo == 0) continue;
+      size++;
+      if (bloom != null) addToBloom(table.getLong(offset), lo);
+    }
+    table.putLong(SIZE_OFFSET, size);
+
+    if (Files.exists(unpackedFile())) {
+      Files
+          .readAllLines(unpackedFile(), StandardCharsets.UTF_8)
+          .stream()
+          .filter(id -> !id.isBlank())
+          .forEach(unpacked::add);
+    }
+    opened = true;
+    log.info("Dedup index opened: {} ksefId(s), {} slots", size + unpacked.size(), capacity);
+  }
+
+  private static FileChannel create(Path path, int capacity) throws IOException {
+    FileChannel channel = FileChannel.open(
+        path,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE
+    );
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putInt(MAGIC).putInt(VERSION).putLong(capacity).putLong(0).putLong(0).flip();
+    channel.write(header, 0);
+    // Sparse file of the full size, unused slots read as zeros (= empty).
+    channel.write(ByteBuffer.allocate(1), slotOffset(capacity) - 1);
+    return channel;
+  }
+
+  private static MappedByteBuffer map(FileChannel channel, int capacity) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_WRITE, 0, slotOffset(capacity));
+  }
+}
@@ -0,0 +1,91 @@
+package pl.pbs.edu.ksefprocessdemo.dedup;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Set of ksefIds for the length of one run (e.g. dedup of overlapping export windows) - the open addressing table of
+ * KsefIdIndex, but in a direct buffer instead of a file. 16 bytes per slot at most 70% full is about 23 bytes per
+ * ksefId, off-heap - a HashSet of keys takes about 80 on the heap. Memory still grows linearly with the number of
+ * ksefIds, the buffer is freed with the set.
+ * <p>
+ * ksefIds that cannot be packed (KsefIdCodec) are kept in a small on-heap set. Not thread-safe.
+ */
+public final class KsefIdSet {
+
+  private static final int INITIAL_CAPACITY = 1024;
+  // Slot offsets must fit an int.
+  private static final int MAX_CAPACITY = 1 << 26;
+  private static final double MAX_LOAD = 0.7;
+
+  private final Set<String> unpacked = new HashSet<>();
+  private ByteBuffer table = ByteBuffer.allocateDirect(INITIAL_CAPACITY * KsefIdCodec.KEY_BYTES);
+  private int capacity = INITIAL_CAPACITY;
+  private int size;
+
+  public boolean contains(String ksefId) {
+    KsefIdCodec.Key key = KsefIdCodec.encode(ksefId);
+    if (key == null) return unpacked.contains(ksefId);
+    return table.getLong(slotOffset(find(key)) + 8) != 0;
+  }
+
+  /**
+   * @return false if the ksefId was already in the set.
+   */
+  public boolean add(String ksefId) {
+    KsefIdCodec.Key key = KsefIdCodec.encode(ksefId);
+    if (key == null) return unpacked.add(ksefId);
+
+    int slot = find(key);
+    if (table.getLong(slotOffset(slot) + 8) != 0) return false;
+    if (size + 1 > capacity * MAX_LOAD) {
+      grow();
+      slot = find(key);
+    }
+    put(slot, key);
+    size++;
+    return true;
+  }
+
+  public int size() {
+    return size + unpacked.size();
+  }
+
+  private int find(KsefIdCodec.Key key) {
+    int mask = capacity - 1;
+    int slot = (int) KsefIdCodec.hash(key.hi(), key.lo()) & mask;
+    while (true) {
+      int offset = slotOffset(slot);
+      long lo = table.getLong(offset + 8);
+      if (lo == 0 || lo == key.lo() && table.getLong(offset) == key.hi()) return slot;
+      slot = slot + 1 & mask;
+    }
+  }
+
+  private void put(int slot, KsefIdCodec.Key key) {
+    int offset = slotOffset(slot);
+    table.putLong(offset, key.hi());
+    table.putLong(offset + 8, key.lo());
+  }
+
+  private void grow() {
+    if (capacity >= MAX_CAPACITY) throw new IllegalStateException("ksefId set is full (" + size + " ksefIds)");
+
+    ByteBuffer oldTable = table;
+    int oldCapacity = capacity;
+    capacity *= 2;
+    table = ByteBuffer.allocateDirect(capacity * KsefIdCodec.KEY_BYTES);
+    for (int slot = 0; slot < oldCapacity; slot++) {
+      int offset = slotOffset(slot);
+      long lo = oldTable.getLong(offset + 8);
+      if (lo == 0) continue;
+      KsefIdCodec.Key key = new KsefIdCodec.Key(oldTable.getLong(offset), lo);
+      put(find(key), key);
+    }
+  }
+
+  private static int slotOffset(int slot) {
+    return slot * KsefIdCodec.KEY_BYTES;
+  }
+}
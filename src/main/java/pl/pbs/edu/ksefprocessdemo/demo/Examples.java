@@ -1,15 +1,19 @@
 package pl.pbs.edu.ksefprocessdemo.demo;
 
-import jakarta.annotation.PostConstruct;
 import jakarta.xml.bind.JAXBException;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 import pl.akmf.ksef.sdk.client.interfaces.KSeFClient;
 import pl.akmf.ksef.sdk.client.model.ApiException;
 
 import pl.pbs.edu.ksefprocessdemo.auth.KsefAuthorizationProvider;
 import pl.pbs.edu.ksefprocessdemo.generated.Faktura;
-import pl.pbs.edu.ksefprocessdemo.model.KsefInvoice;
+import pl.pbs.edu.ksefprocessdemo.model.KsefInvoiceHeader;
 import pl.pbs.edu.ksefprocessdemo.service.KsefIntegrationService;
 
 import java.io.File;
@@ -18,36 +22,75 @@ import java.util.Set;
 
 import static pl.pbs.edu.ksefprocessdemo.utils.KsefUtils.*;
 
+/**
+ * Demo workloads, opt-in: _ksef.demo.jobs_ lists the ones to run (file, api, package), none by default. They start
+ * once the application is ready, on their own thread, so they never hold up startup. With _ksef.demo.exit-when-done_
+ * the application exits after them (one-off batch runs).
+ */
 @Service
 @Slf4j
 public class Examples {
 
+  public static final String JOB_FILE = "file";
+  public static final String JOB_API = "api";
+  public static final String JOB_PACKAGE = "package";
 
   private final KSeFClient ksefClient;
   private final KsefAuthorizationProvider kap;
   private final KsefIntegrationService ksefIntegrationService;
+  private final ApplicationContext context;
+  @Value("${ksef.demo.jobs:}")
+  private Set<String> jobs;
+  @Value("${ksef.demo.exit-when-done:false}")
+  private boolean exitWhenDone;
+  @Value("${ksef.demo.mock-file:src/main/java/pl/pbs/edu/ksefprocessdemo/demo/mock.xml}")
+  private File mockFile;
 
   public Examples(
       KSeFClient ksefClient,
       KsefAuthorizationProvider ksefAuthorizationProvider,
-      KsefIntegrationService ksefIntegrationService
+      KsefIntegrationService ksefIntegrationService,
+      ApplicationContext context
   ) {
     this.ksefClient = ksefClient;
     this.kap = ksefAuthorizationProvider;
     this.ksefIntegrationService = ksefIntegrationService;
+    this.context = context;
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void runJobs() {
+    if (jobs.isEmpty()) return;
+    jobs
+        .stream()
+        .filter(job -> !Set.of(JOB_FILE, JOB_API, JOB_PACKAGE).contains(job))
+        .forEach(job -> log.warn("[EXAMPLE] Unknown demo job: {}", job));
+
+    Thread.ofVirtual().name("ksef-demo").start(() -> {
+      int exitCode = 0;
+      try {
+        if (jobs.contains(JOB_FILE)) processFileInvoice();
+        if (jobs.contains(JOB_API)) processApiInvoice();
+        if (jobs.contains(JOB_PACKAGE)) handleInvoicePackage();
+      } catch (Exception e) {
+        log.error("[EXAMPLE] Demo job failed", e);
+        exitCode = 1;
+      }
+      if (exitWhenDone) {
+        int code = exitCode;
+        System.exit(SpringApplication.exit(context, () -> code));
+      }
+    });
   }
 
   // Example No. 1 - File Extraction
-  @PostConstruct
   public void processFileInvoice() throws JAXBException {
     log.info("[EXAMPLE] Processing file invoice...");
-    Faktura faktura = unwrapInvoice(new File(
-        "src\\main\\java\\pl\\pbs\\edu\\ksefprocessdemo\\demo\\mock.xml"));
+    Faktura faktura = unwrapInvoice(mockFile);
     log.info("[FAKUTRA TEST]: " + faktura.getPodmiot1().getDaneIdentyfikacyjne().getNIP());
   }
 
   // Example No. 2 - API extraction
-  @PostConstruct
   public void processApiInvoice() throws ApiException, JAXBException {
     log.info("[EXAMPLE] Processing API invoice...");
     byte[] rawFaktura = ksefClient.getInvoice(
@@ -59,7 +102,6 @@ public class Examples {
   }
 
   // Example No. 2 - API package download call
-  @PostConstruct
   public void handleInvoicePackage(){
     handleInvoicePackage(OffsetDateTime.now().minusYears(1),
         OffsetDateTime.now().plusDays(10));
@@ -69,19 +111,17 @@ public class Examples {
   public void handleInvoicePackage(OffsetDateTime dateFrom, OffsetDateTime dateTo) {
     log.info("[EXAMPLE] Processing package of invoices...");
 
-      Set<KsefInvoice> invoices = ksefIntegrationService.fetchInvoicePackageBetween(dateFrom, dateTo);
-      invoices.forEach(invoice -> {
+      long count = ksefIntegrationService.forEachInvoiceBetween(dateFrom, dateTo, invoice -> {
         log.info("=======FAKTURA START==============");
         log.info("KSeF ID Number: {}", invoice.getKsefId());
-        log.info(invoice.getInvoiceData().getPodmiot1().getDaneIdentyfikacyjne().getNazwa());
+        // Header is enough here, so with ksef.parsing.lazy-binding the full Faktura is never bound.
+        KsefInvoiceHeader header = invoice.getHeader();
+        log.info(header.seller().name());
         log.info("Sprzedał towar X do.:");
-        log.info(invoice.getInvoiceData().getPodmiot2().getDaneIdentyfikacyjne().getNazwa());
-        if (invoice.getInvoiceData().getPodmiot3() != null && !invoice.getInvoiceData().getPodmiot3().isEmpty()) {
+        log.info(header.buyer().name());
+        if (!header.thirdParties().isEmpty()) {
           log.info("PODMIOT 3:");
-          invoice
-              .getInvoiceData()
-              .getPodmiot3()
-              .forEach(podmiot3 -> log.info(podmiot3.getDaneIdentyfikacyjne().getNazwa()));
+          header.thirdParties().forEach(podmiot3 -> log.info(podmiot3.name()));
           log.info("PODMIOT 3 - END");
         }
         log.info("========FAKTURA END===============");
@@ -89,6 +129,7 @@ public class Examples {
         log.info("");
         log.info("");
       });
+      log.info("[EXAMPLE] Processed {} invoice(s)", count);
 
     }
 
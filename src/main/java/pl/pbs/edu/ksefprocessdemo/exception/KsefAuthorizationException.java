@@ -0,0 +1,8 @@
+package pl.pbs.edu.ksefprocessdemo.exception;
+
+public class KsefAuthorizationException extends RuntimeException {
+
+  public KsefAuthorizationException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
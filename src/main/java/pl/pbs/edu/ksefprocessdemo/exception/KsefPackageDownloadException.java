@@ -0,0 +1,22 @@
+package pl.pbs.edu.ksefprocessdemo.exception;
+
+import lombok.Getter;
+
+@Getter
+public class KsefPackageDownloadException extends RuntimeException {
+
+  private final String partName;
+  private final int statusCode;
+
+  public KsefPackageDownloadException(String partName, int statusCode) {
+    super(String.format("Downloading package part %s failed with HTTP status: %d", partName, statusCode));
+    this.partName = partName;
+    this.statusCode = statusCode;
+  }
+
+  public KsefPackageDownloadException(String partName, Throwable cause) {
+    super(String.format("Downloading package part %s failed: %s", partName, cause.getMessage()), cause);
+    this.partName = partName;
+    this.statusCode = -1;
+  }
+}
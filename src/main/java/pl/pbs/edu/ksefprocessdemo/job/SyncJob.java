@@ -0,0 +1,159 @@
+package pl.pbs.edu.ksefprocessdemo.job;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import pl.akmf.ksef.sdk.client.model.invoice.InvoiceExportPackage;
+import pl.pbs.edu.ksefprocessdemo.service.ExportCancellation;
+
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sync job submitted over HTTP: its state, progress and the NDJSON file its invoices go to. Readers of the file
+ * wait on the job (see awaitResults) for more lines until it finishes.
+ */
+@Getter
+public class SyncJob {
+
+  public enum Status {
+    QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED
+  }
+
+  /**
+   * Snapshot of the job as reported by the API.
+   *
+   * @param packageBytes Size of the exported packages, as reported by KSeF.
+   * @param resultBytes  Length of the NDJSON results available for reading.
+   */
+  public record Progress(
+      String id,
+      Status status,
+      SyncJobRequest request,
+      long packages,
+      long invoices,
+      long packageBytes,
+      long resultBytes,
+      OffsetDateTime submittedAt,
+      OffsetDateTime startedAt,
+      OffsetDateTime finishedAt,
+      String error
+  ) {
+  }
+
+  private final String id;
+  private final SyncJobRequest request;
+  private final Path resultFile;
+  private final OffsetDateTime submittedAt = OffsetDateTime.now();
+  private volatile Status status = Status.QUEUED;
+  private volatile OffsetDateTime startedAt;
+  private volatile OffsetDateTime finishedAt;
+  private volatile String error;
+  @Getter(AccessLevel.NONE)
+  private final LongAdder packages = new LongAdder();
+  @Getter(AccessLevel.NONE)
+  private final LongAdder invoices = new LongAdder();
+  @Getter(AccessLevel.NONE)
+  private final LongAdder packageBytes = new LongAdder();
+  @Getter(AccessLevel.NONE)
+  private long resultBytes;
+  @Getter(AccessLevel.NONE)
+  private boolean cancelRequested;
+  @Getter(AccessLevel.PACKAGE)
+  private final ExportCancellation cancellation = new ExportCancellation();
+  @Getter(AccessLevel.NONE)
+  private Thread thread;
+
+  SyncJob(String id, SyncJobRequest request, Path resultFile) {
+    this.id = id;
+    this.request = request;
+    this.resultFile = resultFile;
+  }
+
+  public boolean isFinished() {
+    return finishedAt != null;
+  }
+
+  public synchronized boolean isCancelRequested() {
+    return cancelRequested;
+  }
+
+  public synchronized long getResultBytes() {
+    return resultBytes;
+  }
+
+  public synchronized Progress progress() {
+    return new Progress(id, status, request, packages.sum(), invoices.sum(), packageBytes.sum(), resultBytes,
+        submittedAt, startedAt, finishedAt, error);
+  }
+
+  /**
+   * Cancels a queued job, or stops a running one: no more windows are exported, pending status polls stop and the
+   * package being parsed stops at its next invoice.
+   *
+   * @return False if the job had already finished.
+   */
+  public boolean cancel() {
+    synchronized (this) {
+      if (isFinished()) return false;
+      cancelRequested = true;
+      // Wakes a job waiting for a slot - a running one waits for its export to wind down instead.
+      if (thread != null && status == Status.QUEUED) thread.interrupt();
+    }
+    cancellation.cancel();
+    return true;
+  }
+
+  /**
+   * Waits until there are results past the offset, the job finishes or the timeout passes.
+   *
+   * @return Length of the results available for reading.
+   */
+  public synchronized long awaitResults(long offset, long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    long remaining;
+    while (resultBytes <= offset && !isFinished() && (remaining = deadline - System.nanoTime()) > 0) {
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return resultBytes;
+  }
+
+  /**
+   * Binds the job to the thread that runs it, so it can be interrupted on cancel.
+   *
+   * @return False if the job was cancelled before it got a thread.
+   */
+  synchronized boolean attach(Thread runner) {
+    if (cancelRequested) return false;
+    thread = runner;
+    return true;
+  }
+
+  synchronized void started() {
+    status = Status.RUNNING;
+    startedAt = OffsetDateTime.now();
+  }
+
+  void invoiceWritten() {
+    invoices.increment();
+  }
+
+  void packageDone(InvoiceExportPackage exportPackage) {
+    packages.increment();
+    packageBytes.add(exportPackage.getSize());
+  }
+
+  synchronized void resultsFlushed(long length) {
+    resultBytes = length;
+    notifyAll();
+  }
+
+  synchronized void finish(Status finalStatus, Throwable cause) {
+    status = finalStatus;
+    error = cause == null ? null : cause.getMessage();
+    finishedAt = OffsetDateTime.now();
+    thread = null;
+    notifyAll();
+  }
+}
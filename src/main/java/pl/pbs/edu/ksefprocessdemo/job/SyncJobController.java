@@ -0,0 +1,85 @@
+package pl.pbs.edu.ksefprocessdemo.job;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * HTTP API of sync jobs. A job is submitted with POST (answered right away with 202 and the job), its progress is
+ * read with GET and its invoices - one JSON object per line - are streamed from _/invoices_ while it runs.
+ */
+@RestController
+@RequestMapping("/api/sync-jobs")
+public class SyncJobController {
+
+  private final SyncJobService syncJobService;
+
+  public SyncJobController(SyncJobService syncJobService) {
+    this.syncJobService = syncJobService;
+  }
+
+  @PostMapping
+  public ResponseEntity<SyncJob.Progress> submit(@RequestBody SyncJobRequest request, UriComponentsBuilder uri) {
+    SyncJob job;
+    try {
+      job = syncJobService.submit(request);
+    } catch (IllegalArgumentException e) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+    } catch (RejectedExecutionException e) {
+      throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, e.getMessage());
+    }
+    return ResponseEntity
+        .accepted()
+        .location(uri.path("/api/sync-jobs/{id}").build(job.getId()))
+        .body(job.progress());
+  }
+
+  @GetMapping
+  public List<SyncJob.Progress> list() {
+    return syncJobService.all().stream().map(SyncJob::progress).toList();
+  }
+
+  @GetMapping("/{id}")
+  public SyncJob.Progress get(@PathVariable String id) {
+    return find(id).progress();
+  }
+
+  /**
+   * Results so far and then new ones as they are parsed, until the job finishes or _ksef.jobs.stream-timeout_
+   * passes. A stream that ends while the job still runs is continued with the number of bytes read as the offset.
+   *
+   * @param offset Bytes to skip, to continue an interrupted read.
+   */
+  @GetMapping(value = "/{id}/invoices", produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public StreamingResponseBody invoices(@PathVariable String id, @RequestParam(defaultValue = "0") long offset) {
+    SyncJob job = find(id);
+    return out -> syncJobService.streamResults(job, offset, out);
+  }
+
+  @DeleteMapping("/{id}")
+  public SyncJob.Progress cancel(@PathVariable String id) {
+    SyncJob job = find(id);
+    job.cancel();
+    return job.progress();
+  }
+
+  private SyncJob find(String id) {
+    return syncJobService
+        .find(id)
+        .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No sync job " + id));
+  }
+}
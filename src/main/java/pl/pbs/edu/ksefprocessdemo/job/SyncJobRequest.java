@@ -0,0 +1,25 @@
+package pl.pbs.edu.ksefprocessdemo.job;
+
+import pl.akmf.ksef.sdk.client.model.invoice.InvoiceQuerySubjectType;
+
+import java.time.OffsetDateTime;
+
+/**
+ * @param subjectType Role of the NIP on the invoices, SUBJECT2 (purchase invoices) when not given.
+ * @param nip         Registered tenant to sync, the default NIP (_ksef.nip_) when not given.
+ * @param includeXml  Put the original invoice XML in every result line.
+ */
+public record SyncJobRequest(
+    OffsetDateTime from,
+    OffsetDateTime to,
+    InvoiceQuerySubjectType subjectType,
+    String nip,
+    boolean includeXml
+) {
+
+  public SyncJobRequest {
+    if (from == null || to == null) throw new IllegalArgumentException("Both from and to are required");
+    if (!from.isBefore(to)) throw new IllegalArgumentException("from must be before to");
+    if (subjectType == null) subjectType = InvoiceQuerySubjectType.SUBJECT2;
+  }
+}
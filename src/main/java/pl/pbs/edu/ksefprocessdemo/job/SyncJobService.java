@@ -0,0 +1,325 @@
+package pl.pbs.edu.ksefprocessdemo.job;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import pl.pbs.edu.ksefprocessdemo.config.props.SyncJobProps;
+import pl.pbs.edu.ksefprocessdemo.model.KsefInvoice;
+import pl.pbs.edu.ksefprocessdemo.model.KsefInvoiceHeader;
+import pl.pbs.edu.ksefprocessdemo.service.KsefIntegrationService;
+import pl.pbs.edu.ksefprocessdemo.tenant.KsefTenantRegistry;
+import pl.pbs.edu.ksefprocessdemo.tenant.TenantContext;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.OffsetDateTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Runs sync jobs submitted over HTTP in the background: _ksef.jobs.max-concurrent_ at once on virtual threads, up to
+ * _ksef.jobs.queue-capacity_ more wait for a slot. Every invoice is appended to the job's NDJSON file as soon as it is
+ * parsed and readers follow the file while the job runs, so results can be consumed long before the whole range is
+ * exported. Jobs live in memory only, finished ones are dropped after _ksef.jobs.retention_.
+ */
+@Component
+@Slf4j
+public class SyncJobService {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final long READ_POLL_SECONDS = 1;
+
+  /**
+   * One NDJSON line. The XML is there only when the job was submitted with _includeXml_.
+   */
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  record ResultLine(String ksefId, KsefInvoiceHeader header, String xml) {
+  }
+
+  private final SyncJobProps props;
+  private final KsefIntegrationService ksefIntegrationService;
+  private final KsefTenantRegistry tenantRegistry;
+  private final ObjectMapper objectMapper = new ObjectMapper()
+      .registerModule(new JavaTimeModule())
+      .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+  private final Map<String, SyncJob> jobs = new ConcurrentHashMap<>();
+  private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+      Thread.ofVirtual().name("ksef-job-", 0).factory()
+  );
+  private final Semaphore running;
+  private final AtomicInteger queued = new AtomicInteger();
+
+  public SyncJobService(
+      SyncJobProps props,
+      KsefIntegrationService ksefIntegrationService,
+      KsefTenantRegistry tenantRegistry
+  ) {
+    this.props = props;
+    this.ksefIntegrationService = ksefIntegrationService;
+    this.tenantRegistry = tenantRegistry;
+    this.running = new Semaphore(Math.max(1, props.getMaxConcurrent()));
+  }
+
+  /**
+   * @throws IllegalArgumentException   NIP of the request is not a registered tenant.
+   * @throws RejectedExecutionException The queue is full.
+   */
+  public SyncJob submit(SyncJobRequest request) {
+    KsefIntegrationService integrationService = request.nip() == null
+        ? ksefIntegrationService
+        : tenantRegistry
+            .find(request.nip())
+            .map(TenantContext::integrationService)
+            .orElseThrow(() -> new IllegalArgumentException("Unknown tenant: " + request.nip()));
+
+    // Jobs that have not got a slot yet - the ones about to take a free slot are not queued.
+    if (queued.incrementAndGet() > Math.max(0, props.getQueueCapacity()) + running.availablePermits()) {
+      queued.decrementAndGet();
+      throw new RejectedExecutionException("Sync job queue is full");
+    }
+    String id = UUID.randomUUID().toString();
+    SyncJob job;
+    try {
+      Files.createDirectories(props.getDirectory());
+      job = new SyncJob(id, request, Files.createFile(props.getDirectory().resolve(id + ".ndjson")));
+    } catch (IOException e) {
+      queued.decrementAndGet();
+      throw new UncheckedIOException(e);
+    }
+    jobs.put(id, job);
+    executor.execute(() -> run(job, integrationService));
+    log.info("Sync job {} queued: {} - {} ({})", id, request.from(), request.to(), request.subjectType());
+    return job;
+  }
+
+  public Optional<SyncJob> find(String id) {
+    return Optional.ofNullable(jobs.get(id));
+  }
+
+  /**
+   * @return All jobs, newest first.
+   */
+  public List<SyncJob> all() {
+    return jobs
+        .values()
+        .stream()
+        .sorted(Comparator.comparing(SyncJob::getSubmittedAt).reversed())
+        .toList();
+  }
+
+  /**
+   * Copies the job's results from the given byte offset to the output, following the file until the job finishes
+   * or _ksef.jobs.stream-timeout_ passes. A reader continues from the number of bytes it has read - after a lost
+   * connection, or when the stream ended before the job did (see the job's status).
+   */
+  public void streamResults(SyncJob job, long offset, OutputStream out) throws IOException {
+    long deadline = System.nanoTime() + props.getStreamTimeout().toNanos();
+    try (FileChannel results = FileChannel.open(job.getResultFile(), StandardOpenOption.READ)) {
+      WritableByteChannel target = Channels.newChannel(out);
+      long position = Math.max(0, offset);
+      while (true) {
+        boolean finished = job.isFinished();
+        long available = job.awaitResults(position, READ_POLL_SECONDS, TimeUnit.SECONDS);
+        if (available > position) {
+          position += results.transferTo(position, available - position, target);
+          out.flush();
+        } else if (finished || System.nanoTime() - deadline > 0) {
+          return;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Streaming of sync job " + job.getId() + " interrupted");
+    }
+  }
+
+  @Scheduled(fixedDelayString = "${ksef.jobs.cleanup-interval:PT10M}")
+  public void dropExpired() {
+    OffsetDateTime threshold = OffsetDateTime.now().minus(props.getRetention());
+    jobs.values().removeIf(job -> {
+      if (!job.isFinished() || job.getFinishedAt().isAfter(threshold)) return false;
+      deleteQuietly(job.getResultFile());
+      return true;
+    });
+
+    // Results of jobs from before a restart.
+    if (!Files.isDirectory(props.getDirectory())) return;
+    try (Stream<Path> files = Files.list(props.getDirectory())) {
+      files
+          .filter(file -> !jobs.containsKey(file.getFileName().toString().replace(".ndjson", "")))
+          .filter(file -> isOlderThan(file, threshold))
+          .forEach(SyncJobService::deleteQuietly);
+    } catch (IOException e) {
+      log.warn("Could not clean up {}: {}", props.getDirectory(), e.getMessage());
+    }
+  }
+
+  private void run(SyncJob job, KsefIntegrationService integrationService) {
+    if (!job.attach(Thread.currentThread())) {
+      queued.decrementAndGet();
+      job.finish(SyncJob.Status.CANCELLED, null);
+      return;
+    }
+    try {
+      try {
+        running.acquire();
+      } finally {
+        queued.decrementAndGet();
+      }
+      try {
+        job.started();
+        execute(job, integrationService);
+      } finally {
+        running.release();
+      }
+      job.finish(SyncJob.Status.COMPLETED, null);
+      log.info("Sync job {} completed: {} invoice(s)", job.getId(), job.progress().invoices());
+    } catch (InterruptedException | CancellationException e) {
+      job.finish(SyncJob.Status.CANCELLED, null);
+      log.info("Sync job {} cancelled", job.getId());
+    } catch (Exception e) {
+      job.finish(job.isCancelRequested() ? SyncJob.Status.CANCELLED : SyncJob.Status.FAILED, e);
+      log.warn("Sync job {} failed: {}", job.getId(), e.getMessage());
+    }
+  }
+
+  private void execute(SyncJob job, KsefIntegrationService integrationService) throws Exception {
+    SyncJobRequest request = job.getRequest();
+    try (ResultWriter writer = new ResultWriter(job)) {
+      CompletableFuture<Long> fetch = integrationService.fetchInvoicesBetweenAsync(
+          request.from(),
+          request.to(),
+          request.subjectType(),
+          invoice -> {
+            writer.write(toLine(invoice, request.includeXml()));
+            job.invoiceWritten();
+          },
+          exportPackage -> {
+            writer.flush();
+            job.packageDone(exportPackage);
+          },
+          job.getCancellation()
+      );
+      try {
+        fetch.get();
+      } catch (InterruptedException e) {
+        // Cancelling the future would not reach the export, its windows run on other threads.
+        job.getCancellation().cancel();
+        throw e;
+      } catch (ExecutionException e) {
+        throw e.getCause() instanceof Exception cause ? cause : e;
+      }
+    }
+  }
+
+  private byte[] toLine(KsefInvoice invoice, boolean includeXml) {
+    byte[] rawXml = includeXml ? invoice.getRawXml() : null;
+    ResultLine line = new ResultLine(
+        invoice.getKsefId(),
+        invoice.getHeader(),
+        rawXml == null ? null : new String(rawXml, StandardCharsets.UTF_8)
+    );
+    try {
+      return objectMapper.writeValueAsBytes(line);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static boolean isOlderThan(Path file, OffsetDateTime threshold) {
+    try {
+      return Files.getLastModifiedTime(file).toInstant().isBefore(threshold.toInstant());
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static void deleteQuietly(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      log.warn("Could not delete {}: {}", file, e.getMessage());
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    jobs.values().forEach(SyncJob::cancel);
+    executor.shutdownNow();
+  }
+
+  /**
+   * Appends lines to the result file. Lines are made visible to readers in whole lines only - every
+   * BUFFER_SIZE bytes and after every package.
+   */
+  private static class ResultWriter implements AutoCloseable {
+
+    private final SyncJob job;
+    private final OutputStream out;
+    private long written;
+    private long flushed;
+
+    ResultWriter(SyncJob job) throws IOException {
+      this.job = job;
+      this.out = new BufferedOutputStream(
+          Files.newOutputStream(job.getResultFile(), StandardOpenOption.TRUNCATE_EXISTING),
+          BUFFER_SIZE
+      );
+    }
+
+    synchronized void write(byte[] line) {
+      try {
+        out.write(line);
+        out.write('\n');
+        written += line.length + 1;
+        if (written - flushed >= BUFFER_SIZE) flush();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    synchronized void flush() {
+      try {
+        out.flush();
+        flushed = written;
+        job.resultsFlushed(flushed);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      flush();
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,188 @@
+package pl.pbs.edu.ksefprocessdemo.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.springframework.stereotype.Component;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+import pl.akmf.ksef.sdk.client.model.invoice.InvoiceExportPackage;
+
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters of the fetch pipeline, one place so names and tags stay consistent:
+ * <ul>
+ *   <li>_ksef.api.calls_ / _ksef.api.errors_ - latency of every KSeF call and failures by HTTP status</li>
+ *   <li>_ksef.pipeline.stage_ - time spent in download, decrypt, unzip, bind and (separate) validate, each stage
+ *   without the ones below it; _ksef.pipeline.bytes_ - bytes each stage produced</li>
+ *   <li>_ksef.pipeline.package.wait_ - how long unzip waited for decrypted bytes (parts still downloading)</li>
+ *   <li>_ksef.package.*_ - invoices and parts per package, truncated packages</li>
+ *   <li>_ksef.export.wait_ / _ksef.export.poll.iterations_ - how long and how many probes until a package is ready</li>
+ *   <li>_ksef.auth.renewals_ - token renewals by method (refresh / full) and outcome</li>
+ *   <li>_ksef.ratelimit.wait_ - how long calls queued in the client-side rate limiter</li>
+ *   <li>_ksef.invoice.fetches_ - invoices fetched by ksefId, by source (memory cache / archive / KSeF)</li>
+ *   <li>_ksef.validation.invoices_ - invoices validated against the FA(3) schema, by outcome (valid / invalid)</li>
+ * </ul>
+ * A sync run is a _ksef.sync_ observation, every export inside it a child _ksef.export_ observation - with a
+ * tracing bridge on the classpath they become spans of one trace.
+ */
+@Component
+public class KsefMetrics {
+
+  public static final String STAGE_DOWNLOAD = "download";
+  public static final String STAGE_DECRYPT = "decrypt";
+  public static final String STAGE_UNZIP = "unzip";
+  public static final String STAGE_BIND = "bind";
+  public static final String STAGE_VALIDATE = "validate";
+
+  private final MeterRegistry registry;
+  private final ObservationRegistry observationRegistry;
+  private final Map<String, Timer> stageTimers = new ConcurrentHashMap<>();
+
+  public KsefMetrics(MeterRegistry registry, ObservationRegistry observationRegistry) {
+    this.registry = registry;
+    this.observationRegistry = observationRegistry;
+  }
+
+  /**
+   * Records nothing - for code running outside Spring (benchmarks, tools).
+   */
+  public static KsefMetrics noop() {
+    return new KsefMetrics(new CompositeMeterRegistry(), ObservationRegistry.NOOP);
+  }
+
+  @FunctionalInterface
+  public interface ApiCall<T> {
+    T call() throws ApiException;
+  }
+
+  /**
+   * Times a KSeF call, failures are also counted by their HTTP status.
+   */
+  public <T> T api(String operation, ApiCall<T> call) throws ApiException {
+    long start = System.nanoTime();
+    String outcome = "error";
+    try {
+      T result = call.call();
+      outcome = "success";
+      return result;
+    } catch (ApiException e) {
+      apiError(operation, e.getCode());
+      throw e;
+    } catch (RuntimeException e) {
+      apiError(operation, 0);
+      throw e;
+    } finally {
+      registry
+          .timer("ksef.api.calls", "operation", operation, "outcome", outcome)
+          .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * @param status HTTP status, 0 when no response was received.
+   */
+  public void apiError(String operation, int status) {
+    registry.counter("ksef.api.errors", "operation", operation, "status", String.valueOf(status)).increment();
+  }
+
+  public void stage(String stage, long nanos) {
+    stageTimers
+        .computeIfAbsent(stage, name -> Timer.builder("ksef.pipeline.stage").tag("stage", name).register(registry))
+        .record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  public void stageBytes(String stage, long bytes) {
+    DistributionSummary
+        .builder("ksef.pipeline.bytes")
+        .baseUnit(BaseUnits.BYTES)
+        .tag("stage", stage)
+        .register(registry)
+        .record(bytes);
+  }
+
+  /**
+   * @param upstream Metered stream the new one reads from, its time is subtracted. Null for the bottom stage.
+   * @return Stream recording the stage once it is closed.
+   */
+  public MeteredInputStream meter(InputStream in, String stage, MeteredInputStream upstream) {
+    return new MeteredInputStream(in, upstream, metered -> {
+      stage(stage, metered.getExclusiveNanos());
+      stageBytes(stage, metered.getBytes());
+    });
+  }
+
+  /**
+   * Decrypted package as read by the unzip stage, records how long it waited for the stages below.
+   */
+  public MeteredZipInputStream meterPackage(InputStream decryptedPackage) {
+    MeteredInputStream upstream = new MeteredInputStream(decryptedPackage, null, metered -> registry
+        .timer("ksef.pipeline.package.wait")
+        .record(metered.getNanos(), TimeUnit.NANOSECONDS));
+    return new MeteredZipInputStream(upstream, this);
+  }
+
+  public void exportedPackage(InvoiceExportPackage exportPackage) {
+    DistributionSummary.builder("ksef.package.invoices").register(registry).record(exportPackage.getInvoiceCount());
+    if (exportPackage.getParts() != null) {
+      DistributionSummary.builder("ksef.package.parts").register(registry).record(exportPackage.getParts().size());
+    }
+    if (Boolean.TRUE.equals(exportPackage.getIsTruncated())) {
+      registry.counter("ksef.package.truncated").increment();
+    }
+  }
+
+  public void exportPolled(int iterations, long waitNanos, boolean ready) {
+    String outcome = ready ? "ready" : "failed";
+    registry.timer("ksef.export.wait", "outcome", outcome).record(waitNanos, TimeUnit.NANOSECONDS);
+    DistributionSummary
+        .builder("ksef.export.poll.iterations")
+        .tag("outcome", outcome)
+        .register(registry)
+        .record(iterations);
+  }
+
+  /**
+   * @param method _refresh_ or _full_
+   */
+  public void tokenRenewal(String method, boolean success) {
+    registry.counter("ksef.auth.renewals", "method", method, "outcome", success ? "success" : "error").increment();
+  }
+
+  public void invoiceFetched(String source) {
+    registry.counter("ksef.invoice.fetches", "source", source).increment();
+  }
+
+  public void validatedInvoice(boolean valid) {
+    registry.counter("ksef.validation.invoices", "outcome", valid ? "valid" : "invalid").increment();
+  }
+
+  public void rateLimitWait(String operationClass, long nanos) {
+    registry.timer("ksef.ratelimit.wait", "class", operationClass).record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param kind Which sync runs - export, incremental, diff.
+   */
+  public Observation syncObservation(String kind) {
+    return Observation
+        .createNotStarted("ksef.sync", observationRegistry)
+        .lowCardinalityKeyValue("kind", kind);
+  }
+
+  /**
+   * Child of the current observation (the sync run), when there is one in scope.
+   */
+  public Observation exportObservation(String dateType) {
+    return Observation
+        .createNotStarted("ksef.export", observationRegistry)
+        .lowCardinalityKeyValue("date.type", dateType);
+  }
+}
@@ -0,0 +1,72 @@
+package pl.pbs.edu.ksefprocessdemo.metrics;
+
+import lombok.Getter;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+
+/**
+ * Counts bytes read and the time spent inside read calls. Stages are stacked (cipher reads from the HTTP body, ZIP
+ * from the cipher), so the time of the metered stream below is subtracted - each stage gets only its own share.
+ * Meant to be read by one thread at a time.
+ */
+public class MeteredInputStream extends FilterInputStream {
+
+  private final MeteredInputStream upstream;
+  private final Consumer<MeteredInputStream> onClose;
+  @Getter
+  private long nanos;
+  @Getter
+  private long bytes;
+  private boolean closed;
+
+  MeteredInputStream(InputStream in, MeteredInputStream upstream, Consumer<MeteredInputStream> onClose) {
+    super(in);
+    this.upstream = upstream;
+    this.onClose = onClose;
+  }
+
+  public long getExclusiveNanos() {
+    return Math.max(0, upstream == null ? nanos : nanos - upstream.getNanos());
+  }
+
+  @Override
+  public int read() throws IOException {
+    long start = System.nanoTime();
+    int b = super.read();
+    nanos += System.nanoTime() - start;
+    if (b >= 0) bytes++;
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    long start = System.nanoTime();
+    int n = super.read(b, off, len);
+    nanos += System.nanoTime() - start;
+    if (n > 0) bytes += n;
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long start = System.nanoTime();
+    long skipped = super.skip(n);
+    nanos += System.nanoTime() - start;
+    return skipped;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      if (!closed) {
+        closed = true;
+        onClose.accept(this);
+      }
+    }
+  }
+}
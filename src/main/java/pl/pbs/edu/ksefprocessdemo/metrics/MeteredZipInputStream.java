@@ -0,0 +1,56 @@
+package pl.pbs.edu.ksefprocessdemo.metrics;
+
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * ZipInputStream recording the _unzip_ stage (inflating and entry headers, without the time spent reading the
+ * package below) once it is closed.
+ */
+public class MeteredZipInputStream extends ZipInputStream {
+
+  private final MeteredInputStream upstream;
+  private final KsefMetrics metrics;
+  private long nanos;
+  private long bytes;
+  private boolean closed;
+
+  MeteredZipInputStream(MeteredInputStream upstream, KsefMetrics metrics) {
+    super(upstream);
+    this.upstream = upstream;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public ZipEntry getNextEntry() throws IOException {
+    long start = System.nanoTime();
+    try {
+      return super.getNextEntry();
+    } finally {
+      nanos += System.nanoTime() - start;
+    }
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    long start = System.nanoTime();
+    int n = super.read(b, off, len);
+    nanos += System.nanoTime() - start;
+    if (n > 0) bytes += n;
+    return n;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      if (!closed) {
+        closed = true;
+        metrics.stage(KsefMetrics.STAGE_UNZIP, Math.max(0, nanos - upstream.getNanos()));
+        metrics.stageBytes(KsefMetrics.STAGE_UNZIP, bytes);
+      }
+    }
+  }
+}
@@ -0,0 +1,404 @@
+package pl.pbs.edu.ksefprocessdemo.model;
+
+import jakarta.xml.bind.JAXBException;
+import pl.pbs.edu.ksefprocessdemo.dedup.KsefIdCodec;
+import pl.pbs.edu.ksefprocessdemo.generated.Faktura;
+import pl.pbs.edu.ksefprocessdemo.model.KsefInvoiceHeader.Party;
+import pl.pbs.edu.ksefprocessdemo.utils.FakturaUnmarshaller;
+import pl.pbs.edu.ksefprocessdemo.utils.KsefInvoiceHeaderReader;
+import pl.pbs.edu.ksefprocessdemo.utils.KsefUtils;
+
+import javax.xml.stream.XMLStreamException;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar in-memory form of many invoices, for bulk work (reports, reconciliation) over more invoices than fit in
+ * memory as KsefInvoice / Faktura objects. Instead of an object graph per invoice it keeps a handful of primitive
+ * arrays:
+ * <ul>
+ *   <li>strings that repeat (NIPs, party names, currencies, units, VAT rates) are dictionary-encoded per batch - each
+ *   distinct value is stored once, columns hold int codes. Invoice numbers (P_2) and line names (P_7) are (nearly)
+ *   unique, a dictionary would only add its entries to them - they are kept as they are,</li>
+ *   <li>amounts are scaled longs (2 decimal places, unit prices 8, quantities 6 - as many as FA(3) allows), a value
+ *   that does not fit is kept as BigDecimal aside,</li>
+ *   <li>dates are epoch days, ksefIds two longs (KsefIdCodec),</li>
+ *   <li>line items of all invoices share one set of columns, each invoice points to its range.</li>
+ * </ul>
+ * Only the header fields and the line items are kept. For the full Faktura the batch must keep the (deflated) XML,
+ * see _keepXml_. Amounts come back with the scale of their column, e.g. 100 as 100.00.
+ * <p>
+ * Adding is thread-safe (the XML is read outside the lock), reading is meant for a batch that is no longer filled.
+ * Once filled, _seal_ it to drop what only adding needs.
+ */
+public final class CompactInvoiceBatch {
+
+  private static final int NULL = -1;
+  private static final int AMOUNT_SCALE = 2;
+  private static final int PRICE_SCALE = 8;
+  private static final int QUANTITY_SCALE = 6;
+
+  private final boolean keepXml;
+  // Value -> code, only for adding. Null once sealed.
+  private Map<String, Integer> codes = new HashMap<>();
+  private final ArrayList<String> dictionary = new ArrayList<>();
+
+  // Per invoice.
+  private int size;
+  private final LongColumn idHi = new LongColumn();
+  // 0 for a ksefId KsefIdCodec cannot encode, it is then in unpackedIds.
+  private final LongColumn idLo = new LongColumn();
+  private final Map<Integer, String> unpackedIds = new HashMap<>();
+  private final StringColumn invoiceNumber = new StringColumn();
+  private final IntColumn issueDate = new IntColumn();
+  private final IntColumn currency = new IntColumn();
+  private final ScaledColumn grossAmount = new ScaledColumn(AMOUNT_SCALE);
+  private final IntColumn sellerNip = new IntColumn();
+  private final IntColumn sellerName = new IntColumn();
+  private final IntColumn buyerNip = new IntColumn();
+  private final IntColumn buyerName = new IntColumn();
+  // Start of the invoice's third parties / lines, the next invoice's start is its end.
+  private final IntColumn thirdPartiesStart = new IntColumn();
+  private final IntColumn linesStart = new IntColumn();
+  private byte[][] compressedXml = new byte[0][];
+
+  // Per third party.
+  private final IntColumn thirdPartyNip = new IntColumn();
+  private final IntColumn thirdPartyName = new IntColumn();
+
+  // Per line.
+  private final IntColumn lineNumber = new IntColumn();
+  private final StringColumn lineName = new StringColumn();
+  private final IntColumn lineUnit = new IntColumn();
+  private final ScaledColumn quantity = new ScaledColumn(QUANTITY_SCALE);
+  private final ScaledColumn netUnitPrice = new ScaledColumn(PRICE_SCALE);
+  private final ScaledColumn grossUnitPrice = new ScaledColumn(PRICE_SCALE);
+  private final ScaledColumn netValue = new ScaledColumn(AMOUNT_SCALE);
+  private final ScaledColumn grossValue = new ScaledColumn(AMOUNT_SCALE);
+  private final IntColumn vatRate = new IntColumn();
+
+  /**
+   * @param keepXml Keep the deflated XML of every invoice too, so toFaktura / toInvoice work. Without it the batch
+   *                is several times smaller.
+   */
+  public CompactInvoiceBatch(boolean keepXml) {
+    this.keepXml = keepXml;
+  }
+
+  public boolean isKeepXml() {
+    return keepXml;
+  }
+
+  public void add(String ksefId, byte[] rawInvoiceXml) throws XMLStreamException {
+    List<KsefInvoiceLine> lines = new ArrayList<>();
+    KsefInvoiceHeader header = KsefInvoiceHeaderReader.read(rawInvoiceXml, lines::add);
+    append(ksefId, header, lines, keepXml ? KsefUtils.deflate(rawInvoiceXml) : null);
+  }
+
+  /**
+   * @throws IllegalArgumentException The invoice was created from an already bound Faktura, it has no XML.
+   */
+  public void add(KsefInvoice invoice) throws XMLStreamException {
+    byte[] rawXml = invoice.getRawXml();
+    if (rawXml == null) throw new IllegalArgumentException("Invoice " + invoice.getKsefId() + " has no raw XML");
+    add(invoice.getKsefId(), rawXml);
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Distinct dictionary-encoded strings - should not grow with the number of invoices.
+   */
+  synchronized int dictionarySize() {
+    return dictionary.size();
+  }
+
+  /**
+   * Ends filling: drops the value lookup of the dictionary (needed only to add) and trims the columns to their size.
+   * Reading is not affected.
+   *
+   * @throws IllegalStateException On any add after this.
+   */
+  public synchronized void seal() {
+    if (codes == null) return;
+    codes = null;
+    dictionary.trimToSize();
+    for (IntColumn column : List.of(issueDate, currency, sellerNip, sellerName, buyerNip, buyerName,
+        thirdPartiesStart, linesStart, thirdPartyNip, thirdPartyName, lineNumber, lineUnit, vatRate)) {
+      column.trim();
+    }
+    for (ScaledColumn column : List.of(grossAmount, quantity, netUnitPrice, grossUnitPrice, netValue, grossValue)) {
+      column.trim();
+    }
+    idHi.trim();
+    idLo.trim();
+    invoiceNumber.trim();
+    lineName.trim();
+    if (keepXml) compressedXml = Arrays.copyOf(compressedXml, size);
+  }
+
+  public synchronized boolean isSealed() {
+    return codes == null;
+  }
+
+  public String ksefId(int index) {
+    checkIndex(index);
+    long lo = idLo.get(index);
+    return lo == 0 ? unpackedIds.get(index) : KsefIdCodec.decode(idHi.get(index), lo);
+  }
+
+  public LocalDate issueDate(int index) {
+    checkIndex(index);
+    int epochDay = issueDate.get(index);
+    return epochDay == IntColumn.ABSENT ? null : LocalDate.ofEpochDay(epochDay);
+  }
+
+  public BigDecimal grossAmount(int index) {
+    checkIndex(index);
+    return grossAmount.get(index);
+  }
+
+  public KsefInvoiceHeader header(int index) {
+    checkIndex(index);
+    List<Party> thirdParties = new ArrayList<>();
+    for (int p = thirdPartiesStart.get(index); p < end(thirdPartiesStart, index, thirdPartyNip.size); p++) {
+      thirdParties.add(new Party(string(thirdPartyNip.get(p)), string(thirdPartyName.get(p))));
+    }
+    return new KsefInvoiceHeader(
+        invoiceNumber.get(index),
+        issueDate(index),
+        string(currency.get(index)),
+        grossAmount.get(index),
+        party(sellerNip.get(index), sellerName.get(index)),
+        party(buyerNip.get(index), buyerName.get(index)),
+        List.copyOf(thirdParties)
+    );
+  }
+
+  public int lineCount(int index) {
+    checkIndex(index);
+    return end(linesStart, index, lineNumber.size) - linesStart.get(index);
+  }
+
+  public List<KsefInvoiceLine> lines(int index) {
+    checkIndex(index);
+    List<KsefInvoiceLine> lines = new ArrayList<>(lineCount(index));
+    for (int l = linesStart.get(index); l < end(linesStart, index, lineNumber.size); l++) {
+      int number = lineNumber.get(l);
+      lines.add(new KsefInvoiceLine(
+          number == IntColumn.ABSENT ? null : number,
+          lineName.get(l),
+          string(lineUnit.get(l)),
+          quantity.get(l),
+          netUnitPrice.get(l),
+          grossUnitPrice.get(l),
+          netValue.get(l),
+          grossValue.get(l),
+          string(vatRate.get(l))
+      ));
+    }
+    return lines;
+  }
+
+  /**
+   * Binds the full invoice from the kept XML.
+   *
+   * @throws IllegalStateException The batch does not keep XML.
+   */
+  public Faktura toFaktura(int index) throws JAXBException {
+    return FakturaUnmarshaller.shared().unmarshal(KsefUtils.inflate(compressedXml(index)));
+  }
+
+  /**
+   * @return Lazily bound invoice sharing the kept (deflated) XML.
+   * @throws IllegalStateException The batch does not keep XML.
+   */
+  public KsefInvoice toInvoice(int index) {
+    return KsefInvoice.compressed(ksefId(index), header(index), compressedXml(index));
+  }
+
+  private byte[] compressedXml(int index) {
+    if (!keepXml) throw new IllegalStateException("Invoice XML is not kept in this batch");
+    checkIndex(index);
+    return compressedXml[index];
+  }
+
+  private synchronized void append(String ksefId, KsefInvoiceHeader header, List<KsefInvoiceLine> lines,
+      byte[] compressed) {
+    if (codes == null) throw new IllegalStateException("Batch is sealed");
+    KsefIdCodec.Key key = KsefIdCodec.encode(ksefId);
+    if (key == null) unpackedIds.put(size, ksefId);
+    idHi.add(key == null ? 0 : key.hi());
+    idLo.add(key == null ? 0 : key.lo());
+    invoiceNumber.add(header.invoiceNumber());
+    issueDate.add(header.issueDate() == null ? IntColumn.ABSENT : (int) header.issueDate().toEpochDay());
+    currency.add(code(header.currency()));
+    grossAmount.add(header.grossAmount());
+    sellerNip.add(code(header.seller() == null ? null : header.seller().nip()));
+    sellerName.add(code(header.seller() == null ? null : header.seller().name()));
+    buyerNip.add(code(header.buyer() == null ? null : header.buyer().nip()));
+    buyerName.add(code(header.buyer() == null ? null : header.buyer().name()));
+
+    thirdPartiesStart.add(thirdPartyNip.size);
+    for (Party party : header.thirdParties()) {
+      thirdPartyNip.add(code(party.nip()));
+      thirdPartyName.add(code(party.name()));
+    }
+
+    linesStart.add(lineNumber.size);
+    for (KsefInvoiceLine line : lines) {
+      lineNumber.add(line.number() == null ? IntColumn.ABSENT : line.number());
+      lineName.add(line.name());
+      lineUnit.add(code(line.unit()));
+      quantity.add(line.quantity());
+      netUnitPrice.add(line.netUnitPrice());
+      grossUnitPrice.add(line.grossUnitPrice());
+      netValue.add(line.netValue());
+      grossValue.add(line.grossValue());
+      vatRate.add(code(line.vatRate()));
+    }
+
+    if (keepXml) {
+      if (size == compressedXml.length) compressedXml = Arrays.copyOf(compressedXml, grow(size));
+      compressedXml[size] = compressed;
+    }
+    size++;
+  }
+
+  private int code(String value) {
+    if (value == null) return NULL;
+    return codes.computeIfAbsent(value, v -> {
+      dictionary.add(v);
+      return dictionary.size() - 1;
+    });
+  }
+
+  private String string(int code) {
+    return code == NULL ? null : dictionary.get(code);
+  }
+
+  private Party party(int nip, int name) {
+    return nip == NULL && name == NULL ? null : new Party(string(nip), string(name));
+  }
+
+  private int end(IntColumn starts, int index, int total) {
+    return index + 1 < size ? starts.get(index + 1) : total;
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+  }
+
+  private static int grow(int length) {
+    return Math.max(16, length + (length >> 1));
+  }
+
+  private static class IntColumn {
+    static final int ABSENT = Integer.MIN_VALUE;
+
+    private int[] values = new int[0];
+    private int size;
+
+    void add(int value) {
+      if (size == values.length) values = Arrays.copyOf(values, grow(size));
+      values[size++] = value;
+    }
+
+    int get(int index) {
+      return values[index];
+    }
+
+    void trim() {
+      values = Arrays.copyOf(values, size);
+    }
+  }
+
+  private static class LongColumn {
+    private long[] values = new long[0];
+    private int size;
+
+    void add(long value) {
+      if (size == values.length) values = Arrays.copyOf(values, grow(size));
+      values[size++] = value;
+    }
+
+    long get(int index) {
+      return values[index];
+    }
+
+    void trim() {
+      values = Arrays.copyOf(values, size);
+    }
+  }
+
+  private static class StringColumn {
+    private String[] values = new String[0];
+    private int size;
+
+    void add(String value) {
+      if (size == values.length) values = Arrays.copyOf(values, grow(size));
+      values[size++] = value;
+    }
+
+    String get(int index) {
+      return values[index];
+    }
+
+    void trim() {
+      values = Arrays.copyOf(values, size);
+    }
+  }
+
+  /**
+   * BigDecimals as longs unscaled to a fixed scale. Values with more decimal places, or too big for a long, are kept
+   * exactly in a side map - the column stays lossless.
+   */
+  private static class ScaledColumn {
+    private static final long ABSENT = Long.MIN_VALUE;
+    private static final long EXACT = Long.MIN_VALUE + 1;
+
+    private final int scale;
+    private final LongColumn values = new LongColumn();
+    private final Map<Integer, BigDecimal> exact = new HashMap<>();
+
+    ScaledColumn(int scale) {
+      this.scale = scale;
+    }
+
+    void add(BigDecimal value) {
+      if (value == null) {
+        values.add(ABSENT);
+        return;
+      }
+      long unscaled;
+      try {
+        unscaled = value.setScale(scale).unscaledValue().longValueExact();
+      } catch (ArithmeticException e) {
+        unscaled = EXACT;
+      }
+      if (unscaled == ABSENT || unscaled == EXACT) {
+        exact.put(values.size, value);
+        unscaled = EXACT;
+      }
+      values.add(unscaled);
+    }
+
+    BigDecimal get(int index) {
+      long unscaled = values.get(index);
+      if (unscaled == ABSENT) return null;
+      if (unscaled == EXACT) return exact.get(index);
+      return BigDecimal.valueOf(unscaled, scale);
+    }
+
+    void trim() {
+      values.trim();
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package pl.pbs.edu.ksefprocessdemo.model;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Date range (invoicing date) covered by a single invoice export.
+ */
+public record ExportWindow(OffsetDateTime from, OffsetDateTime to) {
+
+  public Duration length() {
+    return Duration.between(from, to);
+  }
+
+  /**
+   * Splits the window into consecutive windows of at most _maxLength_, the last one may be shorter.
+   */
+  public List<ExportWindow> splitBy(Duration maxLength) {
+    List<ExportWindow> windows = new ArrayList<>();
+    OffsetDateTime start = from;
+    while (start.isBefore(to)) {
+      OffsetDateTime end = start.plus(maxLength);
+      if (end.isAfter(to)) end = to;
+      windows.add(new ExportWindow(start, end));
+      start = end;
+    }
+    if (windows.isEmpty()) windows.add(this);
+    return windows;
+  }
+
+  /**
+   * Splits the window into _parts_ windows of (roughly) equal length.
+   */
+  public List<ExportWindow> splitInto(int parts) {
+    if (parts <= 1) return List.of(this);
+    Duration step = length().dividedBy(parts);
+    if (step.isZero()) return List.of(this);
+    return splitBy(step);
+  }
+}
@@ -1,20 +1,101 @@
 package pl.pbs.edu.ksefprocessdemo.model;
 
+import jakarta.xml.bind.DataBindingException;
+import jakarta.xml.bind.JAXBException;
+import lombok.AccessLevel;
 import lombok.Getter;
 import pl.pbs.edu.ksefprocessdemo.generated.Faktura;
+import pl.pbs.edu.ksefprocessdemo.utils.FakturaUnmarshaller;
+import pl.pbs.edu.ksefprocessdemo.utils.KsefInvoiceHeaderReader;
+import pl.pbs.edu.ksefprocessdemo.utils.KsefUtils;
 
 import java.util.Objects;
 
+/**
+ * Invoice is either bound eagerly (Faktura given up front), or lazily - then only the header and the deflated XML
+ * are kept, and the full Faktura is bound on the first _getInvoiceData()_ call.
+ */
 @Getter
 public class KsefInvoice {
   private final String ksefId;
-  private final Faktura invoiceData;
+  @Getter(AccessLevel.NONE)
+  private volatile KsefInvoiceHeader header;
+  @Getter(AccessLevel.NONE)
+  private final byte[] compressedXml;
+  @Getter(AccessLevel.NONE)
+  private volatile Faktura invoiceData;
 
   public KsefInvoice(String ksefId, Faktura invoiceData) {
+    this(ksefId, null, invoiceData);
+  }
+
+  public KsefInvoice(String ksefId, KsefInvoiceHeader header, Faktura invoiceData) {
     this.ksefId = ksefId;
+    this.header = header;
+    this.compressedXml = null;
     this.invoiceData = invoiceData;
   }
 
+  private KsefInvoice(String ksefId, KsefInvoiceHeader header, byte[] compressedXml) {
+    this.ksefId = ksefId;
+    this.header = header;
+    this.compressedXml = compressedXml;
+  }
+
+  public static KsefInvoice lazy(String ksefId, KsefInvoiceHeader header, byte[] rawXml) {
+    return new KsefInvoice(ksefId, header, KsefUtils.deflate(rawXml));
+  }
+
+  /**
+   * Lazy invoice over XML that is already deflated (KsefUtils.deflate), e.g. kept by CompactInvoiceBatch.
+   */
+  static KsefInvoice compressed(String ksefId, KsefInvoiceHeader header, byte[] compressedXml) {
+    return new KsefInvoice(ksefId, header, compressedXml);
+  }
+
+  public boolean isBound() {
+    return invoiceData != null;
+  }
+
+  /**
+   * @return Header, for invoices created from a bound Faktura only (without one) derived from it on first access.
+   */
+  public KsefInvoiceHeader getHeader() {
+    KsefInvoiceHeader read = header;
+    if (read != null) return read;
+
+    synchronized (this) {
+      if (header == null) header = KsefInvoiceHeaderReader.derive(getInvoiceData());
+      return header;
+    }
+  }
+
+  /**
+   * @return Full invoice, bound on first access for lazily created invoices.
+   */
+  public Faktura getInvoiceData() {
+    Faktura bound = invoiceData;
+    if (bound != null) return bound;
+
+    synchronized (this) {
+      if (invoiceData == null) {
+        try {
+          invoiceData = FakturaUnmarshaller.shared().unmarshal(getRawXml());
+        } catch (JAXBException e) {
+          throw new DataBindingException("Could not bind invoice " + ksefId, e);
+        }
+      }
+      return invoiceData;
+    }
+  }
+
+  /**
+   * @return Original invoice XML, or null for invoices created from an already bound Faktura.
+   */
+  public byte[] getRawXml() {
+    return compressedXml == null ? null : KsefUtils.inflate(compressedXml);
+  }
+
 
   // KsefId should be unique
 
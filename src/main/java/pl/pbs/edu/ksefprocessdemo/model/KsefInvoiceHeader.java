@@ -0,0 +1,31 @@
+package pl.pbs.edu.ksefprocessdemo.model;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Compact projection of the fields most consumers need (parties, number, dates, total), read with StAX without
+ * binding the whole Faktura tree. Any field missing in the source XML is null.
+ *
+ * @param invoiceNumber P_2
+ * @param issueDate     P_1
+ * @param currency      KodWaluty
+ * @param grossAmount   P_15
+ */
+public record KsefInvoiceHeader(
+    String invoiceNumber,
+    LocalDate issueDate,
+    String currency,
+    BigDecimal grossAmount,
+    Party seller,
+    Party buyer,
+    List<Party> thirdParties
+) {
+
+  /**
+   * @param nip NIP, or null when the subject is identified otherwise (e.g. NrID of a foreign buyer).
+   */
+  public record Party(String nip, String name) {
+  }
+}
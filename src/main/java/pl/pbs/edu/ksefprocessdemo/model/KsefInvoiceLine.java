@@ -0,0 +1,30 @@
+package pl.pbs.edu.ksefprocessdemo.model;
+
+import java.math.BigDecimal;
+
+/**
+ * Line item (FaWiersz) of an invoice. Any field missing in the source XML is null - FA(3) lines carry either net or
+ * gross prices, depending on how the invoice was calculated.
+ *
+ * @param number         NrWierszaFa
+ * @param name           P_7
+ * @param unit           P_8A
+ * @param quantity       P_8B
+ * @param netUnitPrice   P_9A
+ * @param grossUnitPrice P_9B
+ * @param netValue       P_11
+ * @param grossValue     P_11A
+ * @param vatRate        P_12 (e.g. 23, 8, zw, np I)
+ */
+public record KsefInvoiceLine(
+    Integer number,
+    String name,
+    String unit,
+    BigDecimal quantity,
+    BigDecimal netUnitPrice,
+    BigDecimal grossUnitPrice,
+    BigDecimal netValue,
+    BigDecimal grossValue,
+    String vatRate
+) {
+}
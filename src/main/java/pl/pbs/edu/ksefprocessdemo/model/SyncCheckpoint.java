@@ -0,0 +1,14 @@
+package pl.pbs.edu.ksefprocessdemo.model;
+
+import java.time.OffsetDateTime;
+import java.util.Set;
+
+/**
+ * Progress of an incremental sync.
+ *
+ * @param highWaterMark    Permanent storage date everything before which was already delivered.
+ * @param boundaryKsefIds  Invoices of the last committed package stored exactly at _highWaterMark_ - the next
+ *                         export starts there inclusive, so these come again and are skipped.
+ */
+public record SyncCheckpoint(OffsetDateTime highWaterMark, Set<String> boundaryKsefIds) {
+}
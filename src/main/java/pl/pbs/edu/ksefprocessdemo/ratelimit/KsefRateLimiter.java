@@ -0,0 +1,265 @@
+package pl.pbs.edu.ksefprocessdemo.ratelimit;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import pl.akmf.ksef.sdk.client.model.limit.GetRateLimitResponse;
+import pl.pbs.edu.ksefprocessdemo.config.props.RateLimitProps;
+import pl.pbs.edu.ksefprocessdemo.metrics.KsefMetrics;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps KSeF calls under the server limits instead of running into 429s. KSeF counts requests per context (NIP),
+ * so every context gets its own limiter per operation class, made of:
+ * <ul>
+ *   <li>token buckets for the per second / minute / hour limits read from _getRateLimit_ (times _headroom_),</li>
+ *   <li>an AIMD concurrency limit - +1/limit per successful call, halved on 429,</li>
+ *   <li>a pause until Retry-After after 429.</li>
+ * </ul>
+ * Callers wait on a condition (parked, not spinning) until all three let them through.
+ * <p>
+ * Requests carry only the bearer token, so KsefAuthorizationProvider binds every access token to its NIP.
+ */
+@Component
+@Slf4j
+public class KsefRateLimiter {
+
+  private static final String ANONYMOUS = "anonymous";
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+  private static final long MINUTE = TimeUnit.MINUTES.toNanos(1);
+  private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+
+  private final RateLimitProps props;
+  private final KsefMetrics metrics;
+  private final Map<String, String> contextByToken = new ConcurrentHashMap<>();
+  private final Map<String, String> tokenByContext = new ConcurrentHashMap<>();
+  private final Map<String, Map<OperationClass, Limiter>> limiters = new ConcurrentHashMap<>();
+  private volatile Map<OperationClass, int[]> limits = new EnumMap<>(OperationClass.class);
+
+  public KsefRateLimiter(RateLimitProps props, KsefMetrics metrics) {
+    this.props = props;
+    this.metrics = metrics;
+  }
+
+  public boolean isEnabled() {
+    return props.isEnabled();
+  }
+
+  public int getMaxRetries() {
+    return Math.max(0, props.getMaxRetries());
+  }
+
+  /**
+   * Requests with this bearer token count against the context's limits. The previous token of the context is
+   * forgotten.
+   */
+  public void bindToken(String accessToken, String context) {
+    String previous = tokenByContext.put(context, accessToken);
+    if (previous != null && !previous.equals(accessToken)) contextByToken.remove(previous);
+    contextByToken.put(accessToken, context);
+  }
+
+  public String contextOf(String bearerToken) {
+    return bearerToken == null ? ANONYMOUS : contextByToken.getOrDefault(bearerToken, ANONYMOUS);
+  }
+
+  /**
+   * New server limits (per second, minute, hour) for every operation class, applied to all contexts at once.
+   */
+  public void update(GetRateLimitResponse response) {
+    Map<OperationClass, int[]> updated = new EnumMap<>(OperationClass.class);
+    if (response.getInvoiceMetadata() != null) updated.put(OperationClass.INVOICE_METADATA, new int[]{
+        response.getInvoiceMetadata().getPerSecond(),
+        response.getInvoiceMetadata().getPerMinute(),
+        response.getInvoiceMetadata().getPerHour()
+    });
+    if (response.getInvoiceExport() != null) updated.put(OperationClass.INVOICE_EXPORT, new int[]{
+        response.getInvoiceExport().getPerSecond(),
+        response.getInvoiceExport().getPerMinute(),
+        response.getInvoiceExport().getPerHour()
+    });
+    if (response.getInvoiceDownload() != null) updated.put(OperationClass.INVOICE_DOWNLOAD, new int[]{
+        response.getInvoiceDownload().getPerSecond(),
+        response.getInvoiceDownload().getPerMinute(),
+        response.getInvoiceDownload().getPerHour()
+    });
+    if (response.getOtherRateLimit() != null) updated.put(OperationClass.OTHER, new int[]{
+        response.getOtherRateLimit().getPerSecond(),
+        response.getOtherRateLimit().getPerMinute(),
+        response.getOtherRateLimit().getPerHour()
+    });
+    limits = updated;
+    limiters.values().forEach(byClass -> byClass.forEach((operationClass, limiter) -> limiter.setRates(
+        updated.get(operationClass)
+    )));
+    log.debug("KSeF rate limits updated: {}", updated.keySet());
+  }
+
+  /**
+   * Blocks until the call may be sent. The permit has to be closed with the outcome of the call.
+   */
+  public Permit acquire(String context, OperationClass operationClass) throws InterruptedException {
+    Limiter limiter = limiters
+        .computeIfAbsent(context, key -> new ConcurrentHashMap<>())
+        .computeIfAbsent(operationClass, key -> new Limiter(limits.get(key)));
+    long start = System.nanoTime();
+    limiter.acquire();
+    metrics.rateLimitWait(operationClass.name(), System.nanoTime() - start);
+    return new Permit(limiter);
+  }
+
+  public final class Permit {
+    private final Limiter limiter;
+    private boolean closed;
+
+    private Permit(Limiter limiter) {
+      this.limiter = limiter;
+    }
+
+    public void succeeded() {
+      if (close()) limiter.release(true);
+    }
+
+    public void failed() {
+      if (close()) limiter.release(false);
+    }
+
+    /**
+     * @param retryAfter Server's Retry-After, or null.
+     */
+    public void throttled(Duration retryAfter) {
+      if (close()) limiter.throttle(retryAfter == null ? props.getDefaultRetryAfter() : retryAfter);
+    }
+
+    private boolean close() {
+      if (closed) return false;
+      closed = true;
+      return true;
+    }
+  }
+
+  private class Limiter {
+    private final Lock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Bucket[] buckets = {new Bucket(SECOND), new Bucket(MINUTE), new Bucket(HOUR)};
+    private double concurrency = props.getInitialConcurrency();
+    private int inFlight;
+    private long pausedUntil = System.nanoTime();
+
+    private Limiter(int[] rates) {
+      setRates(rates);
+    }
+
+    private void setRates(int[] rates) {
+      lock.lock();
+      try {
+        for (int i = 0; i < buckets.length; i++) {
+          int rate = rates == null ? 0 : (int) Math.floor(rates[i] * props.getHeadroom());
+          buckets[i].setCapacity(rates == null || rates[i] <= 0 ? 0 : Math.max(1, rate));
+        }
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void acquire() throws InterruptedException {
+      lock.lock();
+      try {
+        while (true) {
+          long now = System.nanoTime();
+          long wait = Math.max(0, pausedUntil - now);
+          for (Bucket bucket : buckets) {
+            wait = Math.max(wait, bucket.nanosUntilToken(now));
+          }
+          if (wait == 0 && inFlight < (int) concurrency) {
+            for (Bucket bucket : buckets) {
+              bucket.take();
+            }
+            inFlight++;
+            return;
+          }
+          // Woken up by release/throttle/setRates, or when the bucket (pause) allows the next call.
+          if (wait == 0) changed.await();
+          else changed.awaitNanos(wait);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void release(boolean success) {
+      lock.lock();
+      try {
+        inFlight--;
+        if (success) concurrency = Math.min(props.getMaxConcurrency(), concurrency + 1 / concurrency);
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void throttle(Duration retryAfter) {
+      lock.lock();
+      try {
+        inFlight--;
+        concurrency = Math.max(Math.max(1, props.getMinConcurrency()), concurrency / 2);
+        pausedUntil = Math.max(pausedUntil, System.nanoTime() + retryAfter.toNanos());
+        // The server thinks we are over the limit - no burst after the pause. Only the per second bucket, an empty
+        // hour bucket would refill at a fraction of the allowed rate for the rest of the hour.
+        buckets[0].drain();
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Token bucket refilled continuously, capacity 0 means no limit.
+   */
+  private static class Bucket {
+    private final long window;
+    private int capacity;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    private Bucket(long window) {
+      this.window = window;
+    }
+
+    private void setCapacity(int capacity) {
+      refill(System.nanoTime());
+      this.tokens = this.capacity == 0 ? capacity : Math.min(tokens, capacity);
+      this.capacity = capacity;
+    }
+
+    private long nanosUntilToken(long now) {
+      if (capacity == 0) return 0;
+      refill(now);
+      if (tokens >= 1) return 0;
+      return (long) Math.ceil((1 - tokens) * window / capacity);
+    }
+
+    private void take() {
+      if (capacity > 0) tokens -= 1;
+    }
+
+    private void drain() {
+      if (capacity > 0) tokens = Math.min(tokens, 0);
+      refilledAt = System.nanoTime();
+    }
+
+    private void refill(long now) {
+      if (capacity > 0) tokens = Math.min(capacity, tokens + (double) (now - refilledAt) * capacity / window);
+      refilledAt = now;
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package pl.pbs.edu.ksefprocessdemo.ratelimit;
+
+/**
+ * Groups of KSeF endpoints sharing a rate limit, as reported by GET /rate-limits.
+ */
+public enum OperationClass {
+  INVOICE_METADATA,
+  INVOICE_EXPORT,
+  INVOICE_DOWNLOAD,
+  OTHER;
+
+  /**
+   * @return Class of the request, or null for requests that are not limited (the limits and public keys
+   * themselves).
+   */
+  public static OperationClass of(String method, String path) {
+    if (path == null) return OTHER;
+    if (path.endsWith("/rate-limits") || path.contains("/security/public-key-certificates")) return null;
+    if (path.endsWith("/invoices/query/metadata")) return INVOICE_METADATA;
+    if (path.endsWith("/invoices/exports") && "POST".equals(method)) return INVOICE_EXPORT;
+    if (path.contains("/invoices/ksef/")) return INVOICE_DOWNLOAD;
+    return OTHER;
+  }
+}
@@ -0,0 +1,41 @@
+package pl.pbs.edu.ksefprocessdemo.ratelimit;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import pl.akmf.ksef.sdk.client.interfaces.KSeFClient;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+import pl.pbs.edu.ksefprocessdemo.auth.KsefAuthorizationProvider;
+
+/**
+ * Seeds KsefRateLimiter with the limits KSeF reports and keeps them fresh. Separate from the limiter, which sits
+ * below KSeFClient and cannot call it.
+ */
+@Component
+@Slf4j
+public class RateLimitRefresher {
+
+  private final KSeFClient ksefClient;
+  private final KsefAuthorizationProvider kap;
+  private final KsefRateLimiter rateLimiter;
+
+  public RateLimitRefresher(KSeFClient ksefClient, KsefAuthorizationProvider kap, KsefRateLimiter rateLimiter) {
+    this.ksefClient = ksefClient;
+    this.kap = kap;
+    this.rateLimiter = rateLimiter;
+  }
+
+  // Limits are re-read from KSeF (GET /rate-limits) every _ksef.rate-limit.refresh_.
+  @Scheduled(
+      initialDelayString = "${ksef.rate-limit.initial-delay:PT5S}",
+      fixedDelayString = "${ksef.rate-limit.refresh:PT15M}"
+  )
+  public void refresh() {
+    if (!rateLimiter.isEnabled()) return;
+    try {
+      rateLimiter.update(ksefClient.getRateLimit(kap.getTokens().getAccessToken().getToken()));
+    } catch (ApiException | RuntimeException e) {
+      log.warn("Could not read KSeF rate limits, keeping the current ones: {}", e.getMessage());
+    }
+  }
+}
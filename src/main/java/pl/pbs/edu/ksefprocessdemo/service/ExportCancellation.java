@@ -0,0 +1,70 @@
+package pl.pbs.edu.ksefprocessdemo.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cancellation signal of one export run, handed down to InvoiceExportPlanner and ExportStatusPoller. Once cancelled,
+ * no more windows are started and pending status polls stop right away - unlike interrupting a thread, which does not
+ * reach the virtual threads the run is spread over.
+ */
+public final class ExportCancellation {
+
+  // Guarded by this, only the flag is read without the lock.
+  private final List<Runnable> actions = new ArrayList<>();
+  private volatile boolean cancelled;
+
+  /**
+   * @return Signal that is never cancelled (nobody else holds it).
+   */
+  public static ExportCancellation none() {
+    return new ExportCancellation();
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * @throws CancellationException The run was cancelled.
+   */
+  public void throwIfCancelled(String what) {
+    if (isCancelled()) throw new CancellationException(what + " cancelled");
+  }
+
+  /**
+   * Cancels the run and runs the registered actions (on the calling thread). Cancelling again does nothing.
+   */
+  public void cancel() {
+    List<Runnable> toRun;
+    synchronized (this) {
+      if (cancelled) return;
+      cancelled = true;
+      toRun = new ArrayList<>(actions);
+      actions.clear();
+    }
+    toRun.forEach(Runnable::run);
+  }
+
+  /**
+   * Runs the action on cancel, or right away if the run is already cancelled.
+   *
+   * @return Unregisters the action - call it once the action is no longer needed, long runs register many.
+   */
+  public Runnable onCancel(Runnable action) {
+    synchronized (this) {
+      if (!cancelled) {
+        actions.add(action);
+        return () -> {
+          synchronized (this) {
+            actions.remove(action);
+          }
+        };
+      }
+    }
+    action.run();
+    return () -> {
+    };
+  }
+}
@@ -0,0 +1,185 @@
+package pl.pbs.edu.ksefprocessdemo.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import pl.akmf.ksef.sdk.api.HttpStatus;
+import pl.akmf.ksef.sdk.client.interfaces.KSeFClient;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+import pl.akmf.ksef.sdk.client.model.invoice.InvoiceExportStatus;
+import pl.pbs.edu.ksefprocessdemo.auth.KsefAuthorizationProvider;
+import pl.pbs.edu.ksefprocessdemo.config.props.ExportPollProps;
+import pl.pbs.edu.ksefprocessdemo.exception.KsefPackagePoolException;
+import pl.pbs.edu.ksefprocessdemo.metrics.KsefMetrics;
+import pl.pbs.edu.ksefprocessdemo.utils.KsefUtils;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * One shared poller for all running exports. A single scheduler thread only times the probes, the (blocking) status
+ * calls run on virtual threads, so waiting for an export does not hold a platform thread.
+ * <p>
+ * Probes start fast and slow down exponentially, a Retry-After sent with 429 takes precedence.
+ * Cancelling the returned future (or the ExportCancellation given to _await_) stops polling of that export.
+ */
+@Component
+@Slf4j
+public class ExportStatusPoller {
+
+  private static final int TOO_MANY_REQUESTS = 429;
+
+  private final KSeFClient ksefClient;
+  private final KsefAuthorizationProvider kap;
+  private final ExportPollProps props;
+  private final KsefMetrics metrics;
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+      Thread.ofPlatform().name("ksef-export-poller").daemon().factory()
+  );
+  private final ExecutorService probes = Executors.newVirtualThreadPerTaskExecutor();
+  private final Map<String, CompletableFuture<InvoiceExportStatus>> tracked = new ConcurrentHashMap<>();
+
+  public ExportStatusPoller(
+      KSeFClient ksefClient,
+      KsefAuthorizationProvider kap,
+      ExportPollProps props,
+      KsefMetrics metrics
+  ) {
+    this.ksefClient = ksefClient;
+    this.kap = kap;
+    this.props = props;
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return Future completed with the status once the package is ready. Polling the same reference number again
+   * returns the already running future.
+   */
+  public CompletableFuture<InvoiceExportStatus> await(String referenceNumber) {
+    return await(referenceNumber, kap);
+  }
+
+  /**
+   * @param tokens Tokens of the tenant (NIP) the export belongs to.
+   */
+  public CompletableFuture<InvoiceExportStatus> await(String referenceNumber, KsefAuthorizationProvider tokens) {
+    return await(referenceNumber, tokens, ExportCancellation.none());
+  }
+
+  /**
+   * @param cancellation Cancels the returned future (and stops the polling) when the run is cancelled.
+   */
+  public CompletableFuture<InvoiceExportStatus> await(
+      String referenceNumber,
+      KsefAuthorizationProvider tokens,
+      ExportCancellation cancellation
+  ) {
+    CompletableFuture<InvoiceExportStatus> polled = tracked.computeIfAbsent(referenceNumber, ref -> {
+      CompletableFuture<InvoiceExportStatus> future = new CompletableFuture<>();
+      long start = System.nanoTime();
+      Poll poll = new Poll(ref, tokens, future, start + props.getTimeout().toNanos());
+      future.whenComplete((status, error) -> {
+        tracked.remove(ref);
+        metrics.exportPolled(poll.iterations, System.nanoTime() - start, error == null);
+      });
+
+      poll.schedule(Duration.ZERO);
+      return future;
+    });
+    Runnable unregister = cancellation.onCancel(() -> polled.cancel(false));
+    polled.whenComplete((status, error) -> unregister.run());
+    return polled;
+  }
+
+  public int getTrackedCount() {
+    return tracked.size();
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    scheduler.shutdownNow();
+    probes.shutdownNow();
+    tracked.values().forEach(future -> future.cancel(false));
+  }
+
+  private class Poll {
+    private final String referenceNumber;
+    private final KsefAuthorizationProvider tokens;
+    private final CompletableFuture<InvoiceExportStatus> future;
+    private final long deadline;
+    private Duration delay = props.getInitialDelay();
+    private volatile int iterations;
+
+    private Poll(
+        String referenceNumber,
+        KsefAuthorizationProvider tokens,
+        CompletableFuture<InvoiceExportStatus> future,
+        long deadline
+    ) {
+      this.referenceNumber = referenceNumber;
+      this.tokens = tokens;
+      this.future = future;
+      this.deadline = deadline;
+    }
+
+    private void schedule(Duration after) {
+      if (future.isDone()) return;
+      scheduler.schedule(() -> probes.execute(this::probe), after.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void probe() {
+      if (future.isDone()) return;
+      iterations++;
+      try {
+        InvoiceExportStatus status = metrics.api("exportStatus", () -> ksefClient.checkStatusAsyncQueryInvoice(
+            referenceNumber,
+            tokens.getTokens().getAccessToken().getToken()
+        ));
+        int code = status.getStatus().getCode();
+        log.debug("Export {} status {} (probe no. {})", referenceNumber, code, iterations);
+
+        if (code == HttpStatus.OK.getCode()) {
+          future.complete(status);
+          return;
+        }
+        if (code != HttpStatus.CONTINUE.getCode()) {
+          future.completeExceptionally(new KsefPackagePoolException(status));
+          return;
+        }
+        scheduleNext(nextDelay());
+      } catch (ApiException e) {
+        if (e.getCode() != TOO_MANY_REQUESTS) {
+          future.completeExceptionally(e);
+          return;
+        }
+        Duration retryAfter = KsefUtils.readRetryAfter(e).orElseGet(this::nextDelay);
+        log.debug("Export {} status throttled, next probe in {}", referenceNumber, retryAfter);
+        scheduleNext(retryAfter);
+      } catch (RuntimeException e) {
+        future.completeExceptionally(e);
+      }
+    }
+
+    private Duration nextDelay() {
+      Duration current = delay;
+      long next = (long) (delay.toMillis() * props.getMultiplier());
+      delay = Duration.ofMillis(Math.min(next, props.getMaxDelay().toMillis()));
+      return current;
+    }
+
+    private void scheduleNext(Duration after) {
+      if (System.nanoTime() + after.toNanos() > deadline) {
+        future.completeExceptionally(new TimeoutException("Invoice export timeout (" + referenceNumber + ")"));
+        return;
+      }
+      schedule(after);
+    }
+  }
+}
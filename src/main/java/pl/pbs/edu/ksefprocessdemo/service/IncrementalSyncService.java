@@ -0,0 +1,170 @@
+package pl.pbs.edu.ksefprocessdemo.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+import pl.akmf.ksef.sdk.client.model.invoice.InvoiceExportPackage;
+import pl.akmf.ksef.sdk.client.model.invoice.InvoiceQueryDateType;
+import pl.pbs.edu.ksefprocessdemo.archive.InvoiceArchive;
+import pl.pbs.edu.ksefprocessdemo.metrics.KsefMetrics;
+import pl.pbs.edu.ksefprocessdemo.model.ExportWindow;
+import pl.pbs.edu.ksefprocessdemo.model.KsefInvoice;
+import pl.pbs.edu.ksefprocessdemo.model.SyncCheckpoint;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Fetches only invoices stored in KSeF since the last run. Exports use the permanent storage date, which (unlike
+ * invoicing date) only grows, and the checkpoint is saved after every committed package - an interrupted sync
+ * resumes from the last package instead of starting over. Only the invoices stored exactly at the high-water mark
+ * are remembered with it (one metadata query per package), as only those can come again in the next export.
+ */
+@Slf4j
+@Service
+public class IncrementalSyncService {
+
+  public static final String DEFAULT_SYNC_KEY = "default";
+
+  private final KsefIntegrationService ksefIntegrationService;
+  private final SyncCheckpointStore checkpointStore;
+  private final InvoiceArchive invoiceArchive;
+  private final KsefMetrics metrics;
+  // How far back the very first sync (no checkpoint yet) reaches.
+  @Value("${ksef.sync.initial-lookback:P365D}")
+  private Duration initialLookback;
+  // Invoices become visible in exports with a small delay, so the newest moments are left for the next run.
+  @Value("${ksef.sync.safety-lag:PT1M}")
+  private Duration safetyLag;
+
+  public IncrementalSyncService(
+      KsefIntegrationService ksefIntegrationService,
+      SyncCheckpointStore checkpointStore,
+      InvoiceArchive invoiceArchive,
+      KsefMetrics metrics
+  ) {
+    this.ksefIntegrationService = ksefIntegrationService;
+    this.checkpointStore = checkpointStore;
+    this.invoiceArchive = invoiceArchive;
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return Service syncing another NIP (the given tenant's integration service), with the same settings and
+   * checkpoint store - use a sync key per tenant.
+   */
+  public IncrementalSyncService forTenant(KsefIntegrationService tenantIntegrationService) {
+    IncrementalSyncService tenant = new IncrementalSyncService(
+        tenantIntegrationService,
+        checkpointStore,
+        invoiceArchive,
+        metrics
+    );
+    tenant.initialLookback = initialLookback;
+    tenant.safetyLag = safetyLag;
+    return tenant;
+  }
+
+  /**
+   * Scheduled run, enabled by setting _ksef.sync.cron_. Downloaded invoices are kept by the local archive only, so
+   * without _ksef.archive.enabled_ the run is skipped - the checkpoint would move past invoices nobody kept.
+   */
+  @Scheduled(cron = "${ksef.sync.cron:-}")
+  public void scheduledSync() {
+    if (!invoiceArchive.isEnabled()) {
+      log.warn("Scheduled sync skipped, nothing keeps the invoices - enable ksef.archive.enabled");
+      return;
+    }
+    long count = sync(DEFAULT_SYNC_KEY, archivedSink());
+    log.info("Scheduled sync finished, {} new invoice(s)", count);
+  }
+
+  /**
+   * Sink of runs that only fill the local archive (KsefInvoiceFactory archives every downloaded invoice). Fails
+   * on an invoice that is not archived, so the package is not committed.
+   */
+  public Consumer<KsefInvoice> archivedSink() {
+    return invoice -> {
+      if (!invoiceArchive.contains(invoice.getKsefId()))
+        throw new IllegalStateException("Invoice " + invoice.getKsefId() + " was not archived");
+    };
+  }
+
+  public long sync(Consumer<KsefInvoice> sink) {
+    return sync(DEFAULT_SYNC_KEY, sink);
+  }
+
+  /**
+   * @param syncKey Name of the checkpoint, so independent syncs do not share progress.
+   * @return Number of invoices handed to the sink.
+   */
+  public long sync(String syncKey, Consumer<KsefInvoice> sink) {
+    return metrics.syncObservation("incremental").observe(() -> syncObserved(syncKey, sink));
+  }
+
+  private long syncObserved(String syncKey, Consumer<KsefInvoice> sink) {
+    OffsetDateTime to = OffsetDateTime.now(ZoneOffset.UTC).minus(safetyLag);
+    SyncCheckpoint checkpoint = checkpointStore
+        .load(syncKey)
+        .orElseGet(() -> new SyncCheckpoint(to.minus(initialLookback), Set.of()));
+    log.debug("Sync {} from {} to {}", syncKey, checkpoint.highWaterMark(), to);
+
+    long delivered = 0;
+    while (checkpoint.highWaterMark().isBefore(to)) {
+      Set<String> boundary = checkpoint.boundaryKsefIds();
+      Set<String> packageKsefIds = new HashSet<>();
+      long[] packageDelivered = {0};
+
+      InvoiceExportPackage exportPackage = exportPackage(
+          new ExportWindow(checkpoint.highWaterMark(), to),
+          invoice -> {
+            packageKsefIds.add(invoice.getKsefId());
+            if (boundary.contains(invoice.getKsefId())) return;
+            sink.accept(invoice);
+            packageDelivered[0]++;
+          }
+      );
+      delivered += packageDelivered[0];
+
+      boolean truncated = Boolean.TRUE.equals(exportPackage.getIsTruncated());
+      OffsetDateTime next = truncated ? exportPackage.getLastPermanentStorageDate() : to;
+      if (truncated && (next == null || !next.isAfter(checkpoint.highWaterMark()))) {
+        throw new IllegalStateException("Sync " + syncKey + " truncated without progress at " + next);
+      }
+
+      checkpoint = new SyncCheckpoint(next, boundary(next, packageKsefIds));
+      checkpointStore.save(syncKey, checkpoint);
+      log.debug("Sync {} committed package of {} invoice(s), high-water mark {}", syncKey,
+          packageKsefIds.size(), next);
+    }
+    return delivered;
+  }
+
+  /**
+   * @return Invoices of the package stored exactly at the high-water mark - the next export starts there.
+   */
+  private Set<String> boundary(OffsetDateTime highWaterMark, Set<String> packageKsefIds) {
+    if (packageKsefIds.isEmpty()) return Set.of();
+    try {
+      Set<String> atMark = ksefIntegrationService.ksefIdsStoredAt(highWaterMark);
+      atMark.retainAll(packageKsefIds);
+      return atMark;
+    } catch (ApiException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private InvoiceExportPackage exportPackage(ExportWindow window, Consumer<KsefInvoice> sink) {
+    try {
+      return ksefIntegrationService.exportPackage(window, InvoiceQueryDateType.PERMANENTSTORAGE, sink);
+    } catch (ApiException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
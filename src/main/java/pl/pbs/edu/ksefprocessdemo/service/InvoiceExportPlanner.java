@@ -0,0 +1,123 @@
+package pl.pbs.edu.ksefprocessdemo.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+import pl.pbs.edu.ksefprocessdemo.config.props.ExportShardingProps;
+import pl.pbs.edu.ksefprocessdemo.model.ExportWindow;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Splits a date range into windows and exports them concurrently (at most _ksef.export.concurrency_ at once).
+ * A window that comes back truncated (10k invoices limit) has its remainder split again, so back-fill time scales
+ * with allowed concurrency rather than with the number of 10k pages. A cancelled run starts no more windows.
+ */
+@Component
+@Slf4j
+public class InvoiceExportPlanner {
+
+  @FunctionalInterface
+  public interface WindowExporter {
+    /**
+     * Exports (and consumes) a single window.
+     *
+     * @return Date the export was truncated at, or null if the whole window was exported.
+     */
+    OffsetDateTime export(ExportWindow window) throws ApiException;
+  }
+
+  private final ExportShardingProps props;
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+  public InvoiceExportPlanner(ExportShardingProps props) {
+    this.props = props;
+  }
+
+  public List<ExportWindow> plan(OffsetDateTime dateFrom, OffsetDateTime dateTo) {
+    return new ExportWindow(dateFrom, dateTo).splitBy(props.getWindow());
+  }
+
+  public CompletableFuture<Void> run(OffsetDateTime dateFrom, OffsetDateTime dateTo, WindowExporter exporter) {
+    return run(dateFrom, dateTo, ExportCancellation.none(), exporter);
+  }
+
+  /**
+   * Every run gets its own concurrency limit, so parallel runs do not block each other.
+   *
+   * @param cancellation Once cancelled, windows not started yet fail with CancellationException.
+   */
+  public CompletableFuture<Void> run(
+      OffsetDateTime dateFrom,
+      OffsetDateTime dateTo,
+      ExportCancellation cancellation,
+      WindowExporter exporter
+  ) {
+    Run run = new Run(exporter, cancellation, new Semaphore(Math.max(1, props.getConcurrency())));
+    List<ExportWindow> windows = plan(dateFrom, dateTo);
+    log.debug("Export of {} - {} planned as {} window(s)", dateFrom, dateTo, windows.size());
+
+    return runAll(windows, run);
+  }
+
+  private record Run(WindowExporter exporter, ExportCancellation cancellation, Semaphore running) {
+  }
+
+  private CompletableFuture<Void> runAll(List<ExportWindow> windows, Run run) {
+    return CompletableFuture.allOf(windows
+        .stream()
+        .map(window -> runWindow(window, run))
+        .toArray(CompletableFuture[]::new));
+  }
+
+  private CompletableFuture<Void> runWindow(ExportWindow window, Run run) {
+    return CompletableFuture
+        .supplyAsync(() -> exportLimited(window, run), executor)
+        .thenCompose(truncatedAt -> {
+          if (truncatedAt == null) return CompletableFuture.completedFuture(null);
+          if (!truncatedAt.isAfter(window.from())) {
+            // No progress would mean exporting the same window forever.
+            return CompletableFuture.failedFuture(new IllegalStateException(
+                "Export of " + window + " truncated without progress at " + truncatedAt));
+          }
+
+          ExportWindow remainder = new ExportWindow(truncatedAt, window.to());
+          List<ExportWindow> next = remainder.length().compareTo(props.getMinWindow()) > 0
+              ? remainder.splitInto(props.getConcurrency())
+              : List.of(remainder);
+          log.debug("Window {} truncated at {}, continuing with {} window(s)", window, truncatedAt, next.size());
+          return runAll(next, run);
+        });
+  }
+
+  private OffsetDateTime exportLimited(ExportWindow window, Run run) {
+    run.cancellation().throwIfCancelled("Export of " + window);
+    try {
+      run.running().acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CompletionException(e);
+    }
+    try {
+      // Cancelled while waiting for a slot.
+      run.cancellation().throwIfCancelled("Export of " + window);
+      return run.exporter().export(window);
+    } catch (ApiException e) {
+      throw new CompletionException(e);
+    } finally {
+      run.running().release();
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+}
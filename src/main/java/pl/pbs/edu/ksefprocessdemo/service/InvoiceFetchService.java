@@ -0,0 +1,220 @@
+package pl.pbs.edu.ksefprocessdemo.service;
+
+import jakarta.xml.bind.JAXBException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import pl.akmf.ksef.sdk.client.interfaces.KSeFClient;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+import pl.pbs.edu.ksefprocessdemo.archive.InvoiceArchive;
+import pl.pbs.edu.ksefprocessdemo.auth.KsefAuthorizationProvider;
+import pl.pbs.edu.ksefprocessdemo.cache.InvoiceCache;
+import pl.pbs.edu.ksefprocessdemo.config.props.InvoiceCacheProps;
+import pl.pbs.edu.ksefprocessdemo.metrics.KsefMetrics;
+import pl.pbs.edu.ksefprocessdemo.model.KsefInvoice;
+import pl.pbs.edu.ksefprocessdemo.utils.KsefInvoiceFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Fetches specific invoices by ksefId. Each one is looked up in the memory cache, then in the local archive (when
+ * enabled) and only then downloaded with getInvoice - _ksef.invoice-fetch.concurrency_ at a time on virtual threads,
+ * paced by the invoice-download rate limit of KsefRateLimiter. Concurrent requests for the same ksefId share one
+ * download. KSeF invoices are immutable, so a cached or archived copy is always current.
+ */
+@Slf4j
+@Service
+public class InvoiceFetchService {
+
+  public enum Source { MEMORY, ARCHIVE, KSEF }
+
+  /**
+   * @param invoice Null if the invoice could not be fetched.
+   * @param source  Where the invoice came from, null if it could not be fetched.
+   * @param error   Why the invoice could not be fetched (e.g. ApiException 404 for an unknown ksefId).
+   */
+  public record FetchResult(String ksefId, KsefInvoice invoice, Source source, Exception error) {
+    public boolean failed() {
+      return error != null;
+    }
+  }
+
+  private final KSeFClient ksefClient;
+  private final KsefAuthorizationProvider kap;
+  private final KsefInvoiceFactory ksefInvoiceFactory;
+  private final InvoiceArchive invoiceArchive;
+  private final InvoiceCache invoiceCache;
+  private final InvoiceCacheProps props;
+  private final KsefMetrics metrics;
+  private final Map<String, CompletableFuture<byte[]>> downloads = new ConcurrentHashMap<>();
+
+  public InvoiceFetchService(
+      KSeFClient ksefClient,
+      KsefAuthorizationProvider kap,
+      KsefInvoiceFactory ksefInvoiceFactory,
+      InvoiceArchive invoiceArchive,
+      InvoiceCache invoiceCache,
+      InvoiceCacheProps props,
+      KsefMetrics metrics
+  ) {
+    this.ksefClient = ksefClient;
+    this.kap = kap;
+    this.ksefInvoiceFactory = ksefInvoiceFactory;
+    this.invoiceArchive = invoiceArchive;
+    this.invoiceCache = invoiceCache;
+    this.props = props;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Same service fetching with the token of another NIP. Cache and archive are shared - a ksefId identifies
+   * the invoice globally.
+   */
+  public InvoiceFetchService forTenant(KsefAuthorizationProvider tenantKap) {
+    return new InvoiceFetchService(ksefClient, tenantKap, ksefInvoiceFactory, invoiceArchive, invoiceCache, props,
+        metrics);
+  }
+
+  public KsefInvoice fetch(String ksefId) {
+    FetchResult result = fetchOne(ksefId, new Semaphore(1));
+    if (!result.failed()) return result.invoice();
+    throw result.error() instanceof RuntimeException re ? re : new RuntimeException(result.error());
+  }
+
+  /**
+   * Fetches all the invoices (duplicates once), handing every result to the sink as soon as it is ready - cached
+   * ones first, downloads in the order they complete. The sink is never called concurrently. An invoice that cannot
+   * be fetched is reported in its result, the others carry on. A failing sink stops the fetches still running.
+   *
+   * @return Number of invoices fetched.
+   */
+  public long fetch(Collection<String> ksefIds, Consumer<FetchResult> sink) {
+    Semaphore inFlight = new Semaphore(Math.max(1, props.getFetchConcurrency()));
+    Lock sinkLock = new ReentrantLock();
+    LongAdder fetched = new LongAdder();
+
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+      List<Future<Void>> futures = new ArrayList<>(ksefIds.size());
+      for (String ksefId : new LinkedHashSet<>(ksefIds)) {
+        futures.add(completion.submit(() -> {
+          FetchResult result = fetchOne(ksefId, inFlight);
+          sinkLock.lock();
+          try {
+            if (Thread.currentThread().isInterrupted()) throw new CancellationException("Invoice fetch cancelled");
+            sink.accept(result);
+            if (!result.failed()) fetched.increment();
+          } finally {
+            sinkLock.unlock();
+          }
+          return null;
+        }));
+      }
+      try {
+        // In completion order, so the first failure is seen right away.
+        for (int i = 0; i < futures.size(); i++) {
+          completion.take().get();
+        }
+      } finally {
+        // No-op once all are done, otherwise close() would wait for fetches nobody needs any more.
+        futures.forEach(future -> future.cancel(true));
+      }
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException re) throw re;
+      throw new RuntimeException(cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Invoice fetch interrupted");
+    }
+    return fetched.sum();
+  }
+
+  private FetchResult fetchOne(String ksefId, Semaphore inFlight) {
+    try {
+      Optional<byte[]> cached = invoiceCache.get(ksefId);
+      if (cached.isPresent()) return found(ksefId, ksefInvoiceFactory.restore(ksefId, cached.get()), Source.MEMORY);
+
+      Optional<byte[]> archived = invoiceArchive.isEnabled() ? invoiceArchive.read(ksefId) : Optional.empty();
+      if (archived.isPresent()) {
+        invoiceCache.put(ksefId, archived.get());
+        return found(ksefId, ksefInvoiceFactory.restore(ksefId, archived.get()), Source.ARCHIVE);
+      }
+
+      CompletableFuture<byte[]> download = new CompletableFuture<>();
+      CompletableFuture<byte[]> running = downloads.putIfAbsent(ksefId, download);
+      if (running != null) return found(ksefId, ksefInvoiceFactory.restore(ksefId, join(running)), Source.KSEF);
+
+      try {
+        // A download of the same invoice may have finished between the lookup above and putIfAbsent.
+        cached = invoiceCache.get(ksefId);
+        if (cached.isPresent()) {
+          download.complete(cached.get());
+          return found(ksefId, ksefInvoiceFactory.restore(ksefId, cached.get()), Source.MEMORY);
+        }
+        byte[] xml = download(ksefId, inFlight);
+        // Created (archived, validated) only by the thread that downloaded it - and cached only once it is valid.
+        KsefInvoice invoice = ksefInvoiceFactory.create(ksefId, xml);
+        invoiceCache.put(ksefId, xml);
+        download.complete(xml);
+        return found(ksefId, invoice, Source.KSEF);
+      } catch (Exception e) {
+        download.completeExceptionally(e);
+        throw e;
+      } finally {
+        downloads.remove(ksefId, download);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Invoice fetch interrupted");
+    } catch (ApiException | JAXBException | RuntimeException e) {
+      log.debug("Invoice {} could not be fetched: {}", ksefId, e.getMessage());
+      return new FetchResult(ksefId, null, null, e);
+    }
+  }
+
+  private byte[] download(String ksefId, Semaphore inFlight) throws ApiException, InterruptedException {
+    inFlight.acquire();
+    try {
+      return metrics.api(
+          "getInvoice",
+          () -> ksefClient.getInvoice(ksefId, kap.getTokens().getAccessToken().getToken())
+      );
+    } finally {
+      inFlight.release();
+    }
+  }
+
+  private FetchResult found(String ksefId, KsefInvoice invoice, Source source) {
+    metrics.invoiceFetched(source.name().toLowerCase());
+    return new FetchResult(ksefId, invoice, source, null);
+  }
+
+  private static byte[] join(CompletableFuture<byte[]> download) throws ApiException {
+    try {
+      return download.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof ApiException ae) throw ae;
+      throw e.getCause() instanceof RuntimeException re ? re : e;
+    }
+  }
+}
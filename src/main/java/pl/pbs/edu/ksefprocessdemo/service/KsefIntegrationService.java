@@ -1,8 +1,11 @@
 package pl.pbs.edu.ksefprocessdemo.service;
 
+import jakarta.xml.bind.JAXBException;
+import io.micrometer.observation.Observation;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Service;
-import pl.akmf.ksef.sdk.api.HttpStatus;
+import pl.akmf.ksef.sdk.api.builders.invoices.InvoiceQueryFiltersBuilder;
 import pl.akmf.ksef.sdk.api.builders.invoices.InvoicesAsyncQueryFiltersBuilder;
 import pl.akmf.ksef.sdk.api.services.DefaultCryptographyService;
 import pl.akmf.ksef.sdk.client.interfaces.KSeFClient;
@@ -10,58 +13,402 @@ import pl.akmf.ksef.sdk.client.model.ApiException;
 import pl.akmf.ksef.sdk.client.model.invoice.*;
 import pl.akmf.ksef.sdk.client.model.session.EncryptionData;
 import pl.akmf.ksef.sdk.client.model.session.EncryptionInfo;
+import pl.akmf.ksef.sdk.client.model.util.SortOrder;
+import pl.pbs.edu.ksefprocessdemo.archive.InvoiceArchive;
 import pl.pbs.edu.ksefprocessdemo.auth.KsefAuthorizationProvider;
+import pl.pbs.edu.ksefprocessdemo.dedup.KsefIdSet;
 import pl.pbs.edu.ksefprocessdemo.exception.KsefPackagePoolException;
+import pl.pbs.edu.ksefprocessdemo.metrics.KsefMetrics;
+import pl.pbs.edu.ksefprocessdemo.model.ExportWindow;
 import pl.pbs.edu.ksefprocessdemo.model.KsefInvoice;
+import pl.pbs.edu.ksefprocessdemo.spool.PackageSpool;
+import pl.pbs.edu.ksefprocessdemo.spool.SpooledPackage;
+import pl.pbs.edu.ksefprocessdemo.tenant.TenantExportGate;
+import pl.pbs.edu.ksefprocessdemo.utils.KsefInvoiceFactory;
 import pl.pbs.edu.ksefprocessdemo.utils.KsefPayloadProcessor;
+import pl.pbs.edu.ksefprocessdemo.utils.ParallelInvoiceParser;
 
+import java.time.LocalDate;
 import java.time.OffsetDateTime;
 import java.util.HashSet;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 @Slf4j
 @Service
 public class KsefIntegrationService {
 
+  // Largest metadata page KSeF serves.
+  private static final int METADATA_PAGE_SIZE = 250;
+
   private final DefaultCryptographyService defaultCryptographyService;
   private final KsefAuthorizationProvider kap;
   private final KSeFClient ksefClient;
   private final KsefPayloadProcessor ksefPayloadProcessor;
-
+  private final InvoiceExportPlanner exportPlanner;
+  private final ExportStatusPoller exportStatusPoller;
+  private final InvoiceArchive invoiceArchive;
+  private final KsefInvoiceFactory ksefInvoiceFactory;
+  private final KsefMetrics metrics;
+  private final TenantExportGate exportGate;
+  private final PackageSpool packageSpool;
 
   public KsefIntegrationService(
-      DefaultCryptographyService defaultCryptographyService,
+      @Lazy DefaultCryptographyService defaultCryptographyService,
       KsefAuthorizationProvider kap,
       KSeFClient ksefClient,
-      KsefPayloadProcessor ksefPayloadProcessor
+      KsefPayloadProcessor ksefPayloadProcessor,
+      InvoiceExportPlanner exportPlanner,
+      ExportStatusPoller exportStatusPoller,
+      InvoiceArchive invoiceArchive,
+      KsefInvoiceFactory ksefInvoiceFactory,
+      KsefMetrics metrics,
+      TenantExportGate exportGate,
+      PackageSpool packageSpool
   ) {
     this.defaultCryptographyService = defaultCryptographyService;
     this.kap = kap;
     this.ksefClient = ksefClient;
     this.ksefPayloadProcessor = ksefPayloadProcessor;
+    this.exportPlanner = exportPlanner;
+    this.exportStatusPoller = exportStatusPoller;
+    this.invoiceArchive = invoiceArchive;
+    this.ksefInvoiceFactory = ksefInvoiceFactory;
+    this.metrics = metrics;
+    this.exportGate = exportGate;
+    this.packageSpool = packageSpool;
+  }
+
+  /**
+   * @return Service fetching invoices of another NIP - everything but the tokens is shared with this one.
+   */
+  public KsefIntegrationService forTenant(KsefAuthorizationProvider tenantKap) {
+    return new KsefIntegrationService(
+        defaultCryptographyService,
+        tenantKap,
+        ksefClient,
+        ksefPayloadProcessor,
+        exportPlanner,
+        exportStatusPoller,
+        invoiceArchive,
+        ksefInvoiceFactory,
+        metrics,
+        exportGate,
+        packageSpool
+    );
   }
 
+  /**
+   * Keeps every invoice of the range in memory - for big ranges prefer _forEachInvoiceBetween_.
+   */
   public Set<KsefInvoice> fetchInvoicePackageBetween(OffsetDateTime dateFrom, OffsetDateTime dateTo) {
+    return join(fetchInvoicePackageBetweenAsync(dateFrom, dateTo));
+  }
+
+  public CompletableFuture<Set<KsefInvoice>> fetchInvoicePackageBetweenAsync(
+      OffsetDateTime dateFrom,
+      OffsetDateTime dateTo
+  ) {
+    Set<KsefInvoice> invoices = ConcurrentHashMap.newKeySet();
+    return fetchInvoicesBetweenAsync(dateFrom, dateTo, invoices::add).thenApply(delivered -> invoices);
+  }
+
+  /**
+   * Blocking variant of _fetchInvoicesBetweenAsync_.
+   *
+   * @return Number of invoices handed to the sink.
+   */
+  public long forEachInvoiceBetween(OffsetDateTime dateFrom, OffsetDateTime dateTo, Consumer<KsefInvoice> sink) {
+    return join(fetchInvoicesBetweenAsync(dateFrom, dateTo, sink));
+  }
+
+  /**
+   * Streams invoices to the sink as soon as each package is parsed, no invoices are retained here. Only ksefIds are
+   * remembered (off-heap in a KsefIdSet, about 23 bytes each), to drop duplicates from overlapping windows - memory
+   * grows linearly with the number of invoices in the range. An invoice counts as seen only once the sink has taken
+   * it.
+   * The sink is never called concurrently, and since it is called on the parsing thread, a slow sink slows the
+   * parsing down instead of piling invoices up in memory.
+   * The whole run is one _ksef.sync_ observation, with the exports of its windows as children.
+   *
+   * @return Future completed with the number of invoices handed to the sink.
+   */
+  public CompletableFuture<Long> fetchInvoicesBetweenAsync(
+      OffsetDateTime dateFrom,
+      OffsetDateTime dateTo,
+      Consumer<KsefInvoice> sink
+  ) {
+    return fetchInvoicesBetweenAsync(dateFrom, dateTo, InvoiceQuerySubjectType.SUBJECT2, sink, exportPackage -> {
+    });
+  }
+
+  /**
+   * Same as above, for invoices where the NIP is the given subject (SUBJECT2 - purchase invoices, SUBJECT1 - sales).
+   *
+   * @param packageListener Called with every exported package once its invoices are in the sink.
+   */
+  public CompletableFuture<Long> fetchInvoicesBetweenAsync(
+      OffsetDateTime dateFrom,
+      OffsetDateTime dateTo,
+      InvoiceQuerySubjectType subjectType,
+      Consumer<KsefInvoice> sink,
+      Consumer<InvoiceExportPackage> packageListener
+  ) {
+    return fetchInvoicesBetweenAsync(dateFrom, dateTo, subjectType, sink, packageListener, ExportCancellation.none());
+  }
+
+  /**
+   * @param cancellation Once cancelled, no more windows or exports are started, status polls stop and the package
+   *                     being parsed stops at its next invoice. The future then fails with CancellationException.
+   */
+  public CompletableFuture<Long> fetchInvoicesBetweenAsync(
+      OffsetDateTime dateFrom,
+      OffsetDateTime dateTo,
+      InvoiceQuerySubjectType subjectType,
+      Consumer<KsefInvoice> sink,
+      Consumer<InvoiceExportPackage> packageListener,
+      ExportCancellation cancellation
+  ) {
+    // Off-heap, ~23 bytes per delivered invoice - still O(n) in the size of the range. Guarded by sinkLock.
+    KsefIdSet seenKsefIds = new KsefIdSet();
+    Lock sinkLock = new ReentrantLock();
+    LongAdder delivered = new LongAdder();
+
+    Consumer<KsefInvoice> deduplicatingSink = invoice -> {
+      sinkLock.lock();
+      try {
+        cancellation.throwIfCancelled("Export");
+        if (seenKsefIds.contains(invoice.getKsefId())) return;
+        sink.accept(invoice);
+        seenKsefIds.add(invoice.getKsefId());
+        delivered.increment();
+      } finally {
+        sinkLock.unlock();
+      }
+    };
+    InvoiceQueryDateType dateType = InvoiceQueryDateType.INVOICING;
+    Observation observation = metrics.syncObservation("export").start();
+    return exportPlanner
+        .run(dateFrom, dateTo, cancellation, window -> observation.scopedChecked(() -> {
+          InvoiceExportPackage exportPackage = exportPackage(
+              window,
+              dateType,
+              subjectType,
+              deduplicatingSink,
+              cancellation
+          );
+          packageListener.accept(exportPackage);
+          return Boolean.TRUE.equals(exportPackage.getIsTruncated()) ? lastDate(exportPackage, dateType) : null;
+        }))
+        .thenApply(done -> delivered.sum())
+        .whenComplete((count, error) -> {
+          if (error != null) observation.error(error);
+          observation.stop();
+        });
+  }
+
+  /**
+   * Serves invoices issued in [dateFrom, dateTo] from the local archive only, without touching KSeF.
+   *
+   * @param sellerNip Only invoices of this seller, or null for all.
+   * @return Number of invoices handed to the sink.
+   */
+  public long forEachArchivedInvoiceBetween(
+      LocalDate dateFrom,
+      LocalDate dateTo,
+      String sellerNip,
+      Consumer<KsefInvoice> sink
+  ) {
+    LongAdder delivered = new LongAdder();
+    invoiceArchive.scan(dateFrom, dateTo, sellerNip, (entry, xml) -> {
+      try {
+        sink.accept(ksefInvoiceFactory.restore(entry.ksefId(), xml));
+        delivered.increment();
+      } catch (JAXBException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    return delivered.sum();
+  }
+
+  public Optional<KsefInvoice> findArchivedInvoice(String ksefId) {
+    return invoiceArchive.read(ksefId).map(xml -> {
+      try {
+        return ksefInvoiceFactory.restore(ksefId, xml);
+      } catch (JAXBException e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  /**
+   * Date of the last exported invoice on the axis the export was filtered by - a truncated window continues from
+   * there. The other dates of the package are on other axes and may be earlier or later.
+   */
+  public static OffsetDateTime lastDate(InvoiceExportPackage exportPackage, InvoiceQueryDateType dateType) {
+    return switch (dateType) {
+      case ISSUE -> exportPackage.getLastIssueDate();
+      case INVOICING -> exportPackage.getLastInvoicingDate();
+      case PERMANENTSTORAGE -> exportPackage.getLastPermanentStorageDate();
+    };
+  }
+
+  private static <T> T join(CompletableFuture<T> future) {
     try {
-      return fetchInvoicePackageRecursive(dateFrom, dateTo);
-    } catch (ApiException e) {
-      throw new RuntimeException(e);
+      return future.join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException re ? re : new RuntimeException(e.getCause());
     }
   }
 
 
-  private Set<KsefInvoice> fetchInvoicePackageRecursive(
-      OffsetDateTime dateFrom,
-      OffsetDateTime dateTo
+  /**
+   * Exports a single window (one package, at most 10k invoices) and hands its invoices to the sink.
+   * Waits for a free slot of TenantExportGate first.
+   *
+   * @return Package description - check _getIsTruncated()_ to see if the window was exported completely.
+   */
+  public InvoiceExportPackage exportPackage(
+      ExportWindow window,
+      InvoiceQueryDateType dateType,
+      Consumer<KsefInvoice> sink
   ) throws ApiException {
-    Set<KsefInvoice> invoices = new HashSet<>();
+    return exportPackage(window, dateType, InvoiceQuerySubjectType.SUBJECT2, sink);
+  }
 
+  public InvoiceExportPackage exportPackage(
+      ExportWindow window,
+      InvoiceQueryDateType dateType,
+      InvoiceQuerySubjectType subjectType,
+      Consumer<KsefInvoice> sink
+  ) throws ApiException {
+    return exportPackage(window, dateType, subjectType, sink, ExportCancellation.none());
+  }
+
+  /**
+   * @param cancellation Checked before the export starts, stops the status polling when cancelled.
+   */
+  public InvoiceExportPackage exportPackage(
+      ExportWindow window,
+      InvoiceQueryDateType dateType,
+      InvoiceQuerySubjectType subjectType,
+      Consumer<KsefInvoice> sink,
+      ExportCancellation cancellation
+  ) throws ApiException {
+    try (TenantExportGate.Permit permit = exportGate.enter(kap.getNIP())) {
+      cancellation.throwIfCancelled("Export of " + window);
+      return metrics
+          .exportObservation(dateType.name())
+          .observeChecked(() -> exportPackageObserved(window, dateType, subjectType, sink, cancellation));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Export of " + window + " interrupted");
+    }
+  }
+
+  private InvoiceExportPackage exportPackageObserved(
+      ExportWindow window,
+      InvoiceQueryDateType dateType,
+      InvoiceQuerySubjectType subjectType,
+      Consumer<KsefInvoice> sink,
+      ExportCancellation cancellation
+  ) throws ApiException {
+    if (packageSpool.isEnabled()) return exportSpooled(window, dateType, subjectType, sink, cancellation);
 
     EncryptionData encryptionData = defaultCryptographyService.getEncryptionData();
-    InvoiceExportFilters filters = new InvoicesAsyncQueryFiltersBuilder()
+    InvoiceExportStatus exportStatus = poolUntilPackageReady(
+        initExport(window, dateType, subjectType, encryptionData),
+        cancellation
+    );
+
+    ksefPayloadProcessor.parseKsefPayload(exportStatus, encryptionData, ParallelInvoiceParser.Ordering.UNORDERED, sink);
+    metrics.exportedPackage(exportStatus.getPackageParts());
+    return exportStatus.getPackageParts();
+  }
+
+  /**
+   * Parts are downloaded to disk before parsing. An export of the same window left unfinished by an earlier run
+   * (crash, failed part) is picked up where it stopped, without a new export. The spool is deleted once the package
+   * is parsed.
+   */
+  private InvoiceExportPackage exportSpooled(
+      ExportWindow window,
+      InvoiceQueryDateType dateType,
+      InvoiceQuerySubjectType subjectType,
+      Consumer<KsefInvoice> sink,
+      ExportCancellation cancellation
+  ) throws ApiException {
+    String spoolKey = String.format("%s-%s-%s-%d-%d", kap.getNIP(), subjectType.name().toLowerCase(),
+        dateType.name().toLowerCase(), window.from().toEpochSecond(), window.to().toEpochSecond());
+    SpooledPackage spooled = packageSpool.resume(spoolKey).orElse(null);
+    if (spooled != null) {
+      log.info("Resuming spooled export {}", spooled);
+    } else {
+      EncryptionData encryptionData = defaultCryptographyService.getEncryptionData();
+      String referenceNumber = initExport(window, dateType, subjectType, encryptionData);
+      InvoiceExportStatus exportStatus = poolUntilPackageReady(referenceNumber, cancellation);
+      spooled = packageSpool.create(spoolKey, referenceNumber, encryptionData, exportStatus.getPackageParts());
+    }
+
+    packageSpool.download(spooled);
+    ksefPayloadProcessor.parseDecryptedPackage(
+        packageSpool.openDecryptedPackage(spooled),
+        ParallelInvoiceParser.Ordering.UNORDERED,
+        sink
+    );
+    metrics.exportedPackage(spooled.getExportPackage());
+    packageSpool.delete(spooled);
+    return spooled.getExportPackage();
+  }
+
+  /**
+   * One metadata query (paged, but a single moment rarely fills a page).
+   *
+   * @return KsefIds of the invoices (SUBJECT2) whose permanent storage date is exactly _moment_.
+   */
+  public Set<String> ksefIdsStoredAt(OffsetDateTime moment) throws ApiException {
+    InvoiceQueryFilters filters = new InvoiceQueryFiltersBuilder()
         .withSubjectType(InvoiceQuerySubjectType.SUBJECT2)
-        .withDateRange(new InvoiceQueryDateRange(InvoiceQueryDateType.INVOICING, dateFrom, dateTo))
+        .withDateRange(new InvoiceQueryDateRange(InvoiceQueryDateType.PERMANENTSTORAGE, moment, moment))
+        .build();
+
+    Set<String> ksefIds = new HashSet<>();
+    QueryInvoiceMetadataResponse page;
+    int pageOffset = 0;
+    do {
+      int offset = pageOffset++;
+      page = metrics.api("queryMetadata", () -> ksefClient.queryInvoiceMetadata(
+          offset,
+          METADATA_PAGE_SIZE,
+          SortOrder.ASC,
+          filters,
+          kap.getTokens().getAccessToken().getToken()
+      ));
+      for (InvoiceMetadata metadata : page.getInvoices()) {
+        OffsetDateTime storedAt = metadata.getPermanentStorageDate();
+        if (storedAt != null && moment.isEqual(storedAt)) ksefIds.add(metadata.getKsefNumber());
+      }
+    } while (Boolean.TRUE.equals(page.getHasMore()));
+    return ksefIds;
+  }
+
+  /**
+   * @return Reference number of the started export.
+   */
+  private String initExport(
+      ExportWindow window,
+      InvoiceQueryDateType dateType,
+      InvoiceQuerySubjectType subjectType,
+      EncryptionData encryptionData
+  ) throws ApiException {
+    InvoiceExportFilters filters = new InvoicesAsyncQueryFiltersBuilder()
+        .withSubjectType(subjectType)
+        .withDateRange(new InvoiceQueryDateRange(dateType, window.from(), window.to()))
         .build();
 
     InvoiceExportRequest request = new InvoiceExportRequest(
@@ -70,68 +417,18 @@ public class KsefIntegrationService {
             encryptionData.encryptionInfo().getInitializationVector()
         ), filters
     );
-    InitAsyncInvoicesQueryResponse response = ksefClient.initAsyncQueryInvoice(
+    InitAsyncInvoicesQueryResponse response = metrics.api("exportInit", () -> ksefClient.initAsyncQueryInvoice(
         request,
         kap.getTokens().getAccessToken().getToken()
-    );
-    InvoiceExportStatus exportStatus = poolUntilPackageReady(response.getReferenceNumber());
-
-
-    // Because 10k invoices is limit before truncated, I will parse payload recursively too.
-    if (exportStatus.getPackageParts().getIsTruncated()) // Set will make sure it's unique.
-      invoices.addAll(fetchInvoicePackageRecursive(
-          exportStatus.getPackageParts().getLastPermanentStorageDate(),
-          dateTo
-      ));
-    invoices.addAll(ksefPayloadProcessor.parseKsefPayload(exportStatus, encryptionData));
-
-    return invoices;
+    ));
+    return response.getReferenceNumber();
   }
 
 
-  private InvoiceExportStatus poolUntilPackageReady(String referenceNumber) throws KsefPackagePoolException {
+  private InvoiceExportStatus poolUntilPackageReady(String referenceNumber, ExportCancellation cancellation)
+      throws KsefPackagePoolException {
     log.debug("Package pooling starts...");
-    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-    CompletableFuture<InvoiceExportStatus> future = new CompletableFuture<>();
-
-    final long timeoutMillis = 60_000 * 30; //30 Minutes
-    final long start = System.currentTimeMillis();
-
-    scheduler.scheduleAtFixedRate(
-        () -> {
-          try {
-            InvoiceExportStatus status = ksefClient.checkStatusAsyncQueryInvoice(
-                referenceNumber,
-                kap.getTokens().getAccessToken().getToken()
-            );
-            log.debug("[DEBUG] Actual status code of pooling: {}", status.getStatus().getCode());
-            if (status.getStatus().getCode() == HttpStatus.OK.getCode()) {
-              future.complete(status);
-              scheduler.shutdown();
-            }
-
-            if (status.getStatus().getCode() != HttpStatus.CONTINUE.getCode()) {
-              future.completeExceptionally(new KsefPackagePoolException(status));
-            }
-
-            if (System.currentTimeMillis() - start > timeoutMillis) {
-              future.completeExceptionally(new TimeoutException("Invoice export timeout"));
-              scheduler.shutdown();
-            }
-
-          } catch (ApiException e) {
-            future.completeExceptionally(e);
-            scheduler.shutdown();
-          }
-        }, 0, 10, TimeUnit.SECONDS
-    );
-
-    try {
-      return future.get();
-    } catch (ExecutionException | InterruptedException e) {
-      throw new RuntimeException(e);
-    } finally {
-      scheduler.shutdownNow();
-    }
+    // Exports run on virtual threads, waiting here does not pin a platform thread.
+    return join(exportStatusPoller.await(referenceNumber, kap, cancellation));
   }
 }
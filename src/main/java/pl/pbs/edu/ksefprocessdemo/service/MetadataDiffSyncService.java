@@ -0,0 +1,267 @@
+package pl.pbs.edu.ksefprocessdemo.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import pl.akmf.ksef.sdk.api.builders.invoices.InvoiceQueryFiltersBuilder;
+import pl.akmf.ksef.sdk.client.interfaces.KSeFClient;
+import pl.akmf.ksef.sdk.client.model.ApiException;
+import pl.akmf.ksef.sdk.client.model.invoice.*;
+import pl.akmf.ksef.sdk.client.model.util.SortOrder;
+import pl.pbs.edu.ksefprocessdemo.archive.InvoiceArchive;
+import pl.pbs.edu.ksefprocessdemo.auth.KsefAuthorizationProvider;
+import pl.pbs.edu.ksefprocessdemo.dedup.KsefIdIndex;
+import pl.pbs.edu.ksefprocessdemo.metrics.KsefMetrics;
+import pl.pbs.edu.ksefprocessdemo.model.ExportWindow;
+import pl.pbs.edu.ksefprocessdemo.model.KsefInvoice;
+import pl.pbs.edu.ksefprocessdemo.utils.KsefInvoiceFactory;
+
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Metadata-first sync: pages through invoice metadata (cheap, synchronous), diffs ksefIds against what is already
+ * known locally and downloads only the missing invoices - one by one with getInvoice when there are few of them
+ * (no export queue at all), or with an export narrowed to their permanent storage dates when there are many.
+ */
+@Slf4j
+@Service
+public class MetadataDiffSyncService {
+
+  private final KSeFClient ksefClient;
+  private final KsefAuthorizationProvider kap;
+  private final KsefIntegrationService ksefIntegrationService;
+  private final KsefInvoiceFactory ksefInvoiceFactory;
+  private final InvoiceArchive invoiceArchive;
+  private final KsefIdIndex ksefIdIndex;
+  private final KsefMetrics metrics;
+  // Up to this many missing invoices are downloaded one by one, above it a narrowed export is used.
+  @Value("${ksef.diff-sync.direct-fetch-threshold:200}")
+  private int directFetchThreshold;
+  @Value("${ksef.diff-sync.concurrency:8}")
+  private int concurrency;
+  @Value("${ksef.diff-sync.page-size:250}")
+  private int pageSize;
+
+  public MetadataDiffSyncService(
+      KSeFClient ksefClient,
+      KsefAuthorizationProvider kap,
+      KsefIntegrationService ksefIntegrationService,
+      KsefInvoiceFactory ksefInvoiceFactory,
+      InvoiceArchive invoiceArchive,
+      KsefIdIndex ksefIdIndex,
+      KsefMetrics metrics
+  ) {
+    this.ksefClient = ksefClient;
+    this.kap = kap;
+    this.ksefIntegrationService = ksefIntegrationService;
+    this.ksefInvoiceFactory = ksefInvoiceFactory;
+    this.invoiceArchive = invoiceArchive;
+    this.ksefIdIndex = ksefIdIndex;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Uses the dedup index as the known set: an invoice is recorded there only once the sink took it, so one the sink
+   * failed on is delivered again by the next run. The index is forced to disk after every exported package and at
+   * the end.
+   * <p>
+   * With the index disabled the local archive is the known set. Invoices are archived as they are created, before
+   * the sink sees them - then only the archive itself is guaranteed to get every invoice, an invoice the sink failed
+   * on is not delivered again.
+   */
+  public long sync(OffsetDateTime dateFrom, OffsetDateTime dateTo, Consumer<KsefInvoice> sink) {
+    if (!ksefIdIndex.isEnabled()) {
+      if (!invoiceArchive.isEnabled())
+        throw new IllegalStateException("Diff sync without a known-set needs the dedup index or the archive enabled");
+      return sync(dateFrom, dateTo, invoiceArchive::contains, sink);
+    }
+
+    try {
+      return sync(dateFrom, dateTo, ksefIdIndex::contains, invoice -> {
+        sink.accept(invoice);
+        ksefIdIndex.add(invoice.getKsefId());
+      }, ksefIdIndex::force);
+    } finally {
+      ksefIdIndex.force();
+    }
+  }
+
+  /**
+   * @param known Tells whether the invoice (by ksefId) is already known locally.
+   * @return Number of invoices handed to the sink.
+   */
+  public long sync(
+      OffsetDateTime dateFrom,
+      OffsetDateTime dateTo,
+      Predicate<String> known,
+      Consumer<KsefInvoice> sink
+  ) {
+    return sync(dateFrom, dateTo, known, sink, () -> {
+    });
+  }
+
+  /**
+   * @param packageCommitted Called after every package of a narrowed export is in the sink.
+   */
+  private long sync(
+      OffsetDateTime dateFrom,
+      OffsetDateTime dateTo,
+      Predicate<String> known,
+      Consumer<KsefInvoice> sink,
+      Runnable packageCommitted
+  ) {
+    return metrics.syncObservation("diff").observe(() -> {
+      try {
+        List<InvoiceMetadata> missing = queryMetadata(dateFrom, dateTo)
+            .stream()
+            .filter(metadata -> !known.test(metadata.getKsefNumber()))
+            .toList();
+        log.debug("Diff sync {} - {}: {} invoice(s) missing locally", dateFrom, dateTo, missing.size());
+        if (missing.isEmpty()) return 0L;
+
+        return missing.size() <= directFetchThreshold
+            ? fetchOneByOne(missing, sink)
+            : fetchByNarrowedExport(missing, sink, packageCommitted);
+      } catch (ApiException e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  /**
+   * Metadata of all invoices in the range. Metadata queries are also capped (isTruncated) - then the query
+   * continues from the permanent storage date of the last received invoice.
+   */
+  private List<InvoiceMetadata> queryMetadata(OffsetDateTime dateFrom, OffsetDateTime dateTo) throws ApiException {
+    Map<String, InvoiceMetadata> invoices = new LinkedHashMap<>();
+    OffsetDateTime from = dateFrom;
+
+    while (true) {
+      InvoiceQueryFilters filters = new InvoiceQueryFiltersBuilder()
+          .withSubjectType(InvoiceQuerySubjectType.SUBJECT2)
+          .withDateRange(new InvoiceQueryDateRange(InvoiceQueryDateType.PERMANENTSTORAGE, from, dateTo))
+          .build();
+
+      QueryInvoiceMetadataResponse page;
+      int pageOffset = 0;
+      InvoiceMetadata last = null;
+      do {
+        int offset = pageOffset++;
+        page = metrics.api("queryMetadata", () -> ksefClient.queryInvoiceMetadata(
+            offset,
+            pageSize,
+            SortOrder.ASC,
+            filters,
+            kap.getTokens().getAccessToken().getToken()
+        ));
+        for (InvoiceMetadata metadata : page.getInvoices()) {
+          invoices.putIfAbsent(metadata.getKsefNumber(), metadata);
+          last = metadata;
+        }
+      } while (Boolean.TRUE.equals(page.getHasMore()));
+
+      if (!Boolean.TRUE.equals(page.getIsTruncated()) || last == null) break;
+      if (!last.getPermanentStorageDate().isAfter(from))
+        throw new IllegalStateException("Metadata query truncated without progress at " + from);
+      from = last.getPermanentStorageDate();
+    }
+    return new ArrayList<>(invoices.values());
+  }
+
+  private long fetchOneByOne(List<InvoiceMetadata> missing, Consumer<KsefInvoice> sink) {
+    Semaphore inFlight = new Semaphore(Math.max(1, concurrency));
+    Lock sinkLock = new ReentrantLock();
+    LongAdder delivered = new LongAdder();
+
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      List<Future<?>> futures = new ArrayList<>(missing.size());
+      for (InvoiceMetadata metadata : missing) {
+        futures.add(executor.submit(() -> {
+          inFlight.acquire();
+          try {
+            String ksefId = metadata.getKsefNumber();
+            byte[] xml = metrics.api(
+                "getInvoice",
+                () -> ksefClient.getInvoice(ksefId, kap.getTokens().getAccessToken().getToken())
+            );
+            KsefInvoice invoice = ksefInvoiceFactory.create(ksefId, xml);
+            sinkLock.lock();
+            try {
+              sink.accept(invoice);
+              delivered.increment();
+            } finally {
+              sinkLock.unlock();
+            }
+          } finally {
+            inFlight.release();
+          }
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException re) throw re;
+      throw new RuntimeException(cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Diff sync interrupted");
+    }
+    return delivered.sum();
+  }
+
+  private long fetchByNarrowedExport(
+      List<InvoiceMetadata> missing,
+      Consumer<KsefInvoice> sink,
+      Runnable packageCommitted
+  ) throws ApiException {
+    Set<String> wanted = ConcurrentHashMap.newKeySet();
+    missing.forEach(metadata -> wanted.add(metadata.getKsefNumber()));
+    OffsetDateTime from = missing
+        .stream()
+        .map(InvoiceMetadata::getPermanentStorageDate)
+        .min(Comparator.naturalOrder())
+        .orElseThrow();
+    OffsetDateTime to = missing
+        .stream()
+        .map(InvoiceMetadata::getPermanentStorageDate)
+        .max(Comparator.naturalOrder())
+        .orElseThrow()
+        .plusNanos(1_000_000);
+
+    long delivered = 0;
+    long[] packageDelivered = {0};
+    Consumer<KsefInvoice> filteringSink = invoice -> {
+      if (!wanted.remove(invoice.getKsefId())) return;
+      sink.accept(invoice);
+      packageDelivered[0]++;
+    };
+    while (!wanted.isEmpty() && from.isBefore(to)) {
+      packageDelivered[0] = 0;
+      InvoiceExportPackage exportPackage = ksefIntegrationService.exportPackage(
+          new ExportWindow(from, to),
+          InvoiceQueryDateType.PERMANENTSTORAGE,
+          filteringSink
+      );
+      delivered += packageDelivered[0];
+      packageCommitted.run();
+      if (!Boolean.TRUE.equals(exportPackage.getIsTruncated())) break;
+      OffsetDateTime next = exportPackage.getLastPermanentStorageDate();
+      // Re-exporting the same window would loop forever, spending export quota on every round.
+      if (next == null || !next.isAfter(from))
+        throw new IllegalStateException("Narrowed export truncated without progress at " + next);
+      from = next;
+    }
+    if (!wanted.isEmpty()) log.warn("Diff sync: {} invoice(s) were not found in the export", wanted.size());
+    return delivered;
+  }
+}
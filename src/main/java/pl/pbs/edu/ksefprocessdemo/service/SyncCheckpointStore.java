@@ -0,0 +1,82 @@
+package pl.pbs.edu.ksefprocessdemo.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import pl.pbs.edu.ksefprocessdemo.model.SyncCheckpoint;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.OffsetDateTime;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Keeps sync checkpoints as small text files (high-water mark in the first line, boundary ksefIds in the following
+ * ones), one file per sync key. Files are replaced atomically, so a crash leaves the previous checkpoint intact.
+ */
+@Component
+public class SyncCheckpointStore {
+
+  private final Path directory;
+
+  public SyncCheckpointStore(@Value("${ksef.sync.checkpoint-dir:ksef-sync}") Path directory) {
+    this.directory = directory;
+  }
+
+  public Optional<SyncCheckpoint> load(String syncKey) {
+    Path file = fileOf(syncKey);
+    if (!Files.exists(file)) return Optional.empty();
+    try {
+      List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+      if (lines.isEmpty()) return Optional.empty();
+
+      Set<String> boundary = new HashSet<>(lines.subList(1, lines.size()));
+      boundary.remove("");
+      return Optional.of(new SyncCheckpoint(OffsetDateTime.parse(lines.get(0).trim()), boundary));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public void save(String syncKey, SyncCheckpoint checkpoint) {
+    try {
+      Files.createDirectories(directory);
+      Path temp = directory.resolve(syncKey + ".checkpoint.tmp");
+      try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+        writer.write(checkpoint.highWaterMark().toString());
+        writer.newLine();
+        for (String ksefId : checkpoint.boundaryKsefIds()) {
+          writer.write(ksefId);
+          writer.newLine();
+        }
+      }
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        channel.force(true);
+      }
+      Files.move(temp, fileOf(syncKey), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public void delete(String syncKey) {
+    try {
+      Files.deleteIfExists(fileOf(syncKey));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private Path fileOf(String syncKey) {
+    return directory.resolve(syncKey + ".checkpoint");
+  }
+}
@@ -0,0 +1,278 @@
+package pl.pbs.edu.ksefprocessdemo.spool;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import pl.akmf.ksef.sdk.client.model.invoice.InvoiceExportPackage;
+import pl.akmf.ksef.sdk.client.model.invoice.InvoicePackagePart;
+import pl.akmf.ksef.sdk.client.model.session.EncryptionData;
+import pl.pbs.edu.ksefprocessdemo.config.props.PackagePartProps;
+import pl.pbs.edu.ksefprocessdemo.config.props.PackageSpoolProps;
+import pl.pbs.edu.ksefprocessdemo.exception.KsefPackageDownloadException;
+import pl.pbs.edu.ksefprocessdemo.metrics.KsefMetrics;
+import pl.pbs.edu.ksefprocessdemo.utils.ChainedInputStream;
+import pl.pbs.edu.ksefprocessdemo.utils.PackagePartDownloader;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+/**
+ * Spool mode of package download (_ksef.package.spool.enabled_). Parts are written to disk through a FileChannel as
+ * they arrive and the ZIP stage reads them back from there, so the package never sits in heap byte arrays - however
+ * big it is. Completed parts are recorded in the manifest of the export (see SpooledPackage), a sync restarted after
+ * a crash downloads only the missing ones instead of exporting the window again, as long as their URLs are valid.
+ */
+@Component
+@Slf4j
+public class PackageSpool {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+  private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+  private final PackageSpoolProps props;
+  private final PackagePartProps partProps;
+  private final PackagePartDownloader packagePartDownloader;
+  private final KsefMetrics metrics;
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+  public PackageSpool(
+      PackageSpoolProps props,
+      PackagePartProps partProps,
+      PackagePartDownloader packagePartDownloader,
+      KsefMetrics metrics
+  ) {
+    this.props = props;
+    this.partProps = partProps;
+    this.packagePartDownloader = packagePartDownloader;
+    this.metrics = metrics;
+  }
+
+  public boolean isEnabled() {
+    return props.isEnabled();
+  }
+
+  /**
+   * @param key Identifies the export across restarts (tenant, date type, window).
+   * @return Export spooled under the key by an earlier run, if its missing parts can still be downloaded. Spools
+   * that cannot be resumed are deleted.
+   */
+  public Optional<SpooledPackage> resume(String key) {
+    Path directory = directoryOf(key);
+    if (!SpooledPackage.exists(directory)) return Optional.empty();
+    try {
+      SpooledPackage spooled = SpooledPackage.load(directory);
+      OffsetDateTime validUntil = OffsetDateTime.now().plus(props.getMinUrlValidity());
+      boolean expired = spooled
+          .missingParts()
+          .stream()
+          .anyMatch(part -> part.getExpirationDate() != null && part.getExpirationDate().isBefore(validUntil));
+      if (!expired) return Optional.of(spooled);
+      log.info("Spooled export {} has expired part URLs, it will be exported again", key);
+    } catch (IOException | RuntimeException e) {
+      log.warn("Spooled export {} cannot be read, it will be exported again: {}", key, e.getMessage());
+    }
+    deleteDirectory(directory);
+    return Optional.empty();
+  }
+
+  /**
+   * Starts a spool for a ready export, replacing whatever was spooled under the key before.
+   */
+  public SpooledPackage create(
+      String key,
+      String referenceNumber,
+      EncryptionData encryptionData,
+      InvoiceExportPackage exportPackage
+  ) {
+    Path directory = directoryOf(key);
+    deleteDirectory(directory);
+    try {
+      createPrivateDirectory(directory);
+      SpooledPackage spooled = new SpooledPackage(directory, referenceNumber, encryptionData, exportPackage);
+      spooled.save();
+      return spooled;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Downloads the parts that are not on disk yet, _ksef.package.parts.concurrency_ at a time. When a part fails for
+   * good, the others are cancelled - what completed stays spooled for the next attempt.
+   */
+  public void download(SpooledPackage spooled) {
+    List<InvoicePackagePart> missing = spooled.missingParts();
+    if (missing.isEmpty()) return;
+
+    Semaphore slots = new Semaphore(Math.max(1, partProps.getConcurrency()));
+    List<Future<?>> downloads = new ArrayList<>(missing.size());
+    try {
+      for (InvoicePackagePart part : missing) {
+        slots.acquire();
+        downloads.add(executor.submit(() -> {
+          try {
+            downloadWithRetry(spooled, part);
+            return null;
+          } finally {
+            slots.release();
+          }
+        }));
+      }
+      for (Future<?> download : downloads) {
+        download.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Download of " + spooled + " interrupted");
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof RuntimeException re ? re : new RuntimeException(e.getCause());
+    } finally {
+      downloads.forEach(download -> download.cancel(true));
+    }
+  }
+
+  /**
+   * @return Decrypted, concatenated content of all (downloaded) parts, read part by part from the spool.
+   */
+  public InputStream openDecryptedPackage(SpooledPackage spooled) {
+    List<ChainedInputStream.StreamOpener> openers = spooled
+        .getExportPackage()
+        .getParts()
+        .stream()
+        .sorted(Comparator.comparing(InvoicePackagePart::getOrdinalNumber))
+        .<ChainedInputStream.StreamOpener>map(part -> () -> openDecryptedPart(spooled, part))
+        .toList();
+
+    return new BufferedInputStream(new ChainedInputStream(openers.iterator()), BUFFER_SIZE);
+  }
+
+  public void delete(SpooledPackage spooled) {
+    deleteDirectory(spooled.getDirectory());
+  }
+
+  private InputStream openDecryptedPart(SpooledPackage spooled, InvoicePackagePart part) throws IOException {
+    FileChannel channel = FileChannel.open(spooled.partFile(part), StandardOpenOption.READ);
+    InputStream encrypted = new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE);
+    return metrics.meter(
+        PackagePartDownloader.decrypt(encrypted, spooled.getEncryptionData()),
+        KsefMetrics.STAGE_DECRYPT,
+        null
+    );
+  }
+
+  private void downloadWithRetry(SpooledPackage spooled, InvoicePackagePart part) throws InterruptedException {
+    long backoff = partProps.getRetryBackoff().toMillis();
+    int attempts = Math.max(1, partProps.getRetryMaxAttempts());
+
+    for (int attempt = 1; ; attempt++) {
+      try {
+        downloadPart(spooled, part);
+        return;
+      } catch (IOException | KsefPackageDownloadException e) {
+        if (attempt >= attempts) throw e instanceof KsefPackageDownloadException kpde
+            ? kpde
+            : new KsefPackageDownloadException(part.getPartName(), e);
+
+        log.warn("Spooling package part {} failed (attempt {}/{}), retrying in {} ms: {}",
+            part.getPartName(), attempt, attempts, backoff, e.getMessage());
+        Thread.sleep(backoff);
+        backoff = (long) (backoff * partProps.getRetryBackoffMultiplier());
+      }
+    }
+  }
+
+  /**
+   * The part goes to a temp file first and is renamed once complete and flushed, a crash leaves no partial part
+   * behind a completed name.
+   */
+  private void downloadPart(SpooledPackage spooled, InvoicePackagePart part) throws IOException {
+    Path target = spooled.partFile(part);
+    Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+    long start = System.nanoTime();
+    long written = 0;
+
+    try (
+        ReadableByteChannel source = Channels.newChannel(packagePartDownloader.openPart(part));
+        FileChannel out = FileChannel.open(
+            temp,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING
+        )
+    ) {
+      long transferred;
+      while ((transferred = out.transferFrom(source, written, TRANSFER_CHUNK)) > 0) {
+        written += transferred;
+      }
+      out.force(false);
+    }
+    if (part.getEncryptedPartSize() > 0 && written != part.getEncryptedPartSize()) {
+      throw new IOException(String.format("Package part %s: received %d bytes, expected %d",
+          part.getPartName(), written, part.getEncryptedPartSize()));
+    }
+
+    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    spooled.markCompleted(part);
+    metrics.stage(KsefMetrics.STAGE_DOWNLOAD, System.nanoTime() - start);
+    metrics.stageBytes(KsefMetrics.STAGE_DOWNLOAD, written);
+    log.debug("Package part {} spooled ({} bytes)", part.getPartName(), written);
+  }
+
+  private Path directoryOf(String key) {
+    return props.getDirectory().resolve(key);
+  }
+
+  /**
+   * The manifest holds the AES key of the export, so the directory is readable by the owner only (where supported).
+   */
+  private static void createPrivateDirectory(Path directory) throws IOException {
+    Files.createDirectories(directory.getParent() == null ? directory : directory.getParent());
+    if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+      Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+    } else {
+      Files.createDirectory(directory);
+    }
+  }
+
+  private static void deleteDirectory(Path directory) {
+    if (!Files.exists(directory)) return;
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.deleteIfExists(file);
+      }
+    } catch (IOException e) {
+      log.warn("Could not delete spool directory {}: {}", directory, e.getMessage());
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,200 @@
+package pl.pbs.edu.ksefprocessdemo.spool;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import pl.akmf.ksef.sdk.client.model.invoice.InvoiceExportPackage;
+import pl.akmf.ksef.sdk.client.model.invoice.InvoicePackagePart;
+import pl.akmf.ksef.sdk.client.model.session.EncryptionData;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Export package on disk: _manifest.properties_ (export reference, AES key, package and part descriptions, which
+ * parts are complete) and a _part-N.aes_ file per completed part, still encrypted as downloaded.
+ * The manifest is replaced atomically after every completed part, so after a crash it never lists a part whose file
+ * is not there in full.
+ */
+@Getter
+public class SpooledPackage {
+
+  static final String MANIFEST = "manifest.properties";
+
+  private final Path directory;
+  private final String referenceNumber;
+  private final EncryptionData encryptionData;
+  private final InvoiceExportPackage exportPackage;
+  @Getter(AccessLevel.NONE)
+  private final Set<Integer> completed = ConcurrentHashMap.newKeySet();
+
+  SpooledPackage(
+      Path directory,
+      String referenceNumber,
+      EncryptionData encryptionData,
+      InvoiceExportPackage exportPackage
+  ) {
+    this.directory = directory;
+    this.referenceNumber = referenceNumber;
+    this.encryptionData = encryptionData;
+    this.exportPackage = exportPackage;
+  }
+
+  /**
+   * @return Parts without a complete file, in part order.
+   */
+  public List<InvoicePackagePart> missingParts() {
+    return exportPackage
+        .getParts()
+        .stream()
+        .filter(part -> !completed.contains(part.getOrdinalNumber()))
+        .sorted(Comparator.comparing(InvoicePackagePart::getOrdinalNumber))
+        .toList();
+  }
+
+  Path partFile(InvoicePackagePart part) {
+    return directory.resolve("part-" + part.getOrdinalNumber() + ".aes");
+  }
+
+  synchronized void markCompleted(InvoicePackagePart part) throws IOException {
+    completed.add(part.getOrdinalNumber());
+    save();
+  }
+
+  synchronized void save() throws IOException {
+    Properties manifest = new Properties();
+    put(manifest, "reference", referenceNumber);
+    put(manifest, "key", Base64.getEncoder().encodeToString(encryptionData.cipherKey()));
+    put(manifest, "iv", Base64.getEncoder().encodeToString(encryptionData.cipherIv()));
+    put(manifest, "package.invoiceCount", exportPackage.getInvoiceCount());
+    put(manifest, "package.size", exportPackage.getSize());
+    put(manifest, "package.truncated", exportPackage.getIsTruncated());
+    put(manifest, "package.lastIssueDate", exportPackage.getLastIssueDate());
+    put(manifest, "package.lastInvoicingDate", exportPackage.getLastInvoicingDate());
+    put(manifest, "package.lastPermanentStorageDate", exportPackage.getLastPermanentStorageDate());
+    put(manifest, "parts", exportPackage
+        .getParts()
+        .stream()
+        .map(part -> String.valueOf(part.getOrdinalNumber()))
+        .collect(Collectors.joining(",")));
+    for (InvoicePackagePart part : exportPackage.getParts()) {
+      String prefix = "part." + part.getOrdinalNumber() + ".";
+      put(manifest, prefix + "name", part.getPartName());
+      put(manifest, prefix + "method", part.getMethod());
+      put(manifest, prefix + "url", part.getUrl());
+      put(manifest, prefix + "size", part.getPartSize());
+      put(manifest, prefix + "hash", part.getPartHash());
+      put(manifest, prefix + "encryptedSize", part.getEncryptedPartSize());
+      put(manifest, prefix + "encryptedHash", part.getEncryptedPartHash());
+      put(manifest, prefix + "expires", part.getExpirationDate());
+      put(manifest, prefix + "completed", completed.contains(part.getOrdinalNumber()));
+    }
+
+    Path temp = directory.resolve(MANIFEST + ".tmp");
+    try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+      manifest.store(writer, "KSeF export " + referenceNumber);
+    }
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+    Files.move(temp, directory.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  static boolean exists(Path directory) {
+    return Files.exists(directory.resolve(MANIFEST));
+  }
+
+  /**
+   * Parts marked complete whose file went missing are downloaded again.
+   */
+  static SpooledPackage load(Path directory) throws IOException {
+    Properties manifest = new Properties();
+    try (Reader reader = Files.newBufferedReader(directory.resolve(MANIFEST), StandardCharsets.UTF_8)) {
+      manifest.load(reader);
+    }
+
+    InvoiceExportPackage exportPackage = new InvoiceExportPackage();
+    exportPackage.setInvoiceCount(getInt(manifest, "package.invoiceCount"));
+    exportPackage.setSize(getInt(manifest, "package.size"));
+    exportPackage.setIsTruncated(get(manifest, "package.truncated", Boolean::valueOf));
+    exportPackage.setLastIssueDate(get(manifest, "package.lastIssueDate", OffsetDateTime::parse));
+    exportPackage.setLastInvoicingDate(get(manifest, "package.lastInvoicingDate", OffsetDateTime::parse));
+    exportPackage.setLastPermanentStorageDate(get(manifest, "package.lastPermanentStorageDate", OffsetDateTime::parse));
+
+    List<InvoicePackagePart> parts = new ArrayList<>();
+    List<Integer> completedParts = new ArrayList<>();
+    for (String ordinal : manifest.getProperty("parts", "").split(",")) {
+      if (ordinal.isBlank()) continue;
+      String prefix = "part." + ordinal + ".";
+      InvoicePackagePart part = new InvoicePackagePart();
+      part.setOrdinalNumber(Integer.parseInt(ordinal));
+      part.setPartName(get(manifest, prefix + "name", Function.identity()));
+      part.setMethod(get(manifest, prefix + "method", Function.identity()));
+      part.setUrl(get(manifest, prefix + "url", URI::create));
+      part.setPartSize(getInt(manifest, prefix + "size"));
+      part.setPartHash(get(manifest, prefix + "hash", Function.identity()));
+      part.setEncryptedPartSize(getInt(manifest, prefix + "encryptedSize"));
+      part.setEncryptedPartHash(get(manifest, prefix + "encryptedHash", Function.identity()));
+      part.setExpirationDate(get(manifest, prefix + "expires", OffsetDateTime::parse));
+      parts.add(part);
+      if (Boolean.parseBoolean(manifest.getProperty(prefix + "completed"))) completedParts.add(part.getOrdinalNumber());
+    }
+    exportPackage.setParts(parts);
+
+    EncryptionData encryptionData = new EncryptionData(
+        Base64.getDecoder().decode(manifest.getProperty("key")),
+        Base64.getDecoder().decode(manifest.getProperty("iv")),
+        null,
+        null
+    );
+    SpooledPackage spooled = new SpooledPackage(
+        directory,
+        manifest.getProperty("reference"),
+        encryptionData,
+        exportPackage
+    );
+    parts
+        .stream()
+        .filter(part -> completedParts.contains(part.getOrdinalNumber()))
+        .filter(part -> Files.exists(spooled.partFile(part)))
+        .forEach(part -> spooled.completed.add(part.getOrdinalNumber()));
+    return spooled;
+  }
+
+  private static void put(Properties manifest, String key, Object value) {
+    if (value != null) manifest.setProperty(key, value.toString());
+  }
+
+  private static <T> T get(Properties manifest, String key, Function<String, T> parser) {
+    String value = manifest.getProperty(key);
+    return value == null ? null : parser.apply(value);
+  }
+
+  private static int getInt(Properties manifest, String key) {
+    return Integer.parseInt(manifest.getProperty(key, "0"));
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s (%s of %s parts on disk)", referenceNumber, completed.size(),
+        exportPackage.getParts().size());
+  }
+}
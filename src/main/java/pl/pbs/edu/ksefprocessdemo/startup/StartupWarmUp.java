@@ -0,0 +1,180 @@
+package pl.pbs.edu.ksefprocessdemo.startup;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import pl.akmf.ksef.sdk.api.services.DefaultCryptographyService;
+import pl.pbs.edu.ksefprocessdemo.auth.KsefAuthorizationProvider;
+import pl.pbs.edu.ksefprocessdemo.config.props.StartupProps;
+import pl.pbs.edu.ksefprocessdemo.tenant.KsefTenantRegistry;
+import pl.pbs.edu.ksefprocessdemo.tenant.TenantContext;
+import pl.pbs.edu.ksefprocessdemo.utils.FakturaUnmarshaller;
+import pl.pbs.edu.ksefprocessdemo.utils.KsefPayloadProcessor;
+import pl.pbs.edu.ksefprocessdemo.utils.ParallelInvoiceParser;
+import pl.pbs.edu.ksefprocessdemo.validation.InvoiceValidator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Takes the slow first-use work off the startup path: the FA(3) JAXBContext (and schema, when validating), KSeF public
+ * keys (DefaultCryptographyService is lazy) and access tokens are prepared on virtual threads once the context is up.
+ * Until that is done readiness stays REFUSING_TRAFFIC, so no work is routed to a node still warming up. Failures are
+ * only logged - everything is initialized on first use anyway.
+ * <p>
+ * With _ksef.startup.training_ it runs the training workload of the CDS archive instead (no KSeF calls) and exits.
+ */
+@Component
+@Slf4j
+public class StartupWarmUp {
+
+  private static final Executor VIRTUAL = command -> Thread.ofVirtual().name("ksef-warmup").start(command);
+
+  @FunctionalInterface
+  private interface Step {
+    void run() throws Exception;
+  }
+
+  private final ApplicationContext context;
+  private final StartupProps props;
+  private final FakturaUnmarshaller fakturaUnmarshaller;
+  private final DefaultCryptographyService cryptographyService;
+  private final KsefAuthorizationProvider kap;
+  private final KsefTenantRegistry tenantRegistry;
+  private final KsefPayloadProcessor payloadProcessor;
+  private final InvoiceValidator invoiceValidator;
+  private boolean warmingUp;
+  private boolean readinessHeldBack;
+
+  public StartupWarmUp(
+      ApplicationContext context,
+      StartupProps props,
+      FakturaUnmarshaller fakturaUnmarshaller,
+      @Lazy DefaultCryptographyService cryptographyService,
+      KsefAuthorizationProvider kap,
+      KsefTenantRegistry tenantRegistry,
+      KsefPayloadProcessor payloadProcessor,
+      InvoiceValidator invoiceValidator
+  ) {
+    this.context = context;
+    this.props = props;
+    this.fakturaUnmarshaller = fakturaUnmarshaller;
+    this.cryptographyService = cryptographyService;
+    this.kap = kap;
+    this.tenantRegistry = tenantRegistry;
+    this.payloadProcessor = payloadProcessor;
+    this.invoiceValidator = invoiceValidator;
+  }
+
+  @EventListener(ApplicationStartedEvent.class)
+  public synchronized void start() {
+    if (props.isTraining() || !props.isWarmUp()) return;
+
+    warmingUp = true;
+    long start = System.nanoTime();
+    List<CompletableFuture<Void>> steps = new ArrayList<>();
+    steps.add(step("FA(3) JAXBContext", fakturaUnmarshaller::warmUp));
+    if (invoiceValidator.isEnabled()) steps.add(step("FA(3) schema", invoiceValidator::warmUp));
+    if (props.isWarmUpTokens()) {
+      // Tokens need the public keys, so this step also covers DefaultCryptographyService.
+      steps.add(step("tokens of " + kap.getNIP(), kap::getTokens));
+      for (TenantContext tenant : tenantRegistry.all()) {
+        steps.add(step("tokens of " + tenant.nip(), tenant.kap()::getTokens));
+      }
+    } else {
+      steps.add(step("KSeF public keys", cryptographyService::getKsefIntegrationMode));
+    }
+    CompletableFuture
+        .allOf(steps.toArray(CompletableFuture[]::new))
+        .whenComplete((done, error) -> warmedUp(System.nanoTime() - start));
+  }
+
+  /**
+   * Spring Boot reports ACCEPTING_TRAFFIC as soon as the context is ready - held back until warm-up is done.
+   */
+  @EventListener
+  public synchronized void onReadinessChange(AvailabilityChangeEvent<ReadinessState> event) {
+    if (event.getState() != ReadinessState.ACCEPTING_TRAFFIC || !warmingUp) return;
+    readinessHeldBack = true;
+    AvailabilityChangeEvent.publish(context, ReadinessState.REFUSING_TRAFFIC);
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void train() {
+    if (!props.isTraining()) return;
+
+    int exitCode = 0;
+    try {
+      long start = System.nanoTime();
+      fakturaUnmarshaller.warmUp();
+      LongAdder parsed = new LongAdder();
+      payloadProcessor.parseDecryptedPackage(
+          new ByteArrayInputStream(trainingPackage()),
+          ParallelInvoiceParser.Ordering.UNORDERED,
+          invoice -> {
+            invoice.getHeader();
+            invoice.getInvoiceData();
+            parsed.increment();
+          }
+      );
+      log.info("Training run parsed {} invoices in {} ms", parsed.sum(),
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    } catch (Exception e) {
+      log.error("Training run failed", e);
+      exitCode = 1;
+    }
+    int code = exitCode;
+    System.exit(SpringApplication.exit(context, () -> code));
+  }
+
+  private synchronized void warmedUp(long nanos) {
+    warmingUp = false;
+    log.info("Warm-up done in {} ms", TimeUnit.NANOSECONDS.toMillis(nanos));
+    if (readinessHeldBack) AvailabilityChangeEvent.publish(context, ReadinessState.ACCEPTING_TRAFFIC);
+  }
+
+  private static CompletableFuture<Void> step(String name, Step step) {
+    return CompletableFuture.runAsync(() -> {
+      long start = System.nanoTime();
+      try {
+        step.run();
+        log.debug("Warm-up of {} took {} ms", name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      } catch (Exception e) {
+        log.warn("Warm-up of {} failed, it will be initialized on first use: {}", name, e.getMessage());
+      }
+    }, VIRTUAL);
+  }
+
+  /**
+   * Decrypted export package made of copies of the training file, named like real ones (ksefId.xml).
+   */
+  private byte[] trainingPackage() throws IOException {
+    byte[] xml = Files.readAllBytes(props.getTrainingFile());
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    try (ZipOutputStream out = new ZipOutputStream(zip)) {
+      for (int i = 0; i < props.getTrainingInvoices(); i++) {
+        out.putNextEntry(new ZipEntry(String.format("0000000000-20250101-%012X-00.xml", i)));
+        out.write(xml);
+        out.closeEntry();
+      }
+    }
+    return zip.toByteArray();
+  }
+}
@@ -0,0 +1,125 @@
+package pl.pbs.edu.ksefprocessdemo.tenant;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import pl.pbs.edu.ksefprocessdemo.auth.KsefAuthorizationProvider;
+import pl.pbs.edu.ksefprocessdemo.config.props.TenantProps;
+import pl.pbs.edu.ksefprocessdemo.service.IncrementalSyncService;
+import pl.pbs.edu.ksefprocessdemo.service.InvoiceFetchService;
+import pl.pbs.edu.ksefprocessdemo.service.KsefIntegrationService;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Tenants (client NIPs) this node syncs, each with its own token provider. Loaded from _ksef.tenants.file_ on
+ * startup, more can be registered at runtime.
+ */
+@Component
+@Slf4j
+public class KsefTenantRegistry {
+
+  private static final Pattern NIP = Pattern.compile("\\d{10}");
+
+  private final KsefAuthorizationProvider kap;
+  private final KsefIntegrationService ksefIntegrationService;
+  private final IncrementalSyncService incrementalSyncService;
+  private final InvoiceFetchService invoiceFetchService;
+  private final TenantProps props;
+  private final Map<String, TenantContext> tenants = new ConcurrentHashMap<>();
+
+  public KsefTenantRegistry(
+      KsefAuthorizationProvider kap,
+      KsefIntegrationService ksefIntegrationService,
+      IncrementalSyncService incrementalSyncService,
+      InvoiceFetchService invoiceFetchService,
+      TenantProps props
+  ) {
+    this.kap = kap;
+    this.ksefIntegrationService = ksefIntegrationService;
+    this.incrementalSyncService = incrementalSyncService;
+    this.invoiceFetchService = invoiceFetchService;
+    this.props = props;
+  }
+
+  @PostConstruct
+  public void load() {
+    if (props.getFile() == null || props.getFile().isBlank()) return;
+
+    Path file = Path.of(props.getFile());
+    List<String> lines;
+    try {
+      lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not read tenants from " + file, e);
+    }
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).strip();
+      if (line.isEmpty() || line.startsWith("#")) continue;
+
+      String[] fields = line.split(";", 2);
+      if (fields.length != 2 || fields[1].isBlank())
+        throw new IllegalArgumentException(file + ":" + (i + 1) + " - expected nip;apiToken");
+      register(fields[0].strip(), fields[1].strip());
+    }
+    log.info("Loaded {} tenant(s) from {}", tenants.size(), file);
+  }
+
+  /**
+   * Registering a NIP again replaces its token (and drops its current tokens). The replaced provider is shut down -
+   * syncs still running with it finish, but its tokens are no longer refreshed in the background.
+   */
+  public TenantContext register(String nip, String apiToken) {
+    if (!NIP.matcher(nip).matches()) throw new IllegalArgumentException("Invalid NIP: " + nip);
+
+    KsefAuthorizationProvider tenantKap = kap.forTenant(nip, apiToken);
+    KsefIntegrationService tenantIntegrationService = ksefIntegrationService.forTenant(tenantKap);
+    TenantContext tenant = new TenantContext(
+        nip,
+        tenantKap,
+        tenantIntegrationService,
+        incrementalSyncService.forTenant(tenantIntegrationService),
+        invoiceFetchService.forTenant(tenantKap)
+    );
+    TenantContext replaced = tenants.put(nip, tenant);
+    if (replaced != null) replaced.kap().shutdown();
+    return tenant;
+  }
+
+  /**
+   * Stops serving the NIP and shuts its token provider down.
+   *
+   * @return Whether the NIP was registered.
+   */
+  public boolean unregister(String nip) {
+    TenantContext removed = tenants.remove(nip);
+    if (removed == null) return false;
+
+    removed.kap().shutdown();
+    log.info("Tenant {} unregistered", nip);
+    return true;
+  }
+
+  public Optional<TenantContext> find(String nip) {
+    return Optional.ofNullable(tenants.get(nip));
+  }
+
+  public Collection<TenantContext> all() {
+    return new ArrayList<>(tenants.values());
+  }
+
+  public int size() {
+    return tenants.size();
+  }
+}
@@ -0,0 +1,26 @@
+package pl.pbs.edu.ksefprocessdemo.tenant;
+
+import pl.pbs.edu.ksefprocessdemo.auth.KsefAuthorizationProvider;
+import pl.pbs.edu.ksefprocessdemo.service.IncrementalSyncService;
+import pl.pbs.edu.ksefprocessdemo.service.InvoiceFetchService;
+import pl.pbs.edu.ksefprocessdemo.service.KsefIntegrationService;
+
+/**
+ * Services bound to one NIP. Only the token provider is tenant's own, the rest (HTTP client, poller, parsers,
+ * archive) is shared.
+ */
+public record TenantContext(
+    String nip,
+    KsefAuthorizationProvider kap,
+    KsefIntegrationService integrationService,
+    IncrementalSyncService incrementalSyncService,
+    InvoiceFetchService invoiceFetchService
+) {
+
+  /**
+   * Checkpoint name of the tenant's incremental sync.
+   */
+  public String syncKey() {
+    return "tenant-" + nip;
+  }
+}
@@ -0,0 +1,150 @@
+package pl.pbs.edu.ksefprocessdemo.tenant;
+
+import org.springframework.stereotype.Component;
+import pl.pbs.edu.ksefprocessdemo.config.props.TenantProps;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits exports running at the same time - _ksef.tenants.max-exports_ in total and
+ * _ksef.tenants.max-exports-per-tenant_ per tenant. A freed slot goes to the waiting tenants in round-robin order
+ * (not to the oldest waiter), so a tenant with hundreds of queued windows cannot starve one with a single window.
+ */
+@Component
+public class TenantExportGate {
+
+  private final int maxExports;
+  private final int maxExportsPerTenant;
+  private final Lock lock = new ReentrantLock();
+  private final Map<String, Tenant> tenants = new HashMap<>();
+  // Tenants with waiters, in the order they get the next slot.
+  private final ArrayDeque<Tenant> queue = new ArrayDeque<>();
+  private int running;
+
+  public TenantExportGate(TenantProps props) {
+    this.maxExports = Math.max(1, props.getMaxExports());
+    this.maxExportsPerTenant = Math.max(1, props.getMaxExportsPerTenant());
+  }
+
+  /**
+   * Blocks until the tenant may start an export. The slot is held until the permit is closed.
+   */
+  public Permit enter(String tenantKey) throws InterruptedException {
+    CompletableFuture<Void> grant = new CompletableFuture<>();
+    Tenant tenant;
+    lock.lock();
+    try {
+      tenant = tenants.computeIfAbsent(tenantKey, Tenant::new);
+      tenant.waiters.add(grant);
+      if (!tenant.queued) {
+        tenant.queued = true;
+        queue.add(tenant);
+      }
+      dispatch();
+    } finally {
+      lock.unlock();
+    }
+
+    try {
+      grant.get();
+    } catch (InterruptedException e) {
+      abandon(tenant, grant);
+      throw e;
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    return new Permit(tenant);
+  }
+
+  public int getRunning() {
+    lock.lock();
+    try {
+      return running;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void abandon(Tenant tenant, CompletableFuture<Void> grant) {
+    lock.lock();
+    try {
+      // Not among the waiters any more means the slot was granted meanwhile - give it back.
+      if (!tenant.waiters.remove(grant)) release(tenant);
+      else forgetIfIdle(tenant);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void release(Tenant tenant) {
+    lock.lock();
+    try {
+      running--;
+      tenant.running--;
+      dispatch();
+      forgetIfIdle(tenant);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void dispatch() {
+    int skipped = 0;
+    while (running < maxExports && !queue.isEmpty() && skipped < queue.size()) {
+      Tenant tenant = queue.poll();
+      if (tenant.waiters.isEmpty()) {
+        tenant.queued = false;
+        forgetIfIdle(tenant);
+        continue;
+      }
+      if (tenant.running >= maxExportsPerTenant) {
+        queue.add(tenant);
+        skipped++;
+        continue;
+      }
+      skipped = 0;
+      running++;
+      tenant.running++;
+      tenant.waiters.poll().complete(null);
+      if (tenant.waiters.isEmpty()) tenant.queued = false;
+      else queue.add(tenant);
+    }
+  }
+
+  private void forgetIfIdle(Tenant tenant) {
+    if (tenant.running == 0 && tenant.waiters.isEmpty() && !tenant.queued) tenants.remove(tenant.key);
+  }
+
+  private static final class Tenant {
+    private final String key;
+    private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+    private int running;
+    private boolean queued;
+
+    private Tenant(String key) {
+      this.key = key;
+    }
+  }
+
+  public final class Permit implements AutoCloseable {
+    private final Tenant tenant;
+    private boolean closed;
+
+    private Permit(Tenant tenant) {
+      this.tenant = tenant;
+    }
+
+    @Override
+    public void close() {
+      if (closed) return;
+      closed = true;
+      release(tenant);
+    }
+  }
+}
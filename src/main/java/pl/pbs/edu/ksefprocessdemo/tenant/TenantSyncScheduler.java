@@ -0,0 +1,125 @@
+package pl.pbs.edu.ksefprocessdemo.tenant;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import pl.pbs.edu.ksefprocessdemo.archive.InvoiceArchive;
+import pl.pbs.edu.ksefprocessdemo.config.props.TenantProps;
+import pl.pbs.edu.ksefprocessdemo.model.KsefInvoice;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Runs incremental syncs of all registered tenants concurrently (_ksef.tenants.sync-concurrency_ at once) on virtual
+ * threads. Exports of all tenants go through TenantExportGate, which keeps the global and per-tenant caps and shares
+ * the slots fairly. A failing tenant is reported, the others carry on.
+ */
+@Component
+@Slf4j
+public class TenantSyncScheduler {
+
+  private final KsefTenantRegistry registry;
+  private final InvoiceArchive invoiceArchive;
+  private final TenantProps props;
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+  public TenantSyncScheduler(KsefTenantRegistry registry, InvoiceArchive invoiceArchive, TenantProps props) {
+    this.registry = registry;
+    this.invoiceArchive = invoiceArchive;
+    this.props = props;
+  }
+
+  public record TenantSyncResult(String nip, long delivered, Duration took, Throwable error) {
+    public boolean failed() {
+      return error != null;
+    }
+  }
+
+  /**
+   * Scheduled run, enabled by setting _ksef.tenants.cron_. Invoices are kept by the local archive only (see
+   * IncrementalSyncService::archivedSink), so without _ksef.archive.enabled_ the run is skipped.
+   */
+  @Scheduled(cron = "${ksef.tenants.cron:-}")
+  public void scheduledSync() {
+    if (!invoiceArchive.isEnabled()) {
+      log.warn("Scheduled tenant sync skipped, nothing keeps the invoices - enable ksef.archive.enabled");
+      return;
+    }
+    long start = System.nanoTime();
+    List<TenantSyncResult> results = syncAllTenants(tenant -> tenant.incrementalSyncService().archivedSink());
+    log.info(
+        "Tenant sync finished in {} s: {} tenant(s), {} failed, {} new invoice(s)",
+        Duration.ofNanos(System.nanoTime() - start).toSeconds(),
+        results.size(),
+        results.stream().filter(TenantSyncResult::failed).count(),
+        results.stream().mapToLong(TenantSyncResult::delivered).sum()
+    );
+  }
+
+  /**
+   * @param sinks Sink for each tenant (by NIP). Sinks of different tenants are called concurrently, a single
+   *              sink never is.
+   * @return Result of every tenant, slowest first.
+   */
+  public List<TenantSyncResult> syncAll(Function<String, Consumer<KsefInvoice>> sinks) {
+    return syncAllTenants(tenant -> sinks.apply(tenant.nip()));
+  }
+
+  private List<TenantSyncResult> syncAllTenants(Function<TenantContext, Consumer<KsefInvoice>> sinks) {
+    Semaphore slots = new Semaphore(Math.max(1, props.getSyncConcurrency()));
+    List<Future<TenantSyncResult>> futures = new ArrayList<>();
+    for (TenantContext tenant : registry.all()) {
+      futures.add(executor.submit(() -> {
+        slots.acquire();
+        try {
+          return sync(tenant, sinks.apply(tenant));
+        } finally {
+          slots.release();
+        }
+      }));
+    }
+
+    List<TenantSyncResult> results = new ArrayList<>(futures.size());
+    try {
+      for (Future<TenantSyncResult> future : futures) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      futures.forEach(future -> future.cancel(true));
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Tenant sync interrupted");
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    results.sort(Comparator.comparing(TenantSyncResult::took).reversed());
+    return results;
+  }
+
+  private TenantSyncResult sync(TenantContext tenant, Consumer<KsefInvoice> sink) {
+    long start = System.nanoTime();
+    try {
+      long delivered = tenant.incrementalSyncService().sync(tenant.syncKey(), sink);
+      return new TenantSyncResult(tenant.nip(), delivered, Duration.ofNanos(System.nanoTime() - start), null);
+    } catch (RuntimeException e) {
+      log.warn("Sync of tenant {} failed: {}", tenant.nip(), e.getMessage());
+      return new TenantSyncResult(tenant.nip(), 0, Duration.ofNanos(System.nanoTime() - start), e);
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,62 @@
+package pl.pbs.edu.ksefprocessdemo.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+/**
+ * Reads the given streams one after another, opening each of them only when the previous one is exhausted.
+ * Unlike SequenceInputStream, closing it does not open (and download) the streams that were never reached.
+ */
+public class ChainedInputStream extends InputStream {
+
+  @FunctionalInterface
+  public interface StreamOpener {
+    InputStream open() throws IOException;
+  }
+
+  private final Iterator<? extends StreamOpener> openers;
+  private InputStream current;
+  private boolean closed;
+
+  public ChainedInputStream(Iterator<? extends StreamOpener> openers) {
+    this.openers = openers;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] single = new byte[1];
+    int len = read(single, 0, 1);
+    return len == -1 ? -1 : single[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (closed) throw new IOException("Stream closed");
+    if (len == 0) return 0;
+
+    while (true) {
+      if (current == null) {
+        if (!openers.hasNext()) return -1;
+        current = openers.next().open();
+      }
+      int read = current.read(b, off, len);
+      if (read != -1) return read;
+
+      current.close();
+      current = null;
+    }
+  }
+
+  @Override
+  public int available() throws IOException {
+    return current == null ? 0 : current.available();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    if (current != null) current.close();
+  }
+}
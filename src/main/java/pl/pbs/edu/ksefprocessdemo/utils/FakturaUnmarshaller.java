@@ -0,0 +1,162 @@
+package pl.pbs.edu.ksefprocessdemo.utils;
+
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.UnmarshalException;
+import jakarta.xml.bind.Unmarshaller;
+import jakarta.xml.bind.ValidationEventHandler;
+import lombok.extern.slf4j.Slf4j;
+import pl.pbs.edu.ksefprocessdemo.generated.Faktura;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.validation.Schema;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reusable FA(3) parsing engine.
+ * <p>
+ * Building a JAXBContext for the generated Faktura model is very expensive, so it is created once (lazily, or eagerly
+ * through {@link #warmUp()}) and shared. Unmarshallers are not thread-safe, so they are kept in a bounded pool and
+ * borrowed per call - this works the same for platform and virtual threads (unlike a ThreadLocal cache).
+ */
+@Slf4j
+public final class FakturaUnmarshaller {
+
+  private static final FakturaUnmarshaller SHARED = new FakturaUnmarshaller(defaultInputFactory());
+
+  private final XMLInputFactory inputFactory;
+  private final BlockingQueue<Unmarshaller> pool;
+
+  public FakturaUnmarshaller(XMLInputFactory inputFactory) {
+    this(inputFactory, Runtime.getRuntime().availableProcessors() * 2);
+  }
+
+  public FakturaUnmarshaller(XMLInputFactory inputFactory, int maxPooledUnmarshallers) {
+    this.inputFactory = inputFactory;
+    this.pool = new ArrayBlockingQueue<>(Math.max(1, maxPooledUnmarshallers));
+  }
+
+  public static FakturaUnmarshaller shared() {
+    return SHARED;
+  }
+
+  /**
+   * Secure defaults - no DTDs or external entities, invoices never need them.
+   */
+  public static XMLInputFactory defaultInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newFactory();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    return factory;
+  }
+
+  public static JAXBContext context() throws JAXBException {
+    try {
+      return ContextHolder.CONTEXT;
+    } catch (LinkageError e) {
+      throw new JAXBException("Could not create JAXBContext for Faktura", e.getCause() != null ? e.getCause() : e);
+    }
+  }
+
+  /**
+   * Builds the JAXBContext and primes one Unmarshaller, so the first real invoice does not pay for it.
+   */
+  public void warmUp() throws JAXBException {
+    long start = System.currentTimeMillis();
+    release(borrow());
+    log.debug("Faktura JAXBContext ready after {} ms", System.currentTimeMillis() - start);
+  }
+
+  public Faktura unmarshal(byte[] rawInvoiceXml) throws JAXBException {
+    return unmarshal(new ByteArrayInputStream(rawInvoiceXml));
+  }
+
+  public Faktura unmarshal(File rawInvoiceXml) throws JAXBException {
+    try (InputStream in = new BufferedInputStream(new FileInputStream(rawInvoiceXml))) {
+      return unmarshal(in);
+    } catch (IOException e) {
+      throw new UnmarshalException(e);
+    }
+  }
+
+  /**
+   * Does not close the given stream, so it is safe to call with e.g. an open ZipInputStream.
+   */
+  public Faktura unmarshal(InputStream rawInvoiceXml) throws JAXBException {
+    return unmarshal(rawInvoiceXml, null, null);
+  }
+
+  /**
+   * Validates the invoice against the schema while binding it, in the same pass over the XML.
+   *
+   * @param eventHandler Gets every violation, binding goes on as long as it returns true.
+   */
+  public Faktura unmarshal(byte[] rawInvoiceXml, Schema schema, ValidationEventHandler eventHandler)
+      throws JAXBException {
+    return unmarshal(new ByteArrayInputStream(rawInvoiceXml), schema, eventHandler);
+  }
+
+  private Faktura unmarshal(InputStream rawInvoiceXml, Schema schema, ValidationEventHandler eventHandler)
+      throws JAXBException {
+    Unmarshaller unmarshaller = borrow();
+    XMLStreamReader reader = null;
+    try {
+      if (schema != null) {
+        unmarshaller.setSchema(schema);
+        unmarshaller.setEventHandler(eventHandler);
+      }
+      reader = inputFactory.createXMLStreamReader(rawInvoiceXml);
+      return unmarshaller.unmarshal(reader, Faktura.class).getValue();
+    } catch (XMLStreamException e) {
+      throw new UnmarshalException(e);
+    } finally {
+      closeQuietly(reader);
+      if (schema != null) {
+        unmarshaller.setSchema(null);
+        unmarshaller.setEventHandler(null);
+      }
+      release(unmarshaller);
+    }
+  }
+
+  private Unmarshaller borrow() throws JAXBException {
+    Unmarshaller unmarshaller = pool.poll();
+    return unmarshaller != null ? unmarshaller : context().createUnmarshaller();
+  }
+
+  private void release(Unmarshaller unmarshaller) {
+    // If the pool is full the instance is simply dropped.
+    pool.offer(unmarshaller);
+  }
+
+  private static void closeQuietly(XMLStreamReader reader) {
+    if (reader == null) return;
+    try {
+      reader.close();
+    } catch (XMLStreamException e) {
+      log.debug("Could not close XMLStreamReader", e);
+    }
+  }
+
+  private static final class ContextHolder {
+    private static final JAXBContext CONTEXT = create();
+
+    private static JAXBContext create() {
+      try {
+        return JAXBContext.newInstance(Faktura.class);
+      } catch (JAXBException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,254 @@
+package pl.pbs.edu.ksefprocessdemo.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import pl.pbs.edu.ksefprocessdemo.config.props.HttpTransportProps;
+import pl.pbs.edu.ksefprocessdemo.ratelimit.KsefRateLimiter;
+import pl.pbs.edu.ksefprocessdemo.ratelimit.OperationClass;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Authenticator;
+import java.net.CookieHandler;
+import java.net.ProxySelector;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * HttpClient handed to DefaultKsefClient, which has a single request timeout and no notion of compression.
+ * Every request gets the timeout of its operation class (auth / export / default, by path), and with
+ * _ksef.http.compression_ asks for gzip - gzipped responses are inflated before the client's body handler sees them.
+ * Calls pass KsefRateLimiter first, 429 responses are retried (after the limiter's pause) up to
+ * _ksef.rate-limit.max-retries_ times. Everything else (connections, executor) is the delegate's.
+ */
+@Slf4j
+public class KsefHttpClient extends HttpClient {
+
+  private static final String ACCEPT_ENCODING = "Accept-Encoding";
+  private static final String CONTENT_ENCODING = "Content-Encoding";
+  private static final String GZIP = "gzip";
+  private static final String BEARER = "Bearer ";
+  private static final int TOO_MANY_REQUESTS = 429;
+
+  private final HttpClient delegate;
+  private final HttpTransportProps props;
+  private final KsefRateLimiter rateLimiter;
+
+  public KsefHttpClient(HttpClient delegate, HttpTransportProps props, KsefRateLimiter rateLimiter) {
+    this.delegate = delegate;
+    this.props = props;
+    this.rateLimiter = rateLimiter;
+  }
+
+  @Override
+  public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler)
+      throws IOException, InterruptedException {
+    HttpRequest tuned = tune(request);
+    OperationClass operationClass = rateLimiter.isEnabled()
+        ? OperationClass.of(request.method(), request.uri().getPath())
+        : null;
+    if (operationClass == null) return delegate.send(tuned, decoding(responseBodyHandler));
+
+    String context = rateLimiter.contextOf(bearerToken(request));
+    for (int attempt = 0; ; attempt++) {
+      KsefRateLimiter.Permit permit = rateLimiter.acquire(context, operationClass);
+      HttpResponse<T> response;
+      try {
+        response = delegate.send(tuned, decoding(responseBodyHandler));
+      } catch (IOException | InterruptedException | RuntimeException e) {
+        permit.failed();
+        throw e;
+      }
+      if (response.statusCode() != TOO_MANY_REQUESTS) {
+        permit.succeeded();
+        return response;
+      }
+      permit.throttled(KsefUtils.readRetryAfter(response.headers()).orElse(null));
+      if (attempt >= rateLimiter.getMaxRetries()) return response;
+      log.debug("{} {} throttled ({} of {}), retrying", operationClass, context, attempt + 1,
+          rateLimiter.getMaxRetries());
+    }
+  }
+
+  /**
+   * Rate limited like _send_, the waiting happens on a virtual thread.
+   */
+  @Override
+  public <T> CompletableFuture<HttpResponse<T>> sendAsync(
+      HttpRequest request,
+      HttpResponse.BodyHandler<T> responseBodyHandler
+  ) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return send(request, responseBodyHandler);
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CompletionException(e);
+      }
+    }, command -> Thread.ofVirtual().name("ksef-http-async").start(command));
+  }
+
+  /**
+   * Server push is not used by KSeF, so this one goes straight to the delegate (no rate limiting).
+   */
+  @Override
+  public <T> CompletableFuture<HttpResponse<T>> sendAsync(
+      HttpRequest request,
+      HttpResponse.BodyHandler<T> responseBodyHandler,
+      HttpResponse.PushPromiseHandler<T> pushPromiseHandler
+  ) {
+    return delegate.sendAsync(tune(request), decoding(responseBodyHandler), pushPromiseHandler);
+  }
+
+  Duration timeoutOf(String path) {
+    if (path == null) return props.getDefaultTimeout();
+    if (path.contains("/auth/")) return props.getAuthTimeout();
+    if (path.contains("/invoices/exports")) return props.getExportTimeout();
+    return props.getDefaultTimeout();
+  }
+
+  private static String bearerToken(HttpRequest request) {
+    return request
+        .headers()
+        .firstValue("Authorization")
+        .filter(value -> value.startsWith(BEARER))
+        .map(value -> value.substring(BEARER.length()))
+        .orElse(null);
+  }
+
+  private HttpRequest tune(HttpRequest request) {
+    HttpRequest.Builder builder = HttpRequest
+        .newBuilder(request, (name, value) -> true)
+        .timeout(timeoutOf(request.uri().getPath()));
+    if (props.isCompression() && request.headers().firstValue(ACCEPT_ENCODING).isEmpty()) {
+      builder.header(ACCEPT_ENCODING, GZIP);
+    }
+    return builder.build();
+  }
+
+  private static <T> HttpResponse.BodyHandler<T> decoding(HttpResponse.BodyHandler<T> handler) {
+    return responseInfo -> {
+      boolean gzipped = responseInfo
+          .headers()
+          .firstValue(CONTENT_ENCODING)
+          .map(GZIP::equalsIgnoreCase)
+          .orElse(false);
+      if (!gzipped) return handler.apply(responseInfo);
+
+      return HttpResponse.BodySubscribers.mapping(
+          HttpResponse.BodySubscribers.ofByteArray(),
+          compressed -> replay(handler.apply(responseInfo), gunzip(compressed))
+      );
+    };
+  }
+
+  private static byte[] gunzip(byte[] compressed) {
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      return in.readAllBytes();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Feeds the already received (and inflated) body to the original subscriber.
+   */
+  private static <T> T replay(HttpResponse.BodySubscriber<T> subscriber, byte[] body) {
+    subscriber.onSubscribe(new Flow.Subscription() {
+      @Override
+      public void request(long n) {
+      }
+
+      @Override
+      public void cancel() {
+      }
+    });
+    subscriber.onNext(List.of(ByteBuffer.wrap(body)));
+    subscriber.onComplete();
+    return subscriber.getBody().toCompletableFuture().join();
+  }
+
+  @Override
+  public Optional<CookieHandler> cookieHandler() {
+    return delegate.cookieHandler();
+  }
+
+  @Override
+  public Optional<Duration> connectTimeout() {
+    return delegate.connectTimeout();
+  }
+
+  @Override
+  public Redirect followRedirects() {
+    return delegate.followRedirects();
+  }
+
+  @Override
+  public Optional<ProxySelector> proxy() {
+    return delegate.proxy();
+  }
+
+  @Override
+  public SSLContext sslContext() {
+    return delegate.sslContext();
+  }
+
+  @Override
+  public SSLParameters sslParameters() {
+    return delegate.sslParameters();
+  }
+
+  @Override
+  public Optional<Authenticator> authenticator() {
+    return delegate.authenticator();
+  }
+
+  @Override
+  public Version version() {
+    return delegate.version();
+  }
+
+  @Override
+  public Optional<Executor> executor() {
+    return delegate.executor();
+  }
+
+  @Override
+  public void shutdown() {
+    delegate.shutdown();
+  }
+
+  @Override
+  public void shutdownNow() {
+    delegate.shutdownNow();
+  }
+
+  @Override
+  public boolean awaitTermination(Duration duration) throws InterruptedException {
+    return delegate.awaitTermination(duration);
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return delegate.isTerminated();
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+  }
+}
@@ -0,0 +1,96 @@
+package pl.pbs.edu.ksefprocessdemo.utils;
+
+import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.UnmarshalException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import pl.pbs.edu.ksefprocessdemo.archive.InvoiceArchive;
+import pl.pbs.edu.ksefprocessdemo.metrics.KsefMetrics;
+import pl.pbs.edu.ksefprocessdemo.model.KsefInvoice;
+import pl.pbs.edu.ksefprocessdemo.model.KsefInvoiceHeader;
+import pl.pbs.edu.ksefprocessdemo.validation.InvoiceValidator;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Creates KsefInvoice from raw XML of a package entry. With _ksef.parsing.lazy-binding_ only the header is
+ * extracted and the full Faktura is bound on demand, which is several times cheaper for header-only consumers.
+ * With _ksef.archive.enabled_ every new invoice is also written to the local archive once it is created, with
+ * _ksef.validation.enabled_ it is validated against the FA(3) schema (see InvoiceValidator).
+ * Time spent in _create_ is the _bind_ stage of the pipeline metrics, except a separate validation pass.
+ */
+@Component
+public class KsefInvoiceFactory {
+
+  private final FakturaUnmarshaller fakturaUnmarshaller;
+  private final InvoiceArchive invoiceArchive;
+  private final InvoiceValidator invoiceValidator;
+  private final KsefMetrics metrics;
+  @Value("${ksef.parsing.lazy-binding:false}")
+  private boolean lazyBinding;
+
+  public KsefInvoiceFactory(
+      FakturaUnmarshaller fakturaUnmarshaller,
+      InvoiceArchive invoiceArchive,
+      InvoiceValidator invoiceValidator,
+      KsefMetrics metrics
+  ) {
+    this.fakturaUnmarshaller = fakturaUnmarshaller;
+    this.invoiceArchive = invoiceArchive;
+    this.invoiceValidator = invoiceValidator;
+    this.metrics = metrics;
+  }
+
+  /**
+   * For invoices freshly downloaded from KSeF.
+   */
+  public KsefInvoice create(String ksefId, byte[] rawInvoiceXml) throws JAXBException {
+    long start = System.nanoTime();
+    long validation = 0;
+    try {
+      KsefInvoiceHeader header = readHeader(rawInvoiceXml);
+      KsefInvoice invoice;
+      if (!invoiceValidator.isEnabled()) {
+        invoice = toInvoice(ksefId, header, rawInvoiceXml);
+      } else if (!lazyBinding && invoiceValidator.isFused()) {
+        invoice = new KsefInvoice(ksefId, header, invoiceValidator.bindValidated(ksefId, rawInvoiceXml,
+            fakturaUnmarshaller));
+      } else {
+        long validationStart = System.nanoTime();
+        invoiceValidator.validate(ksefId, rawInvoiceXml);
+        validation = System.nanoTime() - validationStart;
+        invoice = toInvoice(ksefId, header, rawInvoiceXml);
+      }
+      // Only once created - an archived invoice is restored instead of downloaded, it must not fail there for good.
+      if (invoiceArchive.isEnabled()) {
+        invoiceArchive.append(ksefId, header.issueDate(), header.seller() == null ? null : header.seller().nip(),
+            rawInvoiceXml);
+      }
+      return invoice;
+    } finally {
+      metrics.stage(KsefMetrics.STAGE_BIND, System.nanoTime() - start - validation);
+    }
+  }
+
+  /**
+   * For invoices read back from the local archive - they are not archived again.
+   */
+  public KsefInvoice restore(String ksefId, byte[] rawInvoiceXml) throws JAXBException {
+    return toInvoice(ksefId, readHeader(rawInvoiceXml), rawInvoiceXml);
+  }
+
+  private KsefInvoice toInvoice(String ksefId, KsefInvoiceHeader header, byte[] rawInvoiceXml)
+      throws JAXBException {
+    if (lazyBinding) return KsefInvoice.lazy(ksefId, header, rawInvoiceXml);
+
+    return new KsefInvoice(ksefId, header, fakturaUnmarshaller.unmarshal(rawInvoiceXml));
+  }
+
+  private static KsefInvoiceHeader readHeader(byte[] rawInvoiceXml) throws JAXBException {
+    try {
+      return KsefInvoiceHeaderReader.read(rawInvoiceXml);
+    } catch (XMLStreamException | RuntimeException e) {
+      throw new UnmarshalException(e);
+    }
+  }
+}
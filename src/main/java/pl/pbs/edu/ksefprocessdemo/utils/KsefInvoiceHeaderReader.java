@@ -0,0 +1,275 @@
+package pl.pbs.edu.ksefprocessdemo.utils;
+
+import pl.pbs.edu.ksefprocessdemo.generated.Faktura;
+import pl.pbs.edu.ksefprocessdemo.generated.TPodmiot1;
+import pl.pbs.edu.ksefprocessdemo.generated.TPodmiot2;
+import pl.pbs.edu.ksefprocessdemo.generated.TPodmiot3;
+import pl.pbs.edu.ksefprocessdemo.model.KsefInvoiceHeader;
+import pl.pbs.edu.ksefprocessdemo.model.KsefInvoiceHeader.Party;
+import pl.pbs.edu.ksefprocessdemo.model.KsefInvoiceLine;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Reads KsefInvoiceHeader straight from FA(3) XML with StAX. Reading stops at Fa/P_15, so line items
+ * (FaWiersz) are never even tokenized - unless they are asked for, then they are read in the same pass.
+ * <p>
+ * The header is a convenience projection: a date or amount that cannot be parsed is left null, it does not fail the
+ * invoice. Only XML that is not well-formed does.
+ */
+public class KsefInvoiceHeaderReader {
+
+  private static final XMLInputFactory INPUT_FACTORY = FakturaUnmarshaller.defaultInputFactory();
+  private static final Set<String> LINE_FIELDS = Set.of(
+      "NrWierszaFa", "P_7", "P_8A", "P_8B", "P_9A", "P_9B", "P_11", "P_11A", "P_12"
+  );
+
+  private KsefInvoiceHeaderReader() {
+  }
+
+  public static KsefInvoiceHeader read(byte[] rawInvoiceXml) throws XMLStreamException {
+    return read(rawInvoiceXml, null);
+  }
+
+  /**
+   * Header of an invoice that is already bound, mapped straight from the Faktura - the same fields as read from XML.
+   */
+  public static KsefInvoiceHeader derive(Faktura invoice) {
+    Faktura.Fa fa = invoice.getFa();
+    TPodmiot1 seller = invoice.getPodmiot1() == null ? null : invoice.getPodmiot1().getDaneIdentyfikacyjne();
+    TPodmiot2 buyer = invoice.getPodmiot2() == null ? null : invoice.getPodmiot2().getDaneIdentyfikacyjne();
+    List<Party> thirdParties = new ArrayList<>();
+    for (Faktura.Podmiot3 thirdParty : invoice.getPodmiot3()) {
+      TPodmiot3 data = thirdParty.getDaneIdentyfikacyjne();
+      Party party = data == null ? null : party(data.getNIP(), data.getNazwa());
+      if (party != null) thirdParties.add(party);
+    }
+    return new KsefInvoiceHeader(
+        fa == null ? null : fa.getP2(),
+        fa == null ? null : toLocalDate(fa.getP1()),
+        fa == null || fa.getKodWaluty() == null ? null : fa.getKodWaluty().value(),
+        fa == null ? null : fa.getP15(),
+        seller == null ? null : party(seller.getNIP(), seller.getNazwa()),
+        buyer == null ? null : party(buyer.getNIP(), buyer.getNazwa()),
+        List.copyOf(thirdParties)
+    );
+  }
+
+  /**
+   * @param lines Gets the line items in document order, or null to skip them.
+   */
+  public static KsefInvoiceHeader read(byte[] rawInvoiceXml, Consumer<KsefInvoiceLine> lines)
+      throws XMLStreamException {
+    XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(rawInvoiceXml));
+    try {
+      return read(reader, lines);
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static KsefInvoiceHeader read(XMLStreamReader reader, Consumer<KsefInvoiceLine> lines)
+      throws XMLStreamException {
+    Fields fields = new Fields(lines);
+    // Path of element local names, relative to the root (Faktura) element.
+    List<String> path = new ArrayList<>();
+    int depth = 0;
+
+    while (reader.hasNext()) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+        if (depth == 1) continue;
+        path.add(reader.getLocalName());
+
+        if (path.size() == 1 && path.get(0).equals("Podmiot3")) fields.thirdParties.add(new PartyBuilder());
+        if (lines != null && isLine(path)) fields.line = new LineBuilder();
+        if (isLeafOfInterest(path, lines != null)) {
+          fields.accept(path, reader.getElementText().trim());
+          path.remove(path.size() - 1);
+          depth--;
+          if (fields.complete && lines == null) break;
+        }
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        if (fields.line != null && isLine(path)) {
+          lines.accept(fields.line.build());
+          fields.line = null;
+        }
+        if (depth > 1) path.remove(path.size() - 1);
+        depth--;
+      }
+    }
+    return fields.toHeader();
+  }
+
+  private static boolean isLine(List<String> path) {
+    return path.size() == 2 && path.get(0).equals("Fa") && path.get(1).equals("FaWiersz");
+  }
+
+  private static boolean isLeafOfInterest(List<String> path, boolean withLines) {
+    String name = path.get(path.size() - 1);
+    if (withLines && path.size() == 3 && path.get(0).equals("Fa") && path.get(1).equals("FaWiersz"))
+      return LINE_FIELDS.contains(name);
+    if (path.size() == 3 && path.get(1).equals("DaneIdentyfikacyjne"))
+      return name.equals("NIP") || name.equals("Nazwa");
+    if (path.size() == 2 && path.get(0).equals("Fa"))
+      return name.equals("KodWaluty") || name.equals("P_1") || name.equals("P_2") || name.equals("P_15");
+    return false;
+  }
+
+  private static LocalDate parseDate(String value) {
+    try {
+      return LocalDate.parse(value);
+    } catch (DateTimeException e) {
+      return null;
+    }
+  }
+
+  private static LocalDate toLocalDate(XMLGregorianCalendar value) {
+    if (value == null) return null;
+    try {
+      return LocalDate.of(value.getYear(), value.getMonth(), value.getDay());
+    } catch (DateTimeException e) {
+      return null;
+    }
+  }
+
+  private static Party party(String nip, String name) {
+    return nip == null && name == null ? null : new Party(nip, name);
+  }
+
+  private static BigDecimal parseDecimal(String value) {
+    try {
+      return new BigDecimal(value);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static Integer parseInteger(String value) {
+    try {
+      return Integer.valueOf(value);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static class Fields {
+    private String invoiceNumber;
+    private LocalDate issueDate;
+    private String currency;
+    private BigDecimal grossAmount;
+    private final PartyBuilder seller = new PartyBuilder();
+    private final PartyBuilder buyer = new PartyBuilder();
+    private final List<PartyBuilder> thirdParties = new ArrayList<>();
+    private final Consumer<KsefInvoiceLine> lines;
+    private LineBuilder line;
+    private boolean complete;
+
+    private Fields(Consumer<KsefInvoiceLine> lines) {
+      this.lines = lines;
+    }
+
+    private void accept(List<String> path, String value) {
+      String section = path.get(0);
+      String name = path.get(path.size() - 1);
+      switch (section) {
+        case "Podmiot1" -> seller.accept(name, value);
+        case "Podmiot2" -> buyer.accept(name, value);
+        case "Podmiot3" -> thirdParties.get(thirdParties.size() - 1).accept(name, value);
+        case "Fa" -> {
+          if (path.size() == 3) line.accept(name, value);
+          else acceptFa(name, value);
+        }
+        default -> {
+        }
+      }
+    }
+
+    private void acceptFa(String name, String value) {
+      switch (name) {
+        case "KodWaluty" -> currency = value;
+        case "P_1" -> issueDate = parseDate(value);
+        case "P_2" -> invoiceNumber = value;
+        case "P_15" -> {
+          grossAmount = parseDecimal(value);
+          complete = true;
+        }
+        default -> {
+        }
+      }
+    }
+
+    private KsefInvoiceHeader toHeader() {
+      return new KsefInvoiceHeader(
+          invoiceNumber,
+          issueDate,
+          currency,
+          grossAmount,
+          seller.build(),
+          buyer.build(),
+          thirdParties.stream().map(PartyBuilder::build).filter(Objects::nonNull).toList()
+      );
+    }
+  }
+
+  private static class LineBuilder {
+    private Integer number;
+    private String name;
+    private String unit;
+    private BigDecimal quantity;
+    private BigDecimal netUnitPrice;
+    private BigDecimal grossUnitPrice;
+    private BigDecimal netValue;
+    private BigDecimal grossValue;
+    private String vatRate;
+
+    private void accept(String field, String value) {
+      switch (field) {
+        case "NrWierszaFa" -> number = parseInteger(value);
+        case "P_7" -> name = value;
+        case "P_8A" -> unit = value;
+        case "P_8B" -> quantity = parseDecimal(value);
+        case "P_9A" -> netUnitPrice = parseDecimal(value);
+        case "P_9B" -> grossUnitPrice = parseDecimal(value);
+        case "P_11" -> netValue = parseDecimal(value);
+        case "P_11A" -> grossValue = parseDecimal(value);
+        case "P_12" -> vatRate = value;
+        default -> {
+        }
+      }
+    }
+
+    private KsefInvoiceLine build() {
+      return new KsefInvoiceLine(number, name, unit, quantity, netUnitPrice, grossUnitPrice, netValue, grossValue,
+          vatRate);
+    }
+  }
+
+  private static class PartyBuilder {
+    private String nip;
+    private String name;
+
+    private void accept(String field, String value) {
+      if (field.equals("NIP")) nip = value;
+      else name = value;
+    }
+
+    private Party build() {
+      return party(nip, name);
+    }
+  }
+}
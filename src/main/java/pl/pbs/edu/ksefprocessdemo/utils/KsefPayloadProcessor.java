@@ -2,6 +2,8 @@ package pl.pbs.edu.ksefprocessdemo.utils;
 
 import jakarta.xml.bind.JAXBException;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Component;
 import pl.akmf.ksef.sdk.api.services.DefaultCryptographyService;
 import pl.akmf.ksef.sdk.client.interfaces.KSeFClient;
@@ -9,15 +11,17 @@ import pl.akmf.ksef.sdk.client.model.invoice.InvoiceExportPackage;
 import pl.akmf.ksef.sdk.client.model.invoice.InvoiceExportStatus;
 import pl.akmf.ksef.sdk.client.model.invoice.InvoicePackagePart;
 import pl.akmf.ksef.sdk.client.model.session.EncryptionData;
-import pl.pbs.edu.ksefprocessdemo.generated.Faktura;
+import pl.pbs.edu.ksefprocessdemo.metrics.KsefMetrics;
 import pl.pbs.edu.ksefprocessdemo.model.KsefInvoice;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -29,32 +33,91 @@ public class KsefPayloadProcessor {
 
   private final KSeFClient ksefClient;
   private final DefaultCryptographyService defaultCryptographyService;
+  private final KsefInvoiceFactory ksefInvoiceFactory;
+  private final PackagePartDownloader packagePartDownloader;
+  private final ParallelPartFetcher parallelPartFetcher;
+  private final ParallelInvoiceParser parallelInvoiceParser;
+  private final KsefMetrics metrics;
+  // Streaming keeps heap usage bounded by buffers, instead of ~4x the package size.
+  @Value("${ksef.package.streaming:true}")
+  private boolean streaming;
 
-  public KsefPayloadProcessor(KSeFClient ksefClient, DefaultCryptographyService defaultCryptographyService) {
+  public KsefPayloadProcessor(
+      KSeFClient ksefClient,
+      @Lazy DefaultCryptographyService defaultCryptographyService,
+      KsefInvoiceFactory ksefInvoiceFactory,
+      PackagePartDownloader packagePartDownloader,
+      ParallelPartFetcher parallelPartFetcher,
+      ParallelInvoiceParser parallelInvoiceParser,
+      KsefMetrics metrics
+  ) {
     this.ksefClient = ksefClient;
     this.defaultCryptographyService = defaultCryptographyService;
+    this.ksefInvoiceFactory = ksefInvoiceFactory;
+    this.packagePartDownloader = packagePartDownloader;
+    this.parallelPartFetcher = parallelPartFetcher;
+    this.parallelInvoiceParser = parallelInvoiceParser;
+    this.metrics = metrics;
   }
 
   public Set<KsefInvoice> parseKsefPayload(InvoiceExportStatus exportStatus, EncryptionData encryptionData) {
+    Set<KsefInvoice> invoices = new HashSet<>();
+    parseKsefPayload(exportStatus, encryptionData, ParallelInvoiceParser.Ordering.UNORDERED, invoices::add);
+    return invoices;
+  }
+
+  /**
+   * Parses the package, handing every invoice to the sink (always on the calling thread) as soon as it is ready.
+   *
+   * @param ordering ORDERED keeps the archive order, UNORDERED delivers invoices as soon as they are parsed.
+   */
+  public void parseKsefPayload(
+      InvoiceExportStatus exportStatus,
+      EncryptionData encryptionData,
+      ParallelInvoiceParser.Ordering ordering,
+      Consumer<KsefInvoice> sink
+  ) {
     log.debug("Number of invoices inside of downloaded package: {}", exportStatus.getPackageParts().getInvoiceCount());
-    byte[] fullZip = getDecryptedZipFile(exportStatus, encryptionData);
+    parseDecryptedPackage(openDecryptedZip(exportStatus, encryptionData), ordering, sink);
+  }
+
+  /**
+   * Same as _parseKsefPayload_, for a package that is already downloaded and decrypted elsewhere (e.g. PackageSpool).
+   * The stream is closed when done.
+   */
+  public void parseDecryptedPackage(
+      InputStream decryptedZip,
+      ParallelInvoiceParser.Ordering ordering,
+      Consumer<KsefInvoice> sink
+  ) {
+    try (ZipInputStream zis = metrics.meterPackage(decryptedZip)) {
+      if (parallelInvoiceParser.getParallelism() > 1) {
+        parallelInvoiceParser.parse(zis, ordering, sink);
+        return;
+      }
 
-    Set<KsefInvoice> invoices = new HashSet<>();
-    try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(fullZip))) {
       ZipEntry entry;
       while ((entry = zis.getNextEntry()) != null) {
         if(entry.getName().toLowerCase().endsWith(".xml")) {
          log.debug("File: {}", entry.getName());
           byte[] xmlFile = readZipEntry(zis);
-          Faktura invoice = unwrapInvoice(xmlFile);
 
-          invoices.add(new KsefInvoice(readKsefIdFromFileName(entry), invoice));
+          sink.accept(ksefInvoiceFactory.create(readKsefIdFromFileName(entry), xmlFile));
         }
       }
     } catch (JAXBException | IOException e) {
       throw new RuntimeException(e);
     }
-    return invoices;
+  }
+
+  private InputStream openDecryptedZip(InvoiceExportStatus exportStatus, EncryptionData encryptionData) {
+    List<InvoicePackagePart> parts = exportStatus.getPackageParts().getParts();
+    if (parallelPartFetcher.isEnabled() && parts.size() > 1)
+      return parallelPartFetcher.openDecryptedPackage(parts, encryptionData);
+    if (streaming)
+      return packagePartDownloader.openDecryptedPackage(parts, encryptionData);
+
+    return new ByteArrayInputStream(getDecryptedZipFile(exportStatus, encryptionData));
   }
 
   private byte[] getDecryptedZipFile(InvoiceExportStatus exportStatus, EncryptionData encryptionData){
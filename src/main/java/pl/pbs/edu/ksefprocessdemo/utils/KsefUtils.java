@@ -1,29 +1,28 @@
 package pl.pbs.edu.ksefprocessdemo.utils;
 
-import jakarta.xml.bind.JAXBContext;
 import jakarta.xml.bind.JAXBException;
-import jakarta.xml.bind.Unmarshaller;
+import pl.akmf.ksef.sdk.client.model.ApiException;
 import pl.pbs.edu.ksefprocessdemo.generated.Faktura;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.net.http.HttpHeaders;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 public class KsefUtils {
   public static Faktura unwrapInvoice(byte[] rawInvoiceXmlOrResponse) throws JAXBException {
-    JAXBContext ctx = JAXBContext.newInstance(Faktura.class);
-    Unmarshaller um = ctx.createUnmarshaller();
-    ByteArrayInputStream bais = new ByteArrayInputStream(rawInvoiceXmlOrResponse);
-    return (Faktura) um.unmarshal(bais);
+    return FakturaUnmarshaller.shared().unmarshal(rawInvoiceXmlOrResponse);
   }
 
   public static Faktura unwrapInvoice(File rawInvoiceXmlOrResponse) throws JAXBException {
-    JAXBContext ctx = JAXBContext.newInstance(Faktura.class);
-    Unmarshaller um = ctx.createUnmarshaller();
-    return (Faktura) um.unmarshal(rawInvoiceXmlOrResponse);
+    return FakturaUnmarshaller.shared().unmarshal(rawInvoiceXmlOrResponse);
   }
 
   public static byte[] readZipEntry(ZipInputStream zipInputStream) throws IOException {
@@ -41,4 +40,59 @@ public class KsefUtils {
   public static String readKsefIdFromFileName(ZipEntry entry) {
     return entry.getName().substring(0, entry.getName().lastIndexOf("."));
   }
+
+  public static byte[] deflate(byte[] data) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+      byte[] buffer = new byte[4096];
+      while (!deflater.finished()) {
+        baos.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return baos.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  public static byte[] inflate(byte[] compressed) {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(compressed.length * 4);
+      byte[] buffer = new byte[4096];
+      while (!inflater.finished()) {
+        int len = inflater.inflate(buffer);
+        if (len == 0 && inflater.needsInput()) throw new IllegalStateException("Truncated compressed data");
+        baos.write(buffer, 0, len);
+      }
+      return baos.toByteArray();
+    } catch (DataFormatException e) {
+      throw new IllegalStateException(e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * @return Delay requested by the server with the Retry-After header (in seconds), if there is any.
+   */
+  public static Optional<Duration> readRetryAfter(ApiException e) {
+    return readRetryAfter(e.getResponseHeaders());
+  }
+
+  public static Optional<Duration> readRetryAfter(HttpHeaders headers) {
+    if (headers == null) return Optional.empty();
+    return headers
+        .firstValue("Retry-After")
+        .flatMap(value -> {
+          try {
+            return Optional.of(Duration.ofSeconds(Long.parseLong(value.trim())));
+          } catch (NumberFormatException ex) {
+            return Optional.empty();
+          }
+        });
+  }
 }
@@ -0,0 +1,119 @@
+package pl.pbs.edu.ksefprocessdemo.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import pl.akmf.ksef.sdk.api.KsefApiProperties;
+import pl.akmf.ksef.sdk.client.model.invoice.InvoicePackagePart;
+import pl.akmf.ksef.sdk.client.model.session.EncryptionData;
+import pl.pbs.edu.ksefprocessdemo.config.props.HttpTransportProps;
+import pl.pbs.edu.ksefprocessdemo.exception.KsefPackageDownloadException;
+import pl.pbs.edu.ksefprocessdemo.metrics.KsefMetrics;
+import pl.pbs.edu.ksefprocessdemo.metrics.MeteredInputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.GeneralSecurityException;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Streams package parts straight from their (pre-signed) URLs instead of buffering them in byte arrays, the way
+ * KSeFClient::downloadPackagePart does.
+ */
+@Component
+@Slf4j
+public class PackagePartDownloader {
+
+  private static final String AES_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final HttpClient httpClient;
+  private final KsefApiProperties ksefApiProperties;
+  private final HttpTransportProps transportProps;
+  private final KsefMetrics metrics;
+
+  public PackagePartDownloader(
+      HttpClient ksefHttpClient,
+      KsefApiProperties ksefApiProperties,
+      HttpTransportProps transportProps,
+      KsefMetrics metrics
+  ) {
+    this.httpClient = ksefHttpClient;
+    this.ksefApiProperties = ksefApiProperties;
+    this.transportProps = transportProps;
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return Decrypted, concatenated content of all parts (a ZIP archive). Parts are downloaded lazily, one at a time.
+   */
+  public InputStream openDecryptedPackage(List<InvoicePackagePart> parts, EncryptionData encryptionData) {
+    List<ChainedInputStream.StreamOpener> openers = parts
+        .stream()
+        .sorted(Comparator.comparing(InvoicePackagePart::getOrdinalNumber))
+        .<ChainedInputStream.StreamOpener>map(part -> () -> openDecryptedPart(part, encryptionData))
+        .toList();
+
+    return new BufferedInputStream(new ChainedInputStream(openers.iterator()), BUFFER_SIZE);
+  }
+
+  /**
+   * Download and decrypt time (and bytes) of the part are recorded when the returned stream is closed.
+   */
+  public InputStream openDecryptedPart(InvoicePackagePart part, EncryptionData encryptionData) throws IOException {
+    MeteredInputStream encrypted = metrics.meter(openPart(part), KsefMetrics.STAGE_DOWNLOAD, null);
+    return metrics.meter(decrypt(encrypted, encryptionData), KsefMetrics.STAGE_DECRYPT, encrypted);
+  }
+
+  public InputStream openPart(InvoicePackagePart part) throws IOException {
+    log.debug("Downloading package part {} ({} bytes)", part.getPartName(), part.getEncryptedPartSize());
+    HttpRequest.Builder request = HttpRequest
+        .newBuilder(part.getUrl())
+        .timeout(transportProps.getPartDownloadTimeout())
+        .method(part.getMethod() == null ? "GET" : part.getMethod(), HttpRequest.BodyPublishers.noBody());
+    ksefApiProperties.getDefaultHeaders().forEach(request::header);
+
+    HttpResponse<InputStream> response;
+    try {
+      response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new KsefPackageDownloadException(part.getPartName(), e);
+    } catch (IOException e) {
+      metrics.apiError("downloadPart", 0);
+      throw e;
+    }
+
+    if (response.statusCode() / 100 != 2) {
+      metrics.apiError("downloadPart", response.statusCode());
+      response.body().close();
+      throw new KsefPackageDownloadException(part.getPartName(), response.statusCode());
+    }
+    return response.body();
+  }
+
+  /**
+   * Every part is encrypted separately (AES-256-CBC, same key and IV), so each gets its own Cipher.
+   */
+  public static InputStream decrypt(InputStream encrypted, EncryptionData encryptionData) {
+    try {
+      Cipher cipher = Cipher.getInstance(AES_TRANSFORMATION);
+      cipher.init(
+          Cipher.DECRYPT_MODE,
+          new SecretKeySpec(encryptionData.cipherKey(), "AES"),
+          new IvParameterSpec(encryptionData.cipherIv())
+      );
+      return new CipherInputStream(encrypted, cipher);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Could not initialize AES cipher", e);
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package pl.pbs.edu.ksefprocessdemo.utils;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.xml.bind.JAXBException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import pl.pbs.edu.ksefprocessdemo.model.KsefInvoice;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static pl.pbs.edu.ksefprocessdemo.utils.KsefUtils.readKsefIdFromFileName;
+import static pl.pbs.edu.ksefprocessdemo.utils.KsefUtils.readZipEntry;
+
+/**
+ * Two stage invoice parser: a single reader thread pulls raw XML entries out of the archive and a worker pool
+ * (sized to the cores) unmarshals them in parallel. At most _queueCapacity_ entries are in flight (read but not yet
+ * delivered), so memory stays capped no matter how big the package is.
+ * <p>
+ * Invoices are delivered to the sink on the calling thread, either in archive order or as soon as they are ready.
+ */
+@Component
+@Slf4j
+public class ParallelInvoiceParser {
+
+  public enum Ordering { ORDERED, UNORDERED }
+
+  private final KsefInvoiceFactory ksefInvoiceFactory;
+  private final ForkJoinPool workers;
+  private final int queueCapacity;
+
+  public ParallelInvoiceParser(
+      KsefInvoiceFactory ksefInvoiceFactory,
+      @Value("${ksef.parsing.parallelism:0}") int parallelism,
+      @Value("${ksef.parsing.queue-capacity:256}") int queueCapacity
+  ) {
+    this.ksefInvoiceFactory = ksefInvoiceFactory;
+    this.workers = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+    this.queueCapacity = Math.max(1, queueCapacity);
+  }
+
+  public int getParallelism() {
+    return workers.getParallelism();
+  }
+
+  public void parse(ZipInputStream zis, Ordering ordering, Consumer<KsefInvoice> sink) {
+    Run run = new Run(zis, ordering);
+    Thread reader = Thread.ofVirtual().name("ksef-zip-reader").start(run::read);
+    try {
+      run.deliver(sink);
+    } finally {
+      reader.interrupt();
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    workers.shutdownNow();
+  }
+
+  /**
+   * _total_ is only set on the end marker, it tells the (unordered) consumer how many results to wait for.
+   */
+  private record Slot(CompletableFuture<KsefInvoice> result, int total) {
+  }
+
+  private class Run {
+    private final ZipInputStream zis;
+    private final Ordering ordering;
+    private final BlockingQueue<Slot> queue = new LinkedBlockingQueue<>();
+    private final Semaphore inFlight = new Semaphore(queueCapacity);
+
+    private Run(ZipInputStream zis, Ordering ordering) {
+      this.zis = zis;
+      this.ordering = ordering;
+    }
+
+    private void read() {
+      int submitted = 0;
+      try {
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+          if (!entry.getName().toLowerCase().endsWith(".xml")) continue;
+
+          String ksefId = readKsefIdFromFileName(entry);
+          byte[] xmlFile = readZipEntry(zis);
+          inFlight.acquire();
+          submit(ksefId, xmlFile);
+          submitted++;
+        }
+        queue.put(new Slot(null, submitted));
+      } catch (IOException e) {
+        queue.add(new Slot(CompletableFuture.failedFuture(new UncheckedIOException(e)), -1));
+      } catch (InterruptedException e) {
+        // Consumer gave up, nothing to deliver anymore.
+      } catch (RuntimeException | Error e) {
+        // E.g. a part that failed to download - the consumer must not wait for an end marker that never comes.
+        queue.add(new Slot(CompletableFuture.failedFuture(e), -1));
+      }
+    }
+
+    private void submit(String ksefId, byte[] xmlFile) {
+      CompletableFuture<KsefInvoice> result = CompletableFuture.supplyAsync(() -> {
+        try {
+          return ksefInvoiceFactory.create(ksefId, xmlFile);
+        } catch (JAXBException e) {
+          throw new CompletionException(e);
+        }
+      }, workers);
+
+      if (ordering == Ordering.ORDERED) queue.add(new Slot(result, -1));
+      else result.whenComplete((invoice, error) -> queue.add(new Slot(result, -1)));
+    }
+
+    private void deliver(Consumer<KsefInvoice> sink) {
+      int delivered = 0;
+      int total = -1;
+      try {
+        while (total < 0 || delivered < total) {
+          Slot slot = queue.take();
+          if (slot.result() == null) {
+            total = slot.total();
+            continue;
+          }
+          KsefInvoice invoice = slot.result().join();
+          inFlight.release();
+          delivered++;
+          sink.accept(invoice);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CancellationException("Invoice parsing interrupted");
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof Error error) throw error;
+        throw e.getCause() instanceof RuntimeException re ? re : new RuntimeException(e.getCause());
+      }
+    }
+  }
+}
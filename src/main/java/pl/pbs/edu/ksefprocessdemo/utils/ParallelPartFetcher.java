@@ -0,0 +1,179 @@
+package pl.pbs.edu.ksefprocessdemo.utils;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import pl.akmf.ksef.sdk.client.model.invoice.InvoicePackagePart;
+import pl.akmf.ksef.sdk.client.model.session.EncryptionData;
+import pl.pbs.edu.ksefprocessdemo.config.props.PackagePartProps;
+import pl.pbs.edu.ksefprocessdemo.exception.KsefPackageDownloadException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Downloads and decrypts package parts concurrently, but hands them to the ZIP stage in their original order.
+ * <p>
+ * A part holds its permits (one slot + its size in bytes) from the moment its download starts until the ZIP stage
+ * has read it, so both the number of parallel downloads and the memory held by not yet consumed parts are bounded.
+ * Permits are always taken in part order, so the consumer can never wait for a part that could not start.
+ */
+@Component
+@Slf4j
+public class ParallelPartFetcher {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final PackagePartDownloader packagePartDownloader;
+  private final PackagePartProps props;
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+  public ParallelPartFetcher(PackagePartDownloader packagePartDownloader, PackagePartProps props) {
+    this.packagePartDownloader = packagePartDownloader;
+    this.props = props;
+  }
+
+  public boolean isEnabled() {
+    return props.getConcurrency() > 1;
+  }
+
+  /**
+   * @return Decrypted, concatenated content of all parts. Closing the stream cancels the downloads still in flight.
+   */
+  public InputStream openDecryptedPackage(List<InvoicePackagePart> parts, EncryptionData encryptionData) {
+    List<InvoicePackagePart> ordered = parts
+        .stream()
+        .sorted(Comparator.comparing(InvoicePackagePart::getOrdinalNumber))
+        .toList();
+    Run run = new Run(encryptionData);
+
+    List<ChainedInputStream.StreamOpener> openers = new ArrayList<>(ordered.size());
+    for (InvoicePackagePart part : ordered) {
+      CompletableFuture<byte[]> future = new CompletableFuture<>();
+      run.futures.add(future);
+      openers.add(() -> run.await(part, future));
+    }
+    run.producer = Thread.ofVirtual().name("ksef-part-producer").start(() -> run.submitAll(ordered));
+
+    return new FilterInputStream(new BufferedInputStream(new ChainedInputStream(openers.iterator()), BUFFER_SIZE)) {
+      @Override
+      public void close() throws IOException {
+        run.cancel();
+        super.close();
+      }
+    };
+  }
+
+  private byte[] fetchWithRetry(InvoicePackagePart part, EncryptionData encryptionData) throws InterruptedException {
+    long backoff = props.getRetryBackoff().toMillis();
+    int attempts = Math.max(1, props.getRetryMaxAttempts());
+
+    for (int attempt = 1; ; attempt++) {
+      try (InputStream in = packagePartDownloader.openDecryptedPart(part, encryptionData)) {
+        return in.readAllBytes();
+      } catch (IOException | KsefPackageDownloadException e) {
+        if (attempt >= attempts) throw e instanceof KsefPackageDownloadException kpde
+            ? kpde
+            : new KsefPackageDownloadException(part.getPartName(), e);
+
+        log.warn("Package part {} failed (attempt {}/{}), retrying in {} ms: {}",
+            part.getPartName(), attempt, attempts, backoff, e.getMessage());
+        Thread.sleep(backoff);
+        backoff = (long) (backoff * props.getRetryBackoffMultiplier());
+      }
+    }
+  }
+
+  private int bytePermits(InvoicePackagePart part) {
+    // A single part larger than the cap still has to fit, so it simply takes the whole budget.
+    long size = Math.max(part.getPartSize(), part.getEncryptedPartSize());
+    return (int) Math.min(Math.max(size, 1), byteBudget());
+  }
+
+  private int byteBudget() {
+    return (int) Math.min(Math.max(props.getMaxInFlightBytes(), 1), Integer.MAX_VALUE);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private class Run {
+    private final EncryptionData encryptionData;
+    private final List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+    private final Semaphore slots = new Semaphore(Math.max(1, props.getConcurrency()));
+    private final Semaphore bytes = new Semaphore(byteBudget());
+    private volatile Thread producer;
+    private volatile boolean cancelled;
+
+    private Run(EncryptionData encryptionData) {
+      this.encryptionData = encryptionData;
+    }
+
+    private void submitAll(List<InvoicePackagePart> ordered) {
+      for (int i = 0; i < ordered.size() && !cancelled; i++) {
+        InvoicePackagePart part = ordered.get(i);
+        CompletableFuture<byte[]> future = futures.get(i);
+        try {
+          slots.acquire();
+          bytes.acquire(bytePermits(part));
+        } catch (InterruptedException e) {
+          future.cancel(false);
+          return;
+        }
+        executor.execute(() -> {
+          try {
+            future.complete(fetchWithRetry(part, encryptionData));
+          } catch (Throwable t) {
+            future.completeExceptionally(t);
+          }
+        });
+      }
+    }
+
+    private InputStream await(InvoicePackagePart part, CompletableFuture<byte[]> future) throws IOException {
+      byte[] decrypted;
+      try {
+        decrypted = future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for package part " + part.getPartName());
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException re) throw re;
+        throw new KsefPackageDownloadException(part.getPartName(), e.getCause());
+      }
+
+      return new ByteArrayInputStream(decrypted) {
+        private boolean released;
+
+        @Override
+        public void close() {
+          if (released) return;
+          released = true;
+          bytes.release(bytePermits(part));
+          slots.release();
+        }
+      };
+    }
+
+    private void cancel() {
+      cancelled = true;
+      Thread thread = producer;
+      if (thread != null) thread.interrupt();
+      futures.forEach(future -> future.cancel(true));
+    }
+  }
+}
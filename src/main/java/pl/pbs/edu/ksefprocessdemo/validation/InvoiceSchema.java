@@ -0,0 +1,226 @@
+package pl.pbs.edu.ksefprocessdemo.validation;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Compiled FA(3) schema. Compiling it takes seconds (and the imported schemas may have to be downloaded), so it is
+ * done once and the thread-safe Schema is shared. Validators are not thread-safe - like the unmarshallers of
+ * FakturaUnmarshaller they are kept in a bounded pool and borrowed per invoice.
+ */
+@Slf4j
+public final class InvoiceSchema {
+
+  @Getter
+  private final Schema schema;
+  private final BlockingQueue<Validator> pool;
+
+  private InvoiceSchema(Schema schema, int maxPooledValidators) {
+    this.schema = schema;
+    this.pool = new ArrayBlockingQueue<>(Math.max(1, maxPooledValidators));
+  }
+
+  /**
+   * @param location         Classpath location of the schema.
+   * @param importsDirectory Directory with local copies of imported schemas (looked up by file name), or null.
+   */
+  public static InvoiceSchema compile(String location, Path importsDirectory) throws SAXException {
+    URL url = InvoiceSchema.class.getClassLoader().getResource(location);
+    if (url == null) throw new SAXException("Schema " + location + " not found on the classpath");
+
+    long start = System.currentTimeMillis();
+    SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+    factory.setResourceResolver(new LocalCopyResolver(importsDirectory));
+    Schema schema = factory.newSchema(url);
+    log.debug("Schema {} compiled in {} ms", location, System.currentTimeMillis() - start);
+    return new InvoiceSchema(schema, Runtime.getRuntime().availableProcessors() * 2);
+  }
+
+  /**
+   * @param maxErrors Errors to collect, validation stops after that many.
+   * @return Schema violations (with line and column), empty if the invoice is valid.
+   * @throws SAXException The XML is not well-formed.
+   */
+  public List<String> validate(byte[] rawInvoiceXml, int maxErrors) throws SAXException, IOException {
+    Validator validator = borrow();
+    CollectingErrorHandler errors = new CollectingErrorHandler(Math.max(1, maxErrors));
+    try {
+      validator.setErrorHandler(errors);
+      validator.validate(new StreamSource(new ByteArrayInputStream(rawInvoiceXml)));
+    } catch (SAXParseException e) {
+      // Thrown by the handler once maxErrors are collected, or for XML that is not well-formed.
+      if (!errors.isFull()) throw e;
+    } finally {
+      validator.setErrorHandler(null);
+      release(validator);
+    }
+    return errors.getErrors();
+  }
+
+  private Validator borrow() throws SAXException {
+    Validator validator = pool.poll();
+    if (validator != null) return validator;
+
+    validator = schema.newValidator();
+    // Invoices never need DTDs or external resources.
+    validator.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+    validator.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+    return validator;
+  }
+
+  private void release(Validator validator) {
+    // If the pool is full the instance is simply dropped.
+    pool.offer(validator);
+  }
+
+  static String describe(SAXParseException e) {
+    return String.format("%d:%d %s", e.getLineNumber(), e.getColumnNumber(), e.getMessage());
+  }
+
+  private static final class CollectingErrorHandler implements ErrorHandler {
+    private final int maxErrors;
+    @Getter
+    private final List<String> errors = new ArrayList<>();
+
+    private CollectingErrorHandler(int maxErrors) {
+      this.maxErrors = maxErrors;
+    }
+
+    boolean isFull() {
+      return errors.size() >= maxErrors;
+    }
+
+    @Override
+    public void warning(SAXParseException e) {
+    }
+
+    @Override
+    public void error(SAXParseException e) throws SAXParseException {
+      errors.add(describe(e));
+      if (isFull()) throw e;
+    }
+
+    @Override
+    public void fatalError(SAXParseException e) throws SAXParseException {
+      throw e;
+    }
+  }
+
+  /**
+   * Serves imported schemas from the local directory when it has a file of the same name, otherwise the import is
+   * resolved from its schemaLocation as usual.
+   */
+  record LocalCopyResolver(Path directory) implements LSResourceResolver {
+
+    @Override
+    public LSInput resolveResource(String type, String namespace, String publicId, String systemId, String baseUri) {
+      if (directory == null || systemId == null) return null;
+
+      // No path (an opaque URI such as urn:...) or no file name - nothing to look up locally.
+      String path = URI.create(systemId).getPath();
+      Path fileName = path == null || path.isEmpty() ? null : Path.of(path).getFileName();
+      if (fileName == null) return null;
+      Path localCopy = directory.resolve(fileName.toString());
+      if (!Files.isRegularFile(localCopy)) return null;
+      return new LocalInput(publicId, localCopy.toUri().toString(), baseUri);
+    }
+  }
+
+  private record LocalInput(String publicId, String systemId, String baseURI) implements LSInput {
+
+    @Override
+    public String getPublicId() {
+      return publicId;
+    }
+
+    @Override
+    public String getSystemId() {
+      return systemId;
+    }
+
+    @Override
+    public String getBaseURI() {
+      return baseURI;
+    }
+
+    @Override
+    public Reader getCharacterStream() {
+      return null;
+    }
+
+    @Override
+    public InputStream getByteStream() {
+      return null;
+    }
+
+    @Override
+    public String getStringData() {
+      return null;
+    }
+
+    @Override
+    public String getEncoding() {
+      return null;
+    }
+
+    @Override
+    public boolean getCertifiedText() {
+      return false;
+    }
+
+    @Override
+    public void setCharacterStream(Reader characterStream) {
+    }
+
+    @Override
+    public void setByteStream(InputStream byteStream) {
+    }
+
+    @Override
+    public void setStringData(String stringData) {
+    }
+
+    @Override
+    public void setSystemId(String systemId) {
+    }
+
+    @Override
+    public void setPublicId(String publicId) {
+    }
+
+    @Override
+    public void setBaseURI(String baseURI) {
+    }
+
+    @Override
+    public void setEncoding(String encoding) {
+    }
+
+    @Override
+    public void setCertifiedText(boolean certifiedText) {
+    }
+  }
+}
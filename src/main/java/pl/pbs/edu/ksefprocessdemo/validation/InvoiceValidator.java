@@ -0,0 +1,167 @@
+package pl.pbs.edu.ksefprocessdemo.validation;
+
+import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.ValidationEvent;
+import jakarta.xml.bind.ValidationEventLocator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.xml.sax.SAXException;
+import pl.pbs.edu.ksefprocessdemo.config.props.ValidationProps;
+import pl.pbs.edu.ksefprocessdemo.generated.Faktura;
+import pl.pbs.edu.ksefprocessdemo.metrics.KsefMetrics;
+import pl.pbs.edu.ksefprocessdemo.utils.FakturaUnmarshaller;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.OffsetDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * FA(3) schema validation of downloaded invoices (_ksef.validation.enabled_). An invoice that does not conform is
+ * still delivered - it is logged, counted and kept in the report for the compliance checks, the package goes on.
+ * <p>
+ * With eager binding the validation is fused with unmarshalling (the validating unmarshaller checks the XML in the
+ * same pass, its time is part of the _bind_ stage); otherwise it is a separate pass, the _validate_ stage. Either way
+ * it runs on the parser workers, so invoices of a package are validated in parallel.
+ */
+@Component
+@Slf4j
+public class InvoiceValidator {
+
+  public record InvalidInvoice(String ksefId, OffsetDateTime validatedAt, List<String> errors) {
+  }
+
+  /**
+   * @param invalidInvoices The most recent ones, at most _ksef.validation.report-size_.
+   */
+  public record Report(long validated, long invalid, List<InvalidInvoice> invalidInvoices) {
+  }
+
+  private final ValidationProps props;
+  private final KsefMetrics metrics;
+  private final LongAdder validated = new LongAdder();
+  private final LongAdder invalid = new LongAdder();
+  private final Deque<InvalidInvoice> invalidInvoices = new ArrayDeque<>();
+  private volatile InvoiceSchema schema;
+
+  public InvoiceValidator(ValidationProps props, KsefMetrics metrics) {
+    this.props = props;
+    this.metrics = metrics;
+  }
+
+  public boolean isEnabled() {
+    return props.isEnabled();
+  }
+
+  public boolean isFused() {
+    return props.isFused();
+  }
+
+  /**
+   * Compiles the schema, so the first package does not wait for it.
+   */
+  public void warmUp() {
+    schema();
+  }
+
+  /**
+   * Separate validation pass over the raw XML.
+   */
+  public void validate(String ksefId, byte[] rawInvoiceXml) {
+    long start = System.nanoTime();
+    List<String> errors;
+    try {
+      errors = schema().validate(rawInvoiceXml, props.getMaxErrors());
+    } catch (SAXException e) {
+      errors = List.of(e.getMessage());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      metrics.stage(KsefMetrics.STAGE_VALIDATE, System.nanoTime() - start);
+    }
+    record(ksefId, errors);
+  }
+
+  /**
+   * Binds the invoice with a validating unmarshaller. Violations do not stop the binding, only XML that is not
+   * well-formed does - it is recorded like by the separate pass, then the binding fails.
+   */
+  public Faktura bindValidated(String ksefId, byte[] rawInvoiceXml, FakturaUnmarshaller fakturaUnmarshaller)
+      throws JAXBException {
+    int maxErrors = Math.max(1, props.getMaxErrors());
+    List<String> errors = new ArrayList<>();
+    Faktura invoice;
+    try {
+      invoice = fakturaUnmarshaller.unmarshal(rawInvoiceXml, schema().getSchema(), event -> {
+        if (event.getSeverity() == ValidationEvent.FATAL_ERROR) return false;
+        if (event.getSeverity() == ValidationEvent.ERROR && errors.size() < maxErrors) errors.add(describe(event));
+        return true;
+      });
+    } catch (JAXBException e) {
+      record(ksefId, List.of(describe(e)));
+      throw e;
+    }
+    record(ksefId, errors);
+    return invoice;
+  }
+
+  public Report report() {
+    synchronized (invalidInvoices) {
+      return new Report(validated.sum(), invalid.sum(), List.copyOf(invalidInvoices));
+    }
+  }
+
+  public void clearReport() {
+    synchronized (invalidInvoices) {
+      invalidInvoices.clear();
+    }
+  }
+
+  private void record(String ksefId, List<String> errors) {
+    validated.increment();
+    metrics.validatedInvoice(errors.isEmpty());
+    if (errors.isEmpty()) return;
+
+    invalid.increment();
+    log.warn("Invoice {} does not conform to the FA(3) schema ({} error(s)), first: {}", ksefId, errors.size(),
+        errors.getFirst());
+    synchronized (invalidInvoices) {
+      invalidInvoices.addLast(new InvalidInvoice(ksefId, OffsetDateTime.now(), List.copyOf(errors)));
+      while (invalidInvoices.size() > Math.max(0, props.getReportSize())) {
+        invalidInvoices.removeFirst();
+      }
+    }
+  }
+
+  private InvoiceSchema schema() {
+    InvoiceSchema compiled = schema;
+    if (compiled != null) return compiled;
+
+    synchronized (this) {
+      if (schema == null) {
+        try {
+          schema = InvoiceSchema.compile(props.getSchema(), props.getImportsDirectory());
+        } catch (SAXException e) {
+          throw new IllegalStateException("Could not compile schema " + props.getSchema(), e);
+        }
+      }
+      return schema;
+    }
+  }
+
+  private static String describe(JAXBException e) {
+    Throwable cause = e.getLinkedException() != null ? e.getLinkedException() : e;
+    return cause.getMessage() != null ? cause.getMessage() : cause.toString();
+  }
+
+  private static String describe(ValidationEvent event) {
+    ValidationEventLocator locator = event.getLocator();
+    return locator == null
+        ? event.getMessage()
+        : String.format("%d:%d %s", locator.getLineNumber(), locator.getColumnNumber(), event.getMessage());
+  }
+}
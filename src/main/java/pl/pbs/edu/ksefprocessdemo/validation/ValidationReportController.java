@@ -0,0 +1,35 @@
+package pl.pbs.edu.ksefprocessdemo.validation;
+
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Invoices that failed FA(3) schema validation, for the compliance team.
+ */
+@RestController
+@RequestMapping("/api/validation-report")
+public class ValidationReportController {
+
+  private final InvoiceValidator invoiceValidator;
+
+  public ValidationReportController(InvoiceValidator invoiceValidator) {
+    this.invoiceValidator = invoiceValidator;
+  }
+
+  @GetMapping
+  public InvoiceValidator.Report report() {
+    return invoiceValidator.report();
+  }
+
+  /**
+   * Drops the invalid invoices collected so far, the counters stay.
+   */
+  @DeleteMapping
+  public ResponseEntity<Void> clear() {
+    invoiceValidator.clearReport();
+    return ResponseEntity.noContent().build();
+  }
+}
@@ -0,0 +1,119 @@
+package pl.pbs.edu.ksefprocessdemo;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import pl.pbs.edu.ksefprocessdemo.fake.FakeKsef;
+import pl.pbs.edu.ksefprocessdemo.fake.FakeKsefServer;
+import pl.pbs.edu.ksefprocessdemo.service.InvoiceFetchService;
+import pl.pbs.edu.ksefprocessdemo.service.KsefIntegrationService;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Whole fetch path (auth, export, polling, part download, decryption, parsing) against FakeKsefServer.
+ * Small by default, for a real load run e.g.:
+ * <pre>
+ * ./gradlew test --tests '*KsefFetchLoadTest' -Pksef.fake.invoices=100000 -Pksef.fake.latency-ms=20
+ * </pre>
+ */
+@SpringBootTest
+@FakeKsef
+class KsefFetchLoadTest {
+
+  private static final Logger log = LoggerFactory.getLogger(KsefFetchLoadTest.class);
+
+  private static final int INVOICES = Integer.getInteger("ksef.fake.invoices", 2_000);
+
+  @RegisterExtension
+  static final FakeKsefServer KSEF = FakeKsefServer.start(new FakeKsefServer.Settings()
+      .invoiceCount(INVOICES)
+      .partSize(Integer.getInteger("ksef.fake.part-size", 1024 * 1024))
+      .latency(Duration.ofMillis(Long.getLong("ksef.fake.latency-ms", 0)))
+      .throttleRate(Double.parseDouble(System.getProperty("ksef.fake.throttle-rate", "0")), Duration.ofSeconds(1))
+  );
+
+  @Autowired
+  private KsefIntegrationService ksefIntegrationService;
+
+  @Autowired
+  private InvoiceFetchService invoiceFetchService;
+
+  @Test
+  void fetchesEveryInvoiceOnce() {
+    Set<String> ksefIds = ConcurrentHashMap.newKeySet();
+    resetPeakHeap();
+    long start = System.nanoTime();
+
+    long delivered = ksefIntegrationService.forEachInvoiceBetween(
+        KSEF.dataset().storedAt(0).minusMinutes(1),
+        OffsetDateTime.now(),
+        invoice -> ksefIds.add(invoice.getKsefId())
+    );
+
+    Duration took = Duration.ofNanos(System.nanoTime() - start);
+    log.info(
+        "Fetched {} invoice(s) in {} ms ({} invoices/s), peak heap {} MB, requests: {}",
+        delivered,
+        took.toMillis(),
+        delivered * 1000 / Math.max(1, took.toMillis()),
+        peakHeap() / (1024 * 1024),
+        KSEF.requestCounts()
+    );
+    assertEquals(INVOICES, delivered);
+    assertEquals(INVOICES, ksefIds.size());
+  }
+
+  @Test
+  void fetchesInvoicesByKsefIdOnce() {
+    List<String> wanted = IntStream
+        .range(0, Math.min(300, INVOICES))
+        .mapToObj(KSEF.dataset()::ksefId)
+        .toList();
+    String endpoint = "GET /api/v2/invoices/ksef/{ksefNumber}";
+    long downloadsBefore = KSEF.requestCount(endpoint);
+
+    List<InvoiceFetchService.FetchResult> first = new ArrayList<>();
+    assertEquals(wanted.size(), invoiceFetchService.fetch(wanted, first::add));
+    assertTrue(first.stream().allMatch(result -> result.invoice() != null));
+    assertEquals(wanted.size(), KSEF.requestCount(endpoint) - downloadsBefore);
+
+    List<InvoiceFetchService.FetchResult> repeated = new ArrayList<>();
+    assertEquals(wanted.size(), invoiceFetchService.fetch(wanted, repeated::add));
+    assertTrue(repeated.stream().allMatch(result -> result.source() == InvoiceFetchService.Source.MEMORY));
+    assertEquals(wanted.size(), KSEF.requestCount(endpoint) - downloadsBefore);
+
+    List<InvoiceFetchService.FetchResult> unknown = new ArrayList<>();
+    assertEquals(0, invoiceFetchService.fetch(List.of("0000000000-20250101-000000000000-00"), unknown::add));
+    assertTrue(unknown.getFirst().failed());
+  }
+
+  private static void resetPeakHeap() {
+    System.gc();
+    ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+  }
+
+  private static long peakHeap() {
+    return ManagementFactory
+        .getMemoryPoolMXBeans()
+        .stream()
+        .filter(pool -> pool.getType() == MemoryType.HEAP)
+        .mapToLong(pool -> pool.getPeakUsage().getUsed())
+        .sum();
+  }
+}
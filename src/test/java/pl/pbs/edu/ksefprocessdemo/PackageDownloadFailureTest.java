@@ -0,0 +1,62 @@
+package pl.pbs.edu.ksefprocessdemo;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import pl.pbs.edu.ksefprocessdemo.exception.KsefPackageDownloadException;
+import pl.pbs.edu.ksefprocessdemo.fake.FakeKsef;
+import pl.pbs.edu.ksefprocessdemo.fake.FakeKsefServer;
+import pl.pbs.edu.ksefprocessdemo.service.KsefIntegrationService;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A part that cannot be downloaded must fail the sync, not leave it waiting for invoices that never come. Parts are
+ * streamed one by one (no retries) into the parallel parser, whose reader thread is the one that hits the error.
+ */
+@SpringBootTest(properties = {
+    "ksef.package.parts.concurrency=1",
+    "ksef.parsing.parallelism=4",
+    "ksef.archive.enabled=false"
+})
+@FakeKsef
+class PackageDownloadFailureTest {
+
+  @RegisterExtension
+  static final FakeKsefServer KSEF = FakeKsefServer.start(new FakeKsefServer.Settings()
+      .invoiceCount(500)
+      .partSize(64 * 1024)
+      .failingPart(2)
+  );
+
+  @Autowired
+  private KsefIntegrationService ksefIntegrationService;
+
+  @Test
+  void failedPartFailsTheSync() {
+    RuntimeException error = assertTimeoutPreemptively(Duration.ofSeconds(60), () -> assertThrows(
+        RuntimeException.class,
+        () -> ksefIntegrationService.forEachInvoiceBetween(
+            KSEF.dataset().storedAt(0).minusMinutes(1),
+            OffsetDateTime.now(),
+            invoice -> {
+            }
+        )
+    ));
+    assertTrue(causedBy(error, KsefPackageDownloadException.class), () -> "Unexpected failure: " + error);
+    assertTrue(KSEF.requestCount("GET /fake-storage/{part}") >= 2);
+  }
+
+  private static boolean causedBy(Throwable error, Class<? extends Throwable> type) {
+    for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+      if (type.isInstance(cause)) return true;
+    }
+    return false;
+  }
+}
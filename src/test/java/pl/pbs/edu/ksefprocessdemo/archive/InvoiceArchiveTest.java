@@ -0,0 +1,230 @@
+package pl.pbs.edu.ksefprocessdemo.archive;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import pl.pbs.edu.ksefprocessdemo.config.props.ArchiveProps;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InvoiceArchiveTest {
+
+  private static final LocalDate DAY = LocalDate.of(2025, 11, 24);
+
+  @TempDir
+  Path directory;
+
+  private final List<InvoiceArchive> opened = new ArrayList<>();
+
+  @AfterEach
+  void closeArchives() {
+    opened.forEach(InvoiceArchive::close);
+  }
+
+  @Test
+  void appendsAndReads() {
+    InvoiceArchive archive = open(1 << 20);
+
+    assertTrue(archive.append("id-1", DAY, "1111111111", xml(1)));
+    assertTrue(archive.append("id-2", DAY.plusDays(1), null, xml(2)));
+    assertFalse(archive.append("id-1", DAY, "1111111111", xml(99)));
+
+    assertEquals(2, archive.size());
+    assertTrue(archive.contains("id-2"));
+    assertArrayEquals(xml(1), archive.read("id-1").orElseThrow());
+    assertArrayEquals(xml(2), archive.read("id-2").orElseThrow());
+    assertEquals(Optional.empty(), archive.read("id-3"));
+    assertEquals(DAY, archive.findEntry("id-1").orElseThrow().issueDate());
+  }
+
+  @Test
+  void scansByIssueDateAndSeller() {
+    InvoiceArchive archive = open(1 << 20);
+    archive.append("id-3", DAY.plusDays(2), "1111111111", xml(3));
+    archive.append("id-1", DAY, "1111111111", xml(1));
+    archive.append("id-2", DAY.plusDays(1), "2222222222", xml(2));
+    archive.append("id-4", DAY.plusDays(3), "1111111111", xml(4));
+
+    List<String> scanned = new ArrayList<>();
+    archive.scan(DAY, DAY.plusDays(2), null, (entry, xml) -> {
+      assertArrayEquals(xml(Integer.parseInt(entry.ksefId().substring(3))), xml);
+      scanned.add(entry.ksefId());
+    });
+
+    assertEquals(List.of("id-1", "id-2", "id-3"), scanned);
+    assertEquals(
+        List.of("id-1", "id-3", "id-4"),
+        archive.entriesBetween(DAY, DAY.plusDays(3), "1111111111").map(ArchiveEntry::ksefId).toList()
+    );
+  }
+
+  @Test
+  void rollsSegmentsAndReadsSealedOnes() throws IOException {
+    InvoiceArchive archive = open(2_000);
+    for (int i = 0; i < 20; i++) {
+      archive.append("id-" + i, DAY, null, xml(i));
+    }
+
+    assertTrue(segmentFiles().size() > 1);
+    for (int i = 0; i < 20; i++) {
+      assertArrayEquals(xml(i), archive.read("id-" + i).orElseThrow());
+    }
+  }
+
+  @Test
+  void reopensFromSnapshot() {
+    InvoiceArchive archive = open(2_000);
+    for (int i = 0; i < 20; i++) {
+      archive.append("id-" + i, DAY.plusDays(i), "1111111111", xml(i));
+    }
+    archive.close();
+
+    InvoiceArchive reopened = open(2_000);
+    assertEquals(20, reopened.size());
+    for (int i = 0; i < 20; i++) {
+      assertArrayEquals(xml(i), reopened.read("id-" + i).orElseThrow());
+    }
+    assertEquals(DAY.plusDays(7), reopened.findEntry("id-7").orElseThrow().issueDate());
+    assertTrue(reopened.append("id-20", DAY, null, xml(20)));
+  }
+
+  @Test
+  void recoversRecordsAfterTheSnapshotAndCutsOffATornOne() throws IOException {
+    InvoiceArchive archive = open(1 << 20);
+    archive.append("id-1", DAY, null, xml(1));
+    archive.flush();
+    archive.append("id-2", DAY, null, xml(2));
+    // Crash: no snapshot of id-2, and half of a record written after it.
+    Path segment = segmentFiles().getLast();
+    long intact = Files.size(segment);
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      channel.write(ByteBuffer.allocate(12).putInt(ArchiveSegment.MAGIC).putInt(1_000).putInt(42).flip());
+    }
+
+    InvoiceArchive recovered = open(1 << 20);
+    assertEquals(2, recovered.size());
+    assertArrayEquals(xml(2), recovered.read("id-2").orElseThrow());
+    assertEquals(intact, Files.size(segment));
+    assertTrue(recovered.append("id-3", DAY, null, xml(3)));
+    assertArrayEquals(xml(3), recovered.read("id-3").orElseThrow());
+  }
+
+  @Test
+  void compactsAndDropsOldInvoices() throws IOException {
+    InvoiceArchive archive = open(2_000);
+    for (int i = 0; i < 30; i++) {
+      archive.append("id-" + i, DAY.plusDays(i), null, xml(i));
+    }
+    List<Path> before = segmentFiles();
+
+    archive.compact(DAY.plusDays(10));
+
+    assertEquals(20, archive.size());
+    assertFalse(archive.contains("id-9"));
+    for (int i = 10; i < 30; i++) {
+      assertArrayEquals(xml(i), archive.read("id-" + i).orElseThrow());
+    }
+    assertTrue(before.stream().noneMatch(Files::exists));
+    archive.close();
+
+    InvoiceArchive reopened = open(2_000);
+    assertEquals(20, reopened.size());
+    assertArrayEquals(xml(29), reopened.read("id-29").orElseThrow());
+  }
+
+  @Test
+  void entryLookedUpBeforeCompactionStaysReadable() {
+    InvoiceArchive archive = open(2_000);
+    for (int i = 0; i < 30; i++) {
+      archive.append("id-" + i, DAY.plusDays(i), null, xml(i));
+    }
+    ArchiveEntry moved = archive.findEntry("id-20").orElseThrow();
+    ArchiveEntry dropped = archive.findEntry("id-1").orElseThrow();
+
+    archive.compact(DAY.plusDays(10));
+
+    assertArrayEquals(xml(20), archive.read(moved));
+    assertThrows(NoSuchElementException.class, () -> archive.read(dropped));
+  }
+
+  @Test
+  void readsWhileCompacting() throws InterruptedException {
+    InvoiceArchive archive = open(4_000);
+    int count = 200;
+    for (int i = 0; i < count; i++) {
+      archive.append("id-" + i, DAY, null, xml(i));
+    }
+    List<ArchiveEntry> entries = archive.entriesBetween(DAY, DAY, null).toList();
+    ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+    AtomicBoolean compacting = new AtomicBoolean(true);
+    CountDownLatch readersDone = new CountDownLatch(4);
+
+    for (int r = 0; r < 4; r++) {
+      Thread.ofPlatform().start(() -> {
+        try {
+          while (compacting.get()) {
+            for (ArchiveEntry entry : entries) {
+              int i = Integer.parseInt(entry.ksefId().substring(3));
+              assertArrayEquals(xml(i), archive.read(entry));
+            }
+          }
+        } catch (Throwable e) {
+          failures.add(e);
+        } finally {
+          readersDone.countDown();
+        }
+      });
+    }
+    for (int round = 0; round < 20; round++) {
+      archive.compact(null);
+    }
+    compacting.set(false);
+    readersDone.await();
+
+    assertTrue(failures.isEmpty(), () -> "Reads failed: " + failures);
+    assertEquals(count, archive.size());
+  }
+
+  private InvoiceArchive open(long segmentSize) {
+    ArchiveProps props = new ArchiveProps();
+    ReflectionTestUtils.setField(props, "enabled", true);
+    ReflectionTestUtils.setField(props, "directory", directory);
+    ReflectionTestUtils.setField(props, "segmentSize", segmentSize);
+    InvoiceArchive archive = new InvoiceArchive(props);
+    opened.add(archive);
+    return archive;
+  }
+
+  private List<Path> segmentFiles() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(file -> file.getFileName().toString().startsWith("segment-")).sorted().toList();
+    }
+  }
+
+  private static byte[] xml(int i) {
+    return ("<Faktura><Fa><P_2>FV/" + i + "</P_2>" + "x".repeat(100 + i % 50) + "</Fa></Faktura>")
+        .getBytes(StandardCharsets.UTF_8);
+  }
+}
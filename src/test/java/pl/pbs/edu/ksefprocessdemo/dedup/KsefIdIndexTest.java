@@ -0,0 +1,132 @@
+package pl.pbs.edu.ksefprocessdemo.dedup;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import pl.pbs.edu.ksefprocessdemo.config.props.DedupIndexProps;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KsefIdIndexTest {
+
+  @TempDir
+  Path directory;
+
+  private final List<KsefIdIndex> opened = new ArrayList<>();
+
+  @AfterEach
+  void closeIndexes() {
+    opened.forEach(KsefIdIndex::close);
+  }
+
+  @Test
+  void addsAndLooksUp() {
+    KsefIdIndex index = open(1024, true);
+
+    assertTrue(index.add(ksefId(1)));
+    assertTrue(index.add(ksefId(2)));
+    assertFalse(index.add(ksefId(1)));
+
+    assertTrue(index.contains(ksefId(1)));
+    assertTrue(index.contains(ksefId(2)));
+    assertFalse(index.contains(ksefId(3)));
+    assertEquals(2, index.size());
+  }
+
+  @Test
+  void keepsIdsThatCannotBePacked() {
+    KsefIdIndex index = open(1024, true);
+
+    assertTrue(index.add("not-a-ksef-number"));
+    assertFalse(index.add("not-a-ksef-number"));
+    assertTrue(index.contains("not-a-ksef-number"));
+    assertFalse(index.contains("another-one"));
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  void reopensWithEverythingAdded() {
+    KsefIdIndex index = open(1024, true);
+    for (int i = 0; i < 100; i++) {
+      index.add(ksefId(i));
+    }
+    index.add("not-a-ksef-number");
+    index.force();
+    index.close();
+
+    KsefIdIndex reopened = open(1024, true);
+    assertEquals(101, reopened.size());
+    for (int i = 0; i < 100; i++) {
+      assertTrue(reopened.contains(ksefId(i)));
+    }
+    assertTrue(reopened.contains("not-a-ksef-number"));
+    assertFalse(reopened.contains(ksefId(100)));
+    assertFalse(reopened.add(ksefId(42)));
+  }
+
+  @Test
+  void growsPastTheInitialCapacity() throws IOException {
+    for (boolean bloomFilter : new boolean[]{true, false}) {
+      Path file = directory.resolve("bloom-" + bloomFilter + ".idx");
+      KsefIdIndex index = open(file, 16, bloomFilter);
+      assertTrue(index.add(ksefId(0)));
+      long initialSize = Files.size(file);
+      for (int i = 1; i < 5_000; i++) {
+        assertTrue(index.add(ksefId(i)));
+      }
+
+      assertTrue(Files.size(file) > initialSize);
+      assertEquals(5_000, index.size());
+      for (int i = 0; i < 5_000; i++) {
+        assertTrue(index.contains(ksefId(i)));
+      }
+      for (int i = 5_000; i < 10_000; i++) {
+        assertFalse(index.contains(ksefId(i)));
+      }
+      index.close();
+
+      KsefIdIndex reopened = open(file, 16, bloomFilter);
+      assertEquals(5_000, reopened.size());
+      assertTrue(reopened.contains(ksefId(4_999)));
+      assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".tmp")));
+    }
+  }
+
+  @Test
+  void rejectsAFileThatIsNotAnIndex() throws IOException {
+    Files.write(directory.resolve("ksef-dedup.idx"), new byte[64]);
+
+    KsefIdIndex index = open(1024, true);
+    assertThrows(RuntimeException.class, () -> index.contains(ksefId(1)));
+  }
+
+  private KsefIdIndex open(int initialCapacity, boolean bloomFilter) {
+    return open(directory.resolve("ksef-dedup.idx"), initialCapacity, bloomFilter);
+  }
+
+  private KsefIdIndex open(Path file, int initialCapacity, boolean bloomFilter) {
+    DedupIndexProps props = new DedupIndexProps();
+    ReflectionTestUtils.setField(props, "enabled", true);
+    ReflectionTestUtils.setField(props, "file", file);
+    ReflectionTestUtils.setField(props, "initialCapacity", initialCapacity);
+    ReflectionTestUtils.setField(props, "bloomFilter", bloomFilter);
+    KsefIdIndex index = new KsefIdIndex(props);
+    opened.add(index);
+    return index;
+  }
+
+  // Consecutive invoices of one seller and day, as KSeF numbers them.
+  private static String ksefId(int i) {
+    return String.format("5265877635-20250826-%012X-%02X", 0x0100001AF629L + i, i & 0xFF);
+  }
+}
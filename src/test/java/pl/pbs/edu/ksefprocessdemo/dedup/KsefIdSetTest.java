@@ -0,0 +1,53 @@
+package pl.pbs.edu.ksefprocessdemo.dedup;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KsefIdSetTest {
+
+  @Test
+  void addsAndLooksUp() {
+    KsefIdSet set = new KsefIdSet();
+
+    assertTrue(set.add(ksefId(1)));
+    assertTrue(set.add(ksefId(2)));
+    assertFalse(set.add(ksefId(1)));
+
+    assertTrue(set.contains(ksefId(1)));
+    assertTrue(set.contains(ksefId(2)));
+    assertFalse(set.contains(ksefId(3)));
+    assertEquals(2, set.size());
+  }
+
+  @Test
+  void keepsIdsThatCannotBePacked() {
+    KsefIdSet set = new KsefIdSet();
+
+    assertTrue(set.add("not-a-ksef-number"));
+    assertFalse(set.add("not-a-ksef-number"));
+    assertTrue(set.contains("not-a-ksef-number"));
+    assertFalse(set.contains("another-one"));
+    assertEquals(1, set.size());
+  }
+
+  @Test
+  void growsPastTheInitialCapacity() {
+    KsefIdSet set = new KsefIdSet();
+    for (int i = 0; i < 10_000; i++) {
+      assertTrue(set.add(ksefId(i)));
+    }
+
+    assertEquals(10_000, set.size());
+    for (int i = 0; i < 10_000; i++) {
+      assertTrue(set.contains(ksefId(i)));
+    }
+    assertFalse(set.contains(ksefId(10_000)));
+  }
+
+  private static String ksefId(int i) {
+    return String.format("5265877635-20250826-%012X-%02X", 0x0100001AF629L + i, i & 0xFF);
+  }
+}
@@ -0,0 +1,89 @@
+package pl.pbs.edu.ksefprocessdemo.fake;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Deterministic set of invoices served by FakeKsefServer - nothing is stored, invoice _i_ is computed on demand.
+ * All invoices come from one seller, are copies of _demo/mock.xml_ with a unique P_2 and are spread evenly over
+ * [from, to). Invoicing and permanent storage date are the same instant, ordered by index.
+ */
+public final class FakeInvoiceDataset {
+
+  public static final String SELLER_NIP = "5265877635";
+  private static final String TEMPLATE_INVOICE_NUMBER = "<P_2>420/P/10/2137</P_2>";
+
+  private final int count;
+  private final OffsetDateTime from;
+  private final long stepNanos;
+  private final String template;
+
+  public FakeInvoiceDataset(int count, OffsetDateTime from, OffsetDateTime to, byte[] templateXml) {
+    this.count = count;
+    this.from = from;
+    this.stepNanos = Math.max(1_000_000, Duration.between(from, to).toNanos() / Math.max(1, count));
+    this.template = new String(templateXml, StandardCharsets.UTF_8);
+  }
+
+  public int count() {
+    return count;
+  }
+
+  public String ksefId(int index) {
+    return String.format(
+        "%s-%s-%012X-%02X",
+        SELLER_NIP,
+        storedAt(index).format(DateTimeFormatter.BASIC_ISO_DATE).substring(0, 8),
+        index,
+        index & 0xFF
+    );
+  }
+
+  public String invoiceNumber(int index) {
+    return "FAKE/" + index;
+  }
+
+  public OffsetDateTime storedAt(int index) {
+    return from.plusNanos(stepNanos * index);
+  }
+
+  public byte[] xml(int index) {
+    return template
+        .replace(TEMPLATE_INVOICE_NUMBER, "<P_2>" + invoiceNumber(index) + "</P_2>")
+        .getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return Index of the invoice, or -1 if there is no such invoice.
+   */
+  public int indexOf(String ksefId) {
+    try {
+      int index = Integer.parseInt(ksefId.substring(20, 32), 16);
+      return index < count && ksefId(index).equals(ksefId) ? index : -1;
+    } catch (RuntimeException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * First index stored at or after the instant (count if none).
+   */
+  public int firstAtOrAfter(OffsetDateTime instant) {
+    if (instant == null || !instant.isAfter(from)) return 0;
+    long nanos = Duration.between(from, instant).toNanos();
+    long index = nanos / stepNanos + (nanos % stepNanos == 0 ? 0 : 1);
+    return (int) Math.min(count, index);
+  }
+
+  /**
+   * First index stored after the instant (count if none).
+   */
+  public int firstAfter(OffsetDateTime instant) {
+    if (instant == null) return count;
+    if (instant.isBefore(from)) return 0;
+    long index = Duration.between(from, instant).toNanos() / stepNanos + 1;
+    return (int) Math.min(count, index);
+  }
+}
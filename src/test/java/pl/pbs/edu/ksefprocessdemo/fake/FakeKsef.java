@@ -0,0 +1,31 @@
+package pl.pbs.edu.ksefprocessdemo.fake;
+
+import org.springframework.test.context.ContextCustomizerFactories;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Points the application context of a Spring test at the FakeKsefServer kept in a static field of the test class
+ * (_ksef.url_, plus _ksef.apiToken_ and _ksef.nip_ the server accepts). Register that field as an extension, so the
+ * server is closed after the class:
+ * <pre>
+ * &#64;SpringBootTest
+ * &#64;FakeKsef
+ * class SomeTest {
+ *   &#64;RegisterExtension
+ *   static final FakeKsefServer KSEF = FakeKsefServer.start(new FakeKsefServer.Settings().invoiceCount(100));
+ * </pre>
+ * Each server gets its own cached context.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+@Inherited
+@ContextCustomizerFactories(FakeKsefContextCustomizerFactory.class)
+public @interface FakeKsef {
+}
@@ -0,0 +1,60 @@
+package pl.pbs.edu.ksefprocessdemo.fake;
+
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.test.context.ContextConfigurationAttributes;
+import org.springframework.test.context.ContextCustomizer;
+import org.springframework.test.context.ContextCustomizerFactory;
+import org.springframework.test.context.MergedContextConfiguration;
+import org.springframework.util.ReflectionUtils;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * See {@link FakeKsef}.
+ */
+public class FakeKsefContextCustomizerFactory implements ContextCustomizerFactory {
+
+  private static final String API_TOKEN = "fake-api-token";
+  private static final String NIP = "1234567890";
+
+  @Override
+  public ContextCustomizer createContextCustomizer(
+      Class<?> testClass,
+      List<ContextConfigurationAttributes> configAttributes
+  ) {
+    return new Customizer(server(testClass));
+  }
+
+  private static FakeKsefServer server(Class<?> testClass) {
+    for (Class<?> type = testClass; type != null; type = type.getSuperclass()) {
+      for (Field field : type.getDeclaredFields()) {
+        if (Modifier.isStatic(field.getModifiers()) && field.getType() == FakeKsefServer.class) {
+          ReflectionUtils.makeAccessible(field);
+          FakeKsefServer server = (FakeKsefServer) ReflectionUtils.getField(field, null);
+          if (server == null) throw new IllegalStateException(field + " is not set");
+          return server;
+        }
+      }
+    }
+    throw new IllegalStateException(testClass.getName() + " has no static FakeKsefServer field");
+  }
+
+  /**
+   * Equal only for the same server - the context cache must not hand out a context pointing at another one.
+   */
+  private record Customizer(FakeKsefServer server) implements ContextCustomizer {
+
+    @Override
+    public void customizeContext(ConfigurableApplicationContext context, MergedContextConfiguration mergedConfig) {
+      context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("fakeKsef", Map.of(
+          "ksef.url", server.baseUri(),
+          "ksef.apiToken", API_TOKEN,
+          "ksef.nip", NIP
+      )));
+    }
+  }
+}
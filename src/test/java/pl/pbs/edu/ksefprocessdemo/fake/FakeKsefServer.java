@@ -0,0 +1,687 @@
+package pl.pbs.edu.ksefprocessdemo.fake;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.extension.AfterAllCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.MGF1ParameterSpec;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Local stand-in for the KSeF API (loopback only), good enough for DefaultKsefClient, DefaultCryptographyService,
+ * KsefAuthorizationProvider and KsefIntegrationService:
+ * <ul>
+ *   <li>public key certificates (self-signed RSA, generated on start),</li>
+ *   <li>auth: challenge, ksef-token, status, redeem, refresh,</li>
+ *   <li>invoice export (package encrypted with the AES key sent by the client, split into parts, truncated at
+ *   _maxInvoicesPerPackage_), export status, part download,</li>
+ *   <li>single invoice download and metadata query.</li>
+ * </ul>
+ * Invoices come from {@link FakeInvoiceDataset}. Latency, errors (500) and throttling (429 with Retry-After) can be
+ * injected into every API call except the certificate endpoint, a part can be made to fail every time. Counters of
+ * handled requests are kept per path pattern, see {@link #requestCount(String)}.
+ * <p>
+ * In a Spring test, keep it in a static field registered as an extension (closed after the class) and annotate the
+ * class with {@link FakeKsef} to point the application at it.
+ */
+public class FakeKsefServer implements AutoCloseable, AfterAllCallback {
+
+  public static final String DEFAULT_MOCK = "src/main/java/pl/pbs/edu/ksefprocessdemo/demo/mock.xml";
+  private static final String API = "/api/v2";
+  private static final String STORAGE = "/fake-storage/";
+
+  private final Settings settings;
+  private final FakeInvoiceDataset dataset;
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+  private final ObjectMapper objectMapper = new ObjectMapper()
+      .registerModule(new JavaTimeModule())
+      .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+  private final KeyPair keyPair;
+  private final String certificate;
+  private final Map<String, Instant> accessTokens = new ConcurrentHashMap<>();
+  private final Map<String, Instant> refreshTokens = new ConcurrentHashMap<>();
+  private final Map<String, Export> exports = new ConcurrentHashMap<>();
+  private final Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+  private final AtomicLong sequence = new AtomicLong();
+
+  private FakeKsefServer(Settings settings) throws IOException, GeneralSecurityException {
+    this.settings = settings;
+    this.dataset = new FakeInvoiceDataset(
+        settings.invoiceCount,
+        settings.from,
+        settings.to,
+        Files.readAllBytes(settings.templateXml)
+    );
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    this.keyPair = generator.generateKeyPair();
+    this.certificate = Base64.getEncoder().encodeToString(selfSignedCertificate(keyPair));
+
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.setExecutor(executor);
+    server.createContext("/", this::handle);
+  }
+
+  public static FakeKsefServer start(Settings settings) {
+    try {
+      FakeKsefServer fake = new FakeKsefServer(settings);
+      fake.server.start();
+      return fake;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Value for _ksef.url_.
+   */
+  public String baseUri() {
+    return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+  }
+
+  public FakeInvoiceDataset dataset() {
+    return dataset;
+  }
+
+  /**
+   * @param endpoint Path pattern, e.g. _POST /api/v2/invoices/exports_ or _GET /fake-storage/{part}_.
+   */
+  public long requestCount(String endpoint) {
+    AtomicLong count = requestCounts.get(endpoint);
+    return count == null ? 0 : count.get();
+  }
+
+  public Map<String, Long> requestCounts() {
+    Map<String, Long> counts = new TreeMap<>();
+    requestCounts.forEach((endpoint, count) -> counts.put(endpoint, count.get()));
+    return counts;
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+    exports.clear();
+  }
+
+  @Override
+  public void afterAll(ExtensionContext context) {
+    close();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      String method = exchange.getRequestMethod();
+      String path = exchange.getRequestURI().getPath();
+      Route route = route(method, path);
+      requestCounts.computeIfAbsent(route.endpoint(), endpoint -> new AtomicLong()).incrementAndGet();
+
+      if (route.faultsApply()) {
+        sleep(settings.latency);
+        double dice = ThreadLocalRandom.current().nextDouble();
+        if (dice < settings.throttleRate) {
+          exchange.getResponseHeaders().add("Retry-After", String.valueOf(settings.retryAfter.toSeconds()));
+          sendError(exchange, 429, "Too many requests (injected)");
+          return;
+        }
+        if (dice < settings.throttleRate + settings.errorRate) {
+          sendError(exchange, 500, "Internal error (injected)");
+          return;
+        }
+      }
+      try {
+        route.handler().handle(exchange);
+      } catch (RuntimeException e) {
+        sendError(exchange, 500, String.valueOf(e));
+      }
+    }
+  }
+
+  private Route route(String method, String path) {
+    String p = path.startsWith(API) ? path.substring(API.length()) : path;
+    if (method.equals("GET") && p.equals("/security/public-key-certificates"))
+      return new Route("GET " + API + p, false, this::publicKeyCertificates);
+    if (method.equals("POST") && p.equals("/auth/challenge"))
+      return new Route("POST " + API + p, true, this::challenge);
+    if (method.equals("POST") && p.equals("/auth/ksef-token"))
+      return new Route("POST " + API + p, true, this::ksefToken);
+    if (method.equals("POST") && p.equals("/auth/token/redeem"))
+      return new Route("POST " + API + p, true, this::redeem);
+    if (method.equals("POST") && p.equals("/auth/token/refresh"))
+      return new Route("POST " + API + p, true, this::refresh);
+    if (method.equals("GET") && p.startsWith("/auth/"))
+      return new Route("GET " + API + "/auth/{referenceNumber}", true, this::authStatus);
+    if (method.equals("POST") && p.equals("/invoices/exports"))
+      return new Route("POST " + API + p, true, authorized(this::initExport));
+    if (method.equals("GET") && p.startsWith("/invoices/exports/"))
+      return new Route("GET " + API + "/invoices/exports/{referenceNumber}", true, authorized(this::exportStatus));
+    if (method.equals("GET") && p.startsWith("/invoices/ksef/"))
+      return new Route("GET " + API + "/invoices/ksef/{ksefNumber}", true, authorized(this::invoice));
+    if (method.equals("POST") && p.equals("/invoices/query/metadata"))
+      return new Route("POST " + API + p, true, authorized(this::metadata));
+    if (method.equals("GET") && p.equals("/rate-limits"))
+      return new Route("GET " + API + p, false, authorized(this::rateLimits));
+    if (method.equals("GET") && path.startsWith(STORAGE))
+      return new Route("GET " + STORAGE + "{part}", true, this::part);
+    return new Route(method + " " + path, false, exchange -> sendError(exchange, 404, "No such endpoint"));
+  }
+
+  // --- security & auth
+
+  private void publicKeyCertificates(HttpExchange exchange) throws IOException {
+    OffsetDateTime now = now();
+    List<Map<String, Object>> certificates = List.of(
+        Map.of(
+            "certificate", certificate,
+            "validFrom", now.minusDays(1),
+            "validTo", now.plusYears(1),
+            "usage", List.of("KsefTokenEncryption", "SymmetricKeyEncryption")
+        )
+    );
+    sendJson(exchange, 200, certificates);
+  }
+
+  private void challenge(HttpExchange exchange) throws IOException {
+    sendJson(exchange, 200, Map.of("challenge", nextReference("CH"), "timestamp", Instant.now()));
+  }
+
+  private void ksefToken(HttpExchange exchange) throws IOException {
+    readJson(exchange);
+    String authenticationToken = UUID.randomUUID().toString();
+    sendJson(exchange, 202, Map.of(
+        "referenceNumber", nextReference("AU"),
+        "authenticationToken", token(authenticationToken, settings.accessTokenTtl)
+    ));
+  }
+
+  private void authStatus(HttpExchange exchange) throws IOException {
+    sendJson(exchange, 200, Map.of(
+        "startDate", now(),
+        "authenticationMethod", "Token",
+        "status", status(200, "Authentication completed")
+    ));
+  }
+
+  private void redeem(HttpExchange exchange) throws IOException {
+    String access = UUID.randomUUID().toString();
+    String refresh = UUID.randomUUID().toString();
+    accessTokens.put(access, Instant.now().plus(settings.accessTokenTtl));
+    refreshTokens.put(refresh, Instant.now().plus(settings.refreshTokenTtl));
+    sendJson(exchange, 200, Map.of(
+        "accessToken", token(access, settings.accessTokenTtl),
+        "refreshToken", token(refresh, settings.refreshTokenTtl)
+    ));
+  }
+
+  private void refresh(HttpExchange exchange) throws IOException {
+    Instant validUntil = refreshTokens.get(bearer(exchange));
+    if (validUntil == null || validUntil.isBefore(Instant.now())) {
+      sendError(exchange, 401, "Refresh token expired");
+      return;
+    }
+    String access = UUID.randomUUID().toString();
+    accessTokens.put(access, Instant.now().plus(settings.accessTokenTtl));
+    sendJson(exchange, 200, Map.of("accessToken", token(access, settings.accessTokenTtl)));
+  }
+
+  private Handler authorized(Handler handler) {
+    return exchange -> {
+      Instant validUntil = accessTokens.get(bearer(exchange));
+      if (validUntil == null || validUntil.isBefore(Instant.now())) {
+        sendError(exchange, 401, "Access token missing or expired");
+        return;
+      }
+      handler.handle(exchange);
+    };
+  }
+
+  /**
+   * Far above what a load test sends - the fake server never throttles on its own (faults do that).
+   */
+  private void rateLimits(HttpExchange exchange) throws IOException {
+    Map<String, Integer> generous = Map.of("perSecond", 1_000, "perMinute", 60_000, "perHour", 3_600_000);
+    sendJson(exchange, 200, Map.of(
+        "invoiceMetadata", generous,
+        "invoiceExport", generous,
+        "invoiceDownload", generous,
+        "otherRateLimit", generous
+    ));
+  }
+
+  // --- invoices
+
+  private void initExport(HttpExchange exchange) throws IOException {
+    JsonNode request = readJson(exchange);
+    byte[] key;
+    byte[] iv;
+    try {
+      key = decryptSymmetricKey(Base64.getDecoder().decode(request.at("/encryption/encryptedSymmetricKey").asText()));
+      iv = Base64.getDecoder().decode(request.at("/encryption/initializationVector").asText());
+    } catch (GeneralSecurityException | IllegalArgumentException e) {
+      sendError(exchange, 400, "Invalid encryption: " + e.getMessage());
+      return;
+    }
+
+    JsonNode dateRange = request.at("/filters/dateRange");
+    int first = dataset.firstAtOrAfter(parseDate(dateRange.get("from")));
+    OffsetDateTime to = parseDate(dateRange.get("to"));
+    int end = to == null ? dataset.count() : dataset.firstAfter(to);
+
+    String referenceNumber = nextReference("EX");
+    Export export = new Export(Instant.now().plus(settings.exportPreparation));
+    exports.put(referenceNumber, export);
+    Thread.ofVirtual().name("fake-ksef-export-" + referenceNumber).start(() -> export.build(
+        referenceNumber,
+        first,
+        Math.max(first, end),
+        key,
+        iv
+    ));
+    sendJson(exchange, 201, Map.of("referenceNumber", referenceNumber));
+  }
+
+  private void exportStatus(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    Export export = exports.get(path.substring(path.lastIndexOf('/') + 1));
+    if (export == null) {
+      sendError(exchange, 404, "No such export");
+      return;
+    }
+    if (export.failure != null) {
+      sendJson(exchange, 200, Map.of("status", status(500, "Export failed: " + export.failure)));
+      return;
+    }
+    if (export.description == null || Instant.now().isBefore(export.readyAt)) {
+      sendJson(exchange, 200, Map.of("status", status(100, "Export in progress")));
+      return;
+    }
+    sendJson(exchange, 200, Map.of(
+        "status", status(200, "Export completed"),
+        "completedDate", now(),
+        "packageExpirationDate", now().plusDays(1),
+        "package", export.description
+    ));
+  }
+
+  private void part(HttpExchange exchange) throws IOException {
+    // /fake-storage/{referenceNumber}/{ordinalNumber}
+    String[] segments = exchange.getRequestURI().getPath().substring(STORAGE.length()).split("/");
+    Export export = segments.length == 2 ? exports.get(segments[0]) : null;
+    int ordinal = segments.length == 2 ? Integer.parseInt(segments[1]) : 0;
+    byte[] part = export == null || export.parts == null ? null : export.parts.get(ordinal);
+    if (part == null) {
+      sendError(exchange, 404, "No such part");
+      return;
+    }
+    if (ordinal == settings.failingPart) {
+      sendError(exchange, 500, "Part " + ordinal + " unavailable (injected)");
+      return;
+    }
+    exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+    send(exchange, 200, part);
+  }
+
+  private void invoice(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    int index = dataset.indexOf(path.substring(path.lastIndexOf('/') + 1));
+    if (index < 0) {
+      sendError(exchange, 404, "No such invoice");
+      return;
+    }
+    exchange.getResponseHeaders().add("Content-Type", "application/xml");
+    send(exchange, 200, dataset.xml(index));
+  }
+
+  private void metadata(HttpExchange exchange) throws IOException {
+    JsonNode filters = readJson(exchange);
+    Map<String, String> query = query(exchange);
+    int pageOffset = Integer.parseInt(query.getOrDefault("pageOffset", "0"));
+    int pageSize = Integer.parseInt(query.getOrDefault("pageSize", "10"));
+    boolean descending = "Desc".equalsIgnoreCase(query.get("sortOrder"));
+
+    JsonNode dateRange = filters.at("/dateRange");
+    int first = dataset.firstAtOrAfter(parseDate(dateRange.get("from")));
+    OffsetDateTime to = parseDate(dateRange.get("to"));
+    int end = Math.max(first, to == null ? dataset.count() : dataset.firstAfter(to));
+
+    int total = end - first;
+    int reachable = Math.min(total, settings.maxMetadataResults);
+    int from = Math.min(reachable, pageOffset * pageSize);
+    int until = Math.min(reachable, from + pageSize);
+    List<Map<String, Object>> invoices = new ArrayList<>(until - from);
+    for (int i = from; i < until; i++) {
+      invoices.add(metadataOf(descending ? end - 1 - i : first + i));
+    }
+    sendJson(exchange, 200, Map.of(
+        "hasMore", until < reachable,
+        "isTruncated", total > reachable && until >= reachable,
+        "invoices", invoices
+    ));
+  }
+
+  private Map<String, Object> metadataOf(int index) {
+    OffsetDateTime storedAt = dataset.storedAt(index);
+    Map<String, Object> metadata = new LinkedHashMap<>();
+    metadata.put("ksefNumber", dataset.ksefId(index));
+    metadata.put("invoiceNumber", dataset.invoiceNumber(index));
+    metadata.put("issueDate", storedAt.toLocalDate());
+    metadata.put("invoicingDate", storedAt);
+    metadata.put("acquisitionDate", storedAt);
+    metadata.put("permanentStorageDate", storedAt);
+    metadata.put("seller", Map.of("nip", FakeInvoiceDataset.SELLER_NIP, "name", "Fake Seller"));
+    metadata.put("currency", "PLN");
+    return metadata;
+  }
+
+  private final class Export {
+    private final Instant readyAt;
+    private volatile Map<String, Object> description;
+    private volatile Map<Integer, byte[]> parts;
+    private volatile String failure;
+
+    private Export(Instant readyAt) {
+      this.readyAt = readyAt;
+    }
+
+    private void build(String referenceNumber, int first, int end, byte[] key, byte[] iv) {
+      try {
+        int last = Math.min(end, first + settings.maxInvoicesPerPackage);
+        boolean truncated = last < end;
+        byte[] zip = zip(first, last);
+
+        Map<Integer, byte[]> encrypted = new HashMap<>();
+        List<Map<String, Object>> partDescriptions = new ArrayList<>();
+        int ordinal = 1;
+        for (int offset = 0; offset < zip.length; offset += settings.partSize, ordinal++) {
+          byte[] plain = Arrays.copyOfRange(zip, offset, Math.min(zip.length, offset + settings.partSize));
+          byte[] part = aes(plain, key, iv);
+          encrypted.put(ordinal, part);
+          Map<String, Object> partDescription = new LinkedHashMap<>();
+          partDescription.put("ordinalNumber", ordinal);
+          partDescription.put("partName", referenceNumber + "-" + ordinal + ".zip.aes");
+          partDescription.put("method", "GET");
+          partDescription.put("url", baseUri() + STORAGE + referenceNumber + "/" + ordinal);
+          partDescription.put("partSize", plain.length);
+          partDescription.put("encryptedPartSize", part.length);
+          partDescription.put("expirationDate", now().plusDays(1));
+          partDescriptions.add(partDescription);
+        }
+
+        Map<String, Object> packageDescription = new LinkedHashMap<>();
+        packageDescription.put("invoiceCount", last - first);
+        packageDescription.put("size", zip.length);
+        packageDescription.put("parts", partDescriptions);
+        packageDescription.put("isTruncated", truncated);
+        if (last > first) {
+          OffsetDateTime lastDate = dataset.storedAt(last - 1);
+          packageDescription.put("lastIssueDate", lastDate);
+          packageDescription.put("lastInvoicingDate", lastDate);
+          packageDescription.put("lastPermanentStorageDate", lastDate);
+        }
+        parts = encrypted;
+        description = packageDescription;
+      } catch (IOException | GeneralSecurityException | RuntimeException e) {
+        failure = String.valueOf(e);
+      }
+    }
+
+    private byte[] zip(int first, int last) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try (ZipOutputStream zos = new ZipOutputStream(out)) {
+        for (int i = first; i < last; i++) {
+          zos.putNextEntry(new ZipEntry(dataset.ksefId(i) + ".xml"));
+          zos.write(dataset.xml(i));
+          zos.closeEntry();
+        }
+      }
+      return out.toByteArray();
+    }
+  }
+
+  // --- helpers
+
+  private byte[] decryptSymmetricKey(byte[] encryptedKey) throws GeneralSecurityException {
+    Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPPadding");
+    cipher.init(
+        Cipher.DECRYPT_MODE,
+        keyPair.getPrivate(),
+        new OAEPParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, PSource.PSpecified.DEFAULT)
+    );
+    return cipher.doFinal(encryptedKey);
+  }
+
+  private static byte[] aes(byte[] data, byte[] key, byte[] iv) throws GeneralSecurityException {
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+    return cipher.doFinal(data);
+  }
+
+  private static byte[] selfSignedCertificate(KeyPair keyPair) throws GeneralSecurityException {
+    X500Name subject = new X500Name("CN=Fake KSeF, O=ksefprocessdemo");
+    Instant now = Instant.now();
+    try {
+      return new JcaX509v3CertificateBuilder(
+          subject,
+          BigInteger.valueOf(now.toEpochMilli()),
+          Date.from(now.minus(Duration.ofDays(1))),
+          Date.from(now.plus(Duration.ofDays(365))),
+          subject,
+          keyPair.getPublic()
+      )
+          .build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate()))
+          .getEncoded();
+    } catch (OperatorCreationException | IOException e) {
+      throw new GeneralSecurityException(e);
+    }
+  }
+
+  private Map<String, Object> token(String token, Duration ttl) {
+    return Map.of("token", token, "validUntil", now().plus(ttl));
+  }
+
+  private static Map<String, Object> status(int code, String description) {
+    return Map.of("code", code, "description", description);
+  }
+
+  private String nextReference(String prefix) {
+    return String.format("%s-%s-%08d", prefix, now().toLocalDate(), sequence.incrementAndGet());
+  }
+
+  private OffsetDateTime parseDate(JsonNode node) {
+    return node == null || node.isNull() ? null : OffsetDateTime.parse(node.asText());
+  }
+
+  private static String bearer(HttpExchange exchange) {
+    String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+    return authorization == null ? "" : authorization.replaceFirst("(?i)^Bearer\\s+", "");
+  }
+
+  private static Map<String, String> query(HttpExchange exchange) {
+    Map<String, String> query = new HashMap<>();
+    String raw = exchange.getRequestURI().getQuery();
+    if (raw == null) return query;
+    for (String pair : raw.split("&")) {
+      int eq = pair.indexOf('=');
+      if (eq > 0) query.put(pair.substring(0, eq), pair.substring(eq + 1));
+    }
+    return query;
+  }
+
+  private JsonNode readJson(HttpExchange exchange) throws IOException {
+    try (InputStream in = exchange.getRequestBody()) {
+      byte[] body = in.readAllBytes();
+      return body.length == 0 ? objectMapper.createObjectNode() : objectMapper.readTree(body);
+    }
+  }
+
+  private void sendJson(HttpExchange exchange, int status, Object body) throws IOException {
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    send(exchange, status, objectMapper.writeValueAsBytes(body));
+  }
+
+  private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+    sendJson(exchange, status, Map.of("exception", Map.of(
+        "exceptionDetailList", List.of(Map.of("exceptionCode", status, "exceptionDescription", message))
+    )));
+  }
+
+  private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+    exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static void sleep(Duration duration) {
+    if (duration.isZero()) return;
+    try {
+      Thread.sleep(duration);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static OffsetDateTime now() {
+    return OffsetDateTime.now(ZoneOffset.UTC);
+  }
+
+  @FunctionalInterface
+  private interface Handler {
+    void handle(HttpExchange exchange) throws IOException;
+  }
+
+  private record Route(String endpoint, boolean faultsApply, Handler handler) {
+  }
+
+  /**
+   * Server behaviour. Defaults: 1000 invoices over the last 30 days, 1 MB parts, KSeF-like limits, no faults.
+   */
+  public static final class Settings {
+    private int invoiceCount = 1_000;
+    private OffsetDateTime from = now().minusDays(30);
+    private OffsetDateTime to = now().minusMinutes(5);
+    private Path templateXml = Path.of(DEFAULT_MOCK);
+    private int partSize = 1024 * 1024;
+    private int maxInvoicesPerPackage = 10_000;
+    private int maxMetadataResults = 10_000;
+    private Duration exportPreparation = Duration.ofMillis(200);
+    private Duration accessTokenTtl = Duration.ofMinutes(15);
+    private Duration refreshTokenTtl = Duration.ofDays(7);
+    private Duration latency = Duration.ZERO;
+    private double errorRate;
+    private double throttleRate;
+    private Duration retryAfter = Duration.ofSeconds(1);
+    private int failingPart;
+
+    public Settings invoiceCount(int invoiceCount) {
+      this.invoiceCount = invoiceCount;
+      return this;
+    }
+
+    public Settings between(OffsetDateTime from, OffsetDateTime to) {
+      this.from = from;
+      this.to = to;
+      return this;
+    }
+
+    public Settings templateXml(Path templateXml) {
+      this.templateXml = templateXml;
+      return this;
+    }
+
+    public Settings partSize(int partSize) {
+      this.partSize = partSize;
+      return this;
+    }
+
+    public Settings maxInvoicesPerPackage(int maxInvoicesPerPackage) {
+      this.maxInvoicesPerPackage = maxInvoicesPerPackage;
+      return this;
+    }
+
+    public Settings maxMetadataResults(int maxMetadataResults) {
+      this.maxMetadataResults = maxMetadataResults;
+      return this;
+    }
+
+    public Settings exportPreparation(Duration exportPreparation) {
+      this.exportPreparation = exportPreparation;
+      return this;
+    }
+
+    public Settings accessTokenTtl(Duration accessTokenTtl) {
+      this.accessTokenTtl = accessTokenTtl;
+      return this;
+    }
+
+    public Settings refreshTokenTtl(Duration refreshTokenTtl) {
+      this.refreshTokenTtl = refreshTokenTtl;
+      return this;
+    }
+
+    public Settings latency(Duration latency) {
+      this.latency = latency;
+      return this;
+    }
+
+    public Settings errorRate(double errorRate) {
+      this.errorRate = errorRate;
+      return this;
+    }
+
+    public Settings throttleRate(double throttleRate, Duration retryAfter) {
+      this.throttleRate = throttleRate;
+      this.retryAfter = retryAfter;
+      return this;
+    }
+
+    /**
+     * @param ordinalNumber Part (of every package) that is always answered with 500.
+     */
+    public Settings failingPart(int ordinalNumber) {
+      this.failingPart = ordinalNumber;
+      return this;
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package pl.pbs.edu.ksefprocessdemo.job;
+
+import com.jayway.jsonpath.JsonPath;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.webmvc.test.autoconfigure.AutoConfigureMockMvc;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import pl.pbs.edu.ksefprocessdemo.fake.FakeKsef;
+import pl.pbs.edu.ksefprocessdemo.fake.FakeKsefServer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Sync job API against FakeKsefServer: submit, progress, results and cancel.
+ */
+@SpringBootTest(properties = {
+    "ksef.archive.enabled=false",
+    "ksef.jobs.dir=build/test-jobs"
+})
+@AutoConfigureMockMvc
+@FakeKsef
+class SyncJobControllerTest {
+
+  private static final int INVOICES = 300;
+
+  @RegisterExtension
+  static final FakeKsefServer KSEF = FakeKsefServer.start(new FakeKsefServer.Settings()
+      .invoiceCount(INVOICES)
+  );
+
+  @Autowired
+  private MockMvc mockMvc;
+
+  @Test
+  void runsAJobAndStreamsItsInvoices() throws Exception {
+    String id = submit(KSEF.dataset().storedAt(0).minusMinutes(1), OffsetDateTime.now());
+    awaitStatus(id, "COMPLETED");
+
+    mockMvc
+        .perform(get("/api/sync-jobs/{id}", id))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.invoices").value(INVOICES))
+        .andExpect(jsonPath("$.finishedAt").isNotEmpty());
+    mockMvc
+        .perform(get("/api/sync-jobs"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$[?(@.id == '" + id + "')]").exists());
+
+    String results = results(id, 0);
+    Set<String> ksefIds = results
+        .lines()
+        .map(line -> JsonPath.<String>read(line, "$.ksefId"))
+        .collect(Collectors.toSet());
+    assertEquals(INVOICES, results.lines().count());
+    assertEquals(INVOICES, ksefIds.size());
+
+    // Continuing from an offset (in bytes) gives the rest of the file.
+    int firstLine = results.indexOf('\n') + 1;
+    long offset = results.substring(0, firstLine).getBytes(StandardCharsets.UTF_8).length;
+    assertEquals(results.substring(firstLine), results(id, offset));
+  }
+
+  @Test
+  void cancelOfAFinishedJobKeepsItsStatus() throws Exception {
+    String id = submit(KSEF.dataset().storedAt(0).minusMinutes(1), KSEF.dataset().storedAt(10));
+    awaitStatus(id, "COMPLETED");
+
+    mockMvc
+        .perform(delete("/api/sync-jobs/{id}", id))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.status").value("COMPLETED"));
+  }
+
+  @Test
+  void rejectsAnEmptyRange() throws Exception {
+    OffsetDateTime at = OffsetDateTime.now();
+    mockMvc
+        .perform(post("/api/sync-jobs").contentType(MediaType.APPLICATION_JSON).content(requestJson(at, at)))
+        .andExpect(status().isBadRequest());
+  }
+
+  @Test
+  void unknownJobIsNotFound() throws Exception {
+    mockMvc.perform(get("/api/sync-jobs/{id}", "missing")).andExpect(status().isNotFound());
+    mockMvc.perform(delete("/api/sync-jobs/{id}", "missing")).andExpect(status().isNotFound());
+    mockMvc.perform(get("/api/sync-jobs/{id}/invoices", "missing")).andExpect(status().isNotFound());
+  }
+
+  private String submit(OffsetDateTime from, OffsetDateTime to) throws Exception {
+    MvcResult submitted = mockMvc
+        .perform(post("/api/sync-jobs").contentType(MediaType.APPLICATION_JSON).content(requestJson(from, to)))
+        .andExpect(status().isAccepted())
+        .andExpect(jsonPath("$.status").exists())
+        .andReturn();
+    String id = JsonPath.read(submitted.getResponse().getContentAsString(), "$.id");
+    mockMvc
+        .perform(get("/api/sync-jobs/{id}", id))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.id").value(id));
+    String location = submitted.getResponse().getHeader("Location");
+    assertTrue(location != null && location.endsWith("/api/sync-jobs/" + id), () -> "Location: " + location);
+    return id;
+  }
+
+  private void awaitStatus(String id, String expected) {
+    assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+      while (true) {
+        String body = mockMvc.perform(get("/api/sync-jobs/{id}", id)).andReturn().getResponse().getContentAsString();
+        String current = JsonPath.read(body, "$.status");
+        if (current.equals(expected)) return;
+        assertFalse(current.equals("FAILED") || current.equals("CANCELLED"), () -> "Job ended: " + body);
+        Thread.sleep(50);
+      }
+    });
+  }
+
+  private String results(String id, long offset) throws Exception {
+    MvcResult streaming = mockMvc
+        .perform(get("/api/sync-jobs/{id}/invoices", id).param("offset", Long.toString(offset)))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+    return mockMvc
+        .perform(asyncDispatch(streaming))
+        .andExpect(status().isOk())
+        .andExpect(header().string("Content-Type", containsString("ndjson")))
+        .andReturn()
+        .getResponse()
+        .getContentAsString(StandardCharsets.UTF_8);
+  }
+
+  private static String requestJson(OffsetDateTime from, OffsetDateTime to) {
+    return "{\"from\":\"" + from + "\",\"to\":\"" + to + "\"}";
+  }
+}
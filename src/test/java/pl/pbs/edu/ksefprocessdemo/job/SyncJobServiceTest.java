@@ -0,0 +1,99 @@
+package pl.pbs.edu.ksefprocessdemo.job;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import pl.pbs.edu.ksefprocessdemo.fake.FakeKsef;
+import pl.pbs.edu.ksefprocessdemo.fake.FakeKsefServer;
+import pl.pbs.edu.ksefprocessdemo.service.ExportStatusPoller;
+
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Sync jobs whose exports take far longer than the test: a cancelled job must stop right away (no more windows,
+ * no more status polls) and a results stream must end at _ksef.jobs.stream-timeout_ while the job still runs.
+ */
+@SpringBootTest(properties = {
+    "ksef.archive.enabled=false",
+    "ksef.export.concurrency=1",
+    "ksef.export.window=P1D",
+    "ksef.jobs.dir=build/test-jobs",
+    "ksef.jobs.stream-timeout=PT1S"
+})
+@FakeKsef
+class SyncJobServiceTest {
+
+  private static final String EXPORTS = "POST /api/v2/invoices/exports";
+  private static final Duration WAIT = Duration.ofSeconds(10);
+
+  @RegisterExtension
+  static final FakeKsefServer KSEF = FakeKsefServer.start(new FakeKsefServer.Settings()
+      .invoiceCount(200)
+      .exportPreparation(Duration.ofMinutes(5))
+  );
+
+  @Autowired
+  private SyncJobService syncJobService;
+
+  @Autowired
+  private ExportStatusPoller exportStatusPoller;
+
+  @Test
+  void cancelStopsARunningJob() {
+    long exportsBefore = KSEF.requestCount(EXPORTS);
+    SyncJob job = syncJobService.submit(wholeDataset());
+    await(() -> job.getStatus() == SyncJob.Status.RUNNING && KSEF.requestCount(EXPORTS) > exportsBefore);
+
+    assertTrue(job.cancel());
+    await(job::isFinished);
+
+    assertEquals(SyncJob.Status.CANCELLED, job.getStatus());
+    assertEquals(0, exportStatusPoller.getTrackedCount());
+    // One window at a time (ksef.export.concurrency=1) - the others were never started.
+    assertEquals(exportsBefore + 1, KSEF.requestCount(EXPORTS));
+    assertFalse(job.cancel());
+  }
+
+  @Test
+  void resultStreamEndsAtTheTimeout() {
+    SyncJob job = syncJobService.submit(wholeDataset());
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertTimeoutPreemptively(WAIT, () -> syncJobService.streamResults(job, 0, out));
+
+      assertFalse(job.isFinished());
+      assertEquals(0, out.size());
+      assertEquals(job, syncJobService.find(job.getId()).orElseThrow());
+    } finally {
+      job.cancel();
+    }
+    await(job::isFinished);
+  }
+
+  private static SyncJobRequest wholeDataset() {
+    return new SyncJobRequest(KSEF.dataset().storedAt(0).minusMinutes(1), OffsetDateTime.now(), null, null, false);
+  }
+
+  private static void await(BooleanSupplier condition) {
+    long deadline = System.nanoTime() + WAIT.toNanos();
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() - deadline > 0) fail("Condition not met within " + WAIT);
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        fail("Interrupted");
+      }
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package pl.pbs.edu.ksefprocessdemo.model;
+
+import org.junit.jupiter.api.Test;
+import pl.pbs.edu.ksefprocessdemo.fake.FakeInvoiceDataset;
+import pl.pbs.edu.ksefprocessdemo.fake.FakeKsefServer;
+import pl.pbs.edu.ksefprocessdemo.generated.Faktura;
+import pl.pbs.edu.ksefprocessdemo.utils.KsefInvoiceHeaderReader;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompactInvoiceBatchTest {
+
+  private static final FakeInvoiceDataset DATASET = new FakeInvoiceDataset(
+      2_000,
+      OffsetDateTime.now().minusDays(30),
+      OffsetDateTime.now(),
+      read(Path.of(FakeKsefServer.DEFAULT_MOCK))
+  );
+
+  @Test
+  void roundTripsHeadersLinesAndXml() throws Exception {
+    CompactInvoiceBatch batch = batch(50, true);
+
+    assertEquals(50, batch.size());
+    for (int i = 0; i < batch.size(); i++) {
+      List<KsefInvoiceLine> expectedLines = new ArrayList<>();
+      KsefInvoiceHeader expected = KsefInvoiceHeaderReader.read(DATASET.xml(i), expectedLines::add);
+
+      assertEquals(DATASET.ksefId(i), batch.ksefId(i));
+      assertEquals(DATASET.invoiceNumber(i), batch.header(i).invoiceNumber());
+      assertEquals(normalized(expected), normalized(batch.header(i)));
+      assertEquals(expectedLines.stream().map(CompactInvoiceBatchTest::normalized).toList(),
+          batch.lines(i).stream().map(CompactInvoiceBatchTest::normalized).toList());
+      assertEquals(expectedLines.size(), batch.lineCount(i));
+
+      Faktura faktura = batch.toFaktura(i);
+      assertEquals(normalized(expected), normalized(new KsefInvoice(batch.ksefId(i), faktura).getHeader()));
+      assertEquals(normalized(expected), normalized(batch.toInvoice(i).getHeader()));
+    }
+  }
+
+  @Test
+  void amountsComeBackWithTheScaleOfTheirColumn() throws Exception {
+    CompactInvoiceBatch batch = batch(1, false);
+
+    assertEquals(new BigDecimal("1828.00"), batch.grossAmount(0));
+    assertEquals(new BigDecimal("8.39000000"), batch.lines(0).getFirst().grossUnitPrice());
+    assertEquals(new BigDecimal("200.000000"), batch.lines(0).getFirst().quantity());
+  }
+
+  @Test
+  void keepsKsefIdsThatCannotBePacked() throws Exception {
+    CompactInvoiceBatch batch = new CompactInvoiceBatch(false);
+    batch.add("not-a-ksef-id", DATASET.xml(0));
+    batch.add(DATASET.ksefId(1), DATASET.xml(1));
+
+    assertEquals("not-a-ksef-id", batch.ksefId(0));
+    assertEquals(DATASET.ksefId(1), batch.ksefId(1));
+  }
+
+  @Test
+  void sealedBatchIsReadableButRejectsAdds() throws Exception {
+    CompactInvoiceBatch batch = batch(10, true);
+    KsefInvoiceHeader header = batch.header(3);
+
+    assertTrue(batch.isSealed());
+    assertThrows(IllegalStateException.class, () -> batch.add(DATASET.ksefId(10), DATASET.xml(10)));
+    assertEquals(10, batch.size());
+    assertEquals(header, batch.header(3));
+    assertEquals(DATASET.invoiceNumber(9), new KsefInvoice("id", batch.toFaktura(9)).getHeader().invoiceNumber());
+  }
+
+  @Test
+  void withoutXmlOnlyTheProjectionIsKept() throws Exception {
+    CompactInvoiceBatch batch = batch(1, false);
+
+    assertFalse(batch.isKeepXml());
+    assertThrows(IllegalStateException.class, () -> batch.toFaktura(0));
+    assertThrows(IllegalStateException.class, () -> batch.toInvoice(0));
+    assertThrows(IndexOutOfBoundsException.class, () -> batch.header(1));
+  }
+
+  @Test
+  void dictionaryKeepsOnlyRepeatingValues() throws Exception {
+    CompactInvoiceBatch one = batch(1, false);
+    CompactInvoiceBatch all = batch(DATASET.count(), false);
+
+    // Invoices of the dataset differ only in their numbers, which are not dictionary-encoded.
+    assertTrue(one.dictionarySize() > 0);
+    assertEquals(one.dictionarySize(), all.dictionarySize());
+    assertEquals(DATASET.invoiceNumber(DATASET.count() - 1), all.header(DATASET.count() - 1).invoiceNumber());
+  }
+
+  private static CompactInvoiceBatch batch(int count, boolean keepXml) throws Exception {
+    CompactInvoiceBatch batch = new CompactInvoiceBatch(keepXml);
+    for (int i = 0; i < count; i++) {
+      batch.add(DATASET.ksefId(i), DATASET.xml(i));
+    }
+    batch.seal();
+    return batch;
+  }
+
+  private static KsefInvoiceHeader normalized(KsefInvoiceHeader header) {
+    return new KsefInvoiceHeader(header.invoiceNumber(), header.issueDate(), header.currency(),
+        stripped(header.grossAmount()), header.seller(), header.buyer(), header.thirdParties());
+  }
+
+  private static KsefInvoiceLine normalized(KsefInvoiceLine line) {
+    return new KsefInvoiceLine(line.number(), line.name(), line.unit(), stripped(line.quantity()),
+        stripped(line.netUnitPrice()), stripped(line.grossUnitPrice()), stripped(line.netValue()),
+        stripped(line.grossValue()), line.vatRate());
+  }
+
+  private static BigDecimal stripped(BigDecimal value) {
+    return value == null ? null : value.stripTrailingZeros();
+  }
+
+  private static byte[] read(Path file) {
+    try {
+      return Files.readAllBytes(file);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
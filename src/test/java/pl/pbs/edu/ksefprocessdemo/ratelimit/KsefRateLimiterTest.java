@@ -0,0 +1,157 @@
+package pl.pbs.edu.ksefprocessdemo.ratelimit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import pl.akmf.ksef.sdk.client.model.limit.GetRateLimitResponse;
+import pl.akmf.ksef.sdk.client.model.limit.InvoiceExportRateLimit;
+import pl.pbs.edu.ksefprocessdemo.config.props.RateLimitProps;
+import pl.pbs.edu.ksefprocessdemo.metrics.KsefMetrics;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KsefRateLimiterTest {
+
+  private static final String CONTEXT = "1234567890";
+  private static final Duration BLOCKED = Duration.ofMillis(200);
+  private static final Duration WAIT = Duration.ofSeconds(5);
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @AfterEach
+  void stopExecutor() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  void bucketRefillsAtTheServerRate() throws Exception {
+    KsefRateLimiter limiter = limiter(32);
+    limiter.update(exportLimits(10, 0, 0));
+
+    // A full bucket lets the first second's worth through at once.
+    for (int i = 0; i < 10; i++) {
+      limiter.acquire(CONTEXT, OperationClass.INVOICE_EXPORT).succeeded();
+    }
+    long start = System.nanoTime();
+    limiter.acquire(CONTEXT, OperationClass.INVOICE_EXPORT).succeeded();
+    long waited = System.nanoTime() - start;
+
+    // One token every 100 ms.
+    assertTrue(waited >= TimeUnit.MILLISECONDS.toNanos(50), () -> "Waited " + waited + " ns");
+    assertTrue(waited < TimeUnit.SECONDS.toNanos(1), () -> "Waited " + waited + " ns");
+    // Other operation classes and contexts have their own limits.
+    assertAcquiredWithin(acquireAsync(limiter, "another", OperationClass.INVOICE_EXPORT), BLOCKED);
+    assertAcquiredWithin(acquireAsync(limiter, CONTEXT, OperationClass.OTHER), BLOCKED);
+  }
+
+  @Test
+  void throttlingHalvesTheConcurrencyLimit() throws Exception {
+    KsefRateLimiter limiter = limiter(8);
+    List<KsefRateLimiter.Permit> permits = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      permits.add(limiter.acquire(CONTEXT, OperationClass.OTHER));
+    }
+    Future<KsefRateLimiter.Permit> ninth = acquireAsync(limiter, CONTEXT, OperationClass.OTHER);
+    assertBlocked(ninth);
+
+    permits.removeFirst().throttled(Duration.ZERO);
+    // 7 in flight, limit 4 - nobody gets in until 4 of them are back.
+    assertBlocked(ninth);
+    for (int i = 0; i < 3; i++) {
+      permits.removeFirst().failed();
+    }
+    assertBlocked(ninth);
+    permits.removeFirst().failed();
+    assertAcquiredWithin(ninth, WAIT);
+  }
+
+  @Test
+  void successfulCallsRaiseTheConcurrencyLimit() throws Exception {
+    KsefRateLimiter limiter = limiter(1);
+    // 1 -> 2 after one success.
+    limiter.acquire(CONTEXT, OperationClass.OTHER).succeeded();
+
+    limiter.acquire(CONTEXT, OperationClass.OTHER);
+    assertAcquiredWithin(acquireAsync(limiter, CONTEXT, OperationClass.OTHER), BLOCKED);
+  }
+
+  @Test
+  void throttlingPausesUntilRetryAfter() throws Exception {
+    KsefRateLimiter limiter = limiter(8);
+    limiter.acquire(CONTEXT, OperationClass.OTHER).throttled(Duration.ofMillis(300));
+
+    long start = System.nanoTime();
+    limiter.acquire(CONTEXT, OperationClass.OTHER).succeeded();
+    long waited = System.nanoTime() - start;
+
+    assertTrue(waited >= TimeUnit.MILLISECONDS.toNanos(250), () -> "Waited " + waited + " ns");
+    // The pause is per context.
+    assertAcquiredWithin(acquireAsync(limiter, "another", OperationClass.OTHER), BLOCKED);
+  }
+
+  @Test
+  void throttlingWithoutRetryAfterPausesForTheDefault() throws Exception {
+    KsefRateLimiter limiter = limiter(8);
+    limiter.acquire(CONTEXT, OperationClass.OTHER).throttled(null);
+
+    Future<KsefRateLimiter.Permit> next = acquireAsync(limiter, CONTEXT, OperationClass.OTHER);
+    assertBlocked(next);
+    assertAcquiredWithin(next, WAIT);
+  }
+
+  @Test
+  void permitIsClosedOnce() throws Exception {
+    KsefRateLimiter limiter = limiter(1);
+    KsefRateLimiter.Permit permit = limiter.acquire(CONTEXT, OperationClass.OTHER);
+    permit.failed();
+    permit.failed();
+
+    limiter.acquire(CONTEXT, OperationClass.OTHER);
+    // The second close did not free another slot.
+    assertBlocked(acquireAsync(limiter, CONTEXT, OperationClass.OTHER));
+  }
+
+  private static KsefRateLimiter limiter(int initialConcurrency) {
+    RateLimitProps props = new RateLimitProps();
+    ReflectionTestUtils.setField(props, "enabled", true);
+    ReflectionTestUtils.setField(props, "headroom", 1.0);
+    ReflectionTestUtils.setField(props, "initialConcurrency", initialConcurrency);
+    ReflectionTestUtils.setField(props, "minConcurrency", 1);
+    ReflectionTestUtils.setField(props, "maxConcurrency", 32);
+    ReflectionTestUtils.setField(props, "defaultRetryAfter", Duration.ofSeconds(1));
+    ReflectionTestUtils.setField(props, "maxRetries", 3);
+    return new KsefRateLimiter(props, KsefMetrics.noop());
+  }
+
+  private static GetRateLimitResponse exportLimits(int perSecond, int perMinute, int perHour) {
+    GetRateLimitResponse response = new GetRateLimitResponse();
+    response.setInvoiceExport(new InvoiceExportRateLimit(perSecond, perMinute, perHour));
+    return response;
+  }
+
+  private Future<KsefRateLimiter.Permit> acquireAsync(
+      KsefRateLimiter limiter,
+      String context,
+      OperationClass operationClass
+  ) {
+    return executor.submit(() -> limiter.acquire(context, operationClass));
+  }
+
+  private static void assertBlocked(Future<KsefRateLimiter.Permit> acquire) {
+    assertThrows(TimeoutException.class, () -> acquire.get(BLOCKED.toMillis(), TimeUnit.MILLISECONDS));
+  }
+
+  private static void assertAcquiredWithin(Future<KsefRateLimiter.Permit> acquire, Duration timeout) throws Exception {
+    acquire.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,148 @@
+package pl.pbs.edu.ksefprocessdemo.tenant;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import pl.pbs.edu.ksefprocessdemo.config.props.TenantProps;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TenantExportGateTest {
+
+  private static final Duration BLOCKED = Duration.ofMillis(200);
+  private static final Duration WAIT = Duration.ofSeconds(5);
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @AfterEach
+  void stopExecutor() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  void keepsThePerTenantAndTotalCaps() throws Exception {
+    TenantExportGate gate = gate(3, 2);
+    TenantExportGate.Permit a1 = gate.enter("A");
+    gate.enter("A");
+    Future<TenantExportGate.Permit> a3 = enterAsync(gate, "A");
+    assertBlocked(a3);
+
+    // A is at its cap, B still gets a slot.
+    TenantExportGate.Permit b1 = gate.enter("B");
+    assertEquals(3, gate.getRunning());
+    Future<TenantExportGate.Permit> c1 = enterAsync(gate, "C");
+    assertBlocked(c1);
+
+    // A was waiting before C.
+    a1.close();
+    assertEntered(a3);
+    assertBlocked(c1);
+
+    b1.close();
+    assertEntered(c1);
+    assertEquals(3, gate.getRunning());
+  }
+
+  @Test
+  void freedSlotsGoToTheWaitingTenantsInTurn() throws Exception {
+    TenantExportGate gate = gate(1, 3);
+    TenantExportGate.Permit running = gate.enter("A");
+    Future<TenantExportGate.Permit> a1 = enterAsync(gate, "A");
+    assertBlocked(a1);
+    Future<TenantExportGate.Permit> a2 = enterAsync(gate, "A");
+    assertBlocked(a2);
+    Future<TenantExportGate.Permit> b1 = enterAsync(gate, "B");
+    assertBlocked(b1);
+
+    running.close();
+    TenantExportGate.Permit first = assertEntered(a1);
+    assertBlocked(b1);
+
+    // B came after both waiters of A, but it is B's turn now.
+    first.close();
+    TenantExportGate.Permit second = assertEntered(b1);
+    assertBlocked(a2);
+
+    second.close();
+    assertEntered(a2).close();
+    assertEquals(0, gate.getRunning());
+  }
+
+  @Test
+  void interruptedWaiterLeavesTheQueue() throws Exception {
+    TenantExportGate gate = gate(1, 1);
+    TenantExportGate.Permit running = gate.enter("A");
+
+    Thread.currentThread().interrupt();
+    assertThrows(InterruptedException.class, () -> gate.enter("B"));
+    Thread.interrupted();
+
+    // B's abandoned place must not take the freed slot.
+    running.close();
+    assertEquals(0, gate.getRunning());
+    assertEntered(enterAsync(gate, "C"));
+    assertEquals(1, gate.getRunning());
+  }
+
+  @Test
+  void cancelledWaiterDoesNotKeepASlot() throws Exception {
+    TenantExportGate gate = gate(1, 1);
+    TenantExportGate.Permit running = gate.enter("A");
+    // Like a caller's try-with-resources - a permit that was granted after all is closed.
+    Future<?> b1 = executor.submit(() -> {
+      gate.enter("B").close();
+      return null;
+    });
+    assertThrows(TimeoutException.class, () -> b1.get(BLOCKED.toMillis(), TimeUnit.MILLISECONDS));
+
+    b1.cancel(true);
+    running.close();
+
+    // Either B left the queue, or it got the slot while being interrupted and gave it back.
+    long deadline = System.nanoTime() + WAIT.toNanos();
+    while (gate.getRunning() != 0 && System.nanoTime() - deadline < 0) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, gate.getRunning());
+    assertEntered(enterAsync(gate, "C"));
+  }
+
+  @Test
+  void permitIsReleasedOnce() throws Exception {
+    TenantExportGate gate = gate(1, 1);
+    TenantExportGate.Permit permit = gate.enter("A");
+    permit.close();
+    permit.close();
+
+    assertEquals(0, gate.getRunning());
+    gate.enter("A");
+    assertBlocked(enterAsync(gate, "B"));
+  }
+
+  private static TenantExportGate gate(int maxExports, int maxExportsPerTenant) {
+    TenantProps props = new TenantProps();
+    ReflectionTestUtils.setField(props, "maxExports", maxExports);
+    ReflectionTestUtils.setField(props, "maxExportsPerTenant", maxExportsPerTenant);
+    return new TenantExportGate(props);
+  }
+
+  private Future<TenantExportGate.Permit> enterAsync(TenantExportGate gate, String tenantKey) {
+    return executor.submit(() -> gate.enter(tenantKey));
+  }
+
+  private static void assertBlocked(Future<TenantExportGate.Permit> enter) {
+    assertThrows(TimeoutException.class, () -> enter.get(BLOCKED.toMillis(), TimeUnit.MILLISECONDS));
+  }
+
+  private static TenantExportGate.Permit assertEntered(Future<TenantExportGate.Permit> enter) throws Exception {
+    return enter.get(WAIT.toMillis(), TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,127 @@
+package pl.pbs.edu.ksefprocessdemo.utils;
+
+import org.junit.jupiter.api.Test;
+import pl.pbs.edu.ksefprocessdemo.fake.FakeKsefServer;
+import pl.pbs.edu.ksefprocessdemo.model.KsefInvoice;
+import pl.pbs.edu.ksefprocessdemo.model.KsefInvoiceHeader;
+import pl.pbs.edu.ksefprocessdemo.model.KsefInvoiceLine;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KsefInvoiceHeaderReaderTest {
+
+  private static final String MOCK = read(Path.of(FakeKsefServer.DEFAULT_MOCK));
+
+  @Test
+  void readsHeader() throws XMLStreamException {
+    KsefInvoiceHeader header = KsefInvoiceHeaderReader.read(bytes(MOCK));
+
+    assertEquals("420/P/10/2137", header.invoiceNumber());
+    assertEquals(LocalDate.of(2025, 11, 24), header.issueDate());
+    assertEquals("PLN", header.currency());
+    assertEquals(new BigDecimal("1828"), header.grossAmount());
+    assertEquals(new KsefInvoiceHeader.Party("4561232", "Company X"), header.seller());
+    assertEquals(new KsefInvoiceHeader.Party("4561233", "Company Y"), header.buyer());
+    assertTrue(header.thirdParties().isEmpty());
+  }
+
+  @Test
+  void readsThirdParties() throws XMLStreamException {
+    String xml = MOCK.replace("<Fa>", """
+        <Podmiot3><DaneIdentyfikacyjne><NIP>1111111111</NIP><Nazwa>Factor</Nazwa></DaneIdentyfikacyjne></Podmiot3>
+        <Podmiot3><DaneIdentyfikacyjne><Nazwa>No NIP</Nazwa></DaneIdentyfikacyjne></Podmiot3>
+        <Fa>""");
+
+    assertEquals(
+        List.of(new KsefInvoiceHeader.Party("1111111111", "Factor"), new KsefInvoiceHeader.Party(null, "No NIP")),
+        KsefInvoiceHeaderReader.read(bytes(xml)).thirdParties()
+    );
+  }
+
+  @Test
+  void stopsAtTotalUnlessLinesAreWanted() throws XMLStreamException {
+    // Not well-formed after P_15 - never reached when only the header is read.
+    String cut = MOCK.substring(0, MOCK.indexOf("<Adnotacje>")) + "<FaWiersz><broken";
+
+    assertEquals(new BigDecimal("1828"), KsefInvoiceHeaderReader.read(bytes(cut)).grossAmount());
+    assertThrows(XMLStreamException.class, () -> KsefInvoiceHeaderReader.read(bytes(cut), line -> {
+    }));
+  }
+
+  @Test
+  void readsLines() throws XMLStreamException {
+    List<KsefInvoiceLine> lines = new ArrayList<>();
+    KsefInvoiceHeader header = KsefInvoiceHeaderReader.read(bytes(MOCK), lines::add);
+
+    assertEquals("420/P/10/2137", header.invoiceNumber());
+    assertEquals(List.of(
+        new KsefInvoiceLine(1, "Painkillers", "1", new BigDecimal("200"), null, new BigDecimal("8.39"), null,
+            new BigDecimal("1678"), "23"),
+        new KsefInvoiceLine(2, "3D Printing - Ball", "1", new BigDecimal("10"), null, new BigDecimal("15"), null,
+            new BigDecimal("150"), "23")
+    ), lines);
+  }
+
+  @Test
+  void leavesUnparsableFieldsNull() throws XMLStreamException {
+    String xml = MOCK
+        .replace("<P_1>2025-11-24</P_1>", "<P_1>24.11.2025</P_1>")
+        .replace("<P_15>1828</P_15>", "<P_15>1 828,00</P_15>")
+        .replace("<P_8B>200</P_8B>", "<P_8B>two hundred</P_8B>");
+    List<KsefInvoiceLine> lines = new ArrayList<>();
+    KsefInvoiceHeader header = KsefInvoiceHeaderReader.read(bytes(xml), lines::add);
+
+    assertNull(header.issueDate());
+    assertNull(header.grossAmount());
+    assertEquals("420/P/10/2137", header.invoiceNumber());
+    assertEquals("Company X", header.seller().name());
+    assertNull(lines.getFirst().quantity());
+    assertEquals(new BigDecimal("8.39"), lines.getFirst().grossUnitPrice());
+  }
+
+  @Test
+  void missingFieldsAreNull() throws XMLStreamException {
+    String xml = MOCK.replace("<Podmiot2>", "<Podmiot2x>").replace("</Podmiot2>", "</Podmiot2x>");
+    KsefInvoiceHeader header = KsefInvoiceHeaderReader.read(bytes(xml));
+
+    assertNull(header.buyer());
+    assertEquals("Company X", header.seller().name());
+  }
+
+  @Test
+  void derivesHeaderOfBoundInvoice() throws Exception {
+    KsefInvoice invoice = new KsefInvoice("ksef-id", FakturaUnmarshaller.shared().unmarshal(bytes(MOCK)));
+
+    assertEquals(KsefInvoiceHeaderReader.read(bytes(MOCK)), invoice.getHeader());
+  }
+
+  @Test
+  void failsOnXmlThatIsNotWellFormed() {
+    assertThrows(XMLStreamException.class, () -> KsefInvoiceHeaderReader.read(bytes("<Faktura><Podmiot1>")));
+  }
+
+  private static byte[] bytes(String xml) {
+    return xml.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String read(Path file) {
+    try {
+      return Files.readString(file);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package pl.pbs.edu.ksefprocessdemo.validation;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.ls.LSInput;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class InvoiceSchemaTest {
+
+  private static final String IMPORT = "http://crd.gov.pl/xml/schematy/dziedzinowe/mf/2022/01/05/eD/DefinicjeTypy/"
+      + "StrukturyDanych_v10-0E.xsd";
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void importIsServedFromTheLocalCopy() throws Exception {
+    Path localCopy = Files.writeString(directory.resolve("StrukturyDanych_v10-0E.xsd"), "<schema/>");
+
+    LSInput input = new InvoiceSchema.LocalCopyResolver(directory)
+        .resolveResource(null, null, "public-id", IMPORT, "base");
+
+    assertNotNull(input);
+    assertEquals(localCopy.toUri().toString(), input.getSystemId());
+    assertEquals("public-id", input.getPublicId());
+    assertEquals("base", input.getBaseURI());
+  }
+
+  @Test
+  void otherImportsAreResolvedAsUsual() {
+    InvoiceSchema.LocalCopyResolver resolver = new InvoiceSchema.LocalCopyResolver(directory);
+
+    // No local copy.
+    assertNull(resolver.resolveResource(null, null, null, IMPORT, null));
+    // No path, or no file name in it.
+    assertNull(resolver.resolveResource(null, null, null, "urn:example:schema", null));
+    assertNull(resolver.resolveResource(null, null, null, "http://crd.gov.pl/", null));
+    assertNull(resolver.resolveResource(null, null, null, null, null));
+    assertNull(new InvoiceSchema.LocalCopyResolver(null).resolveResource(null, null, null, IMPORT, null));
+  }
+}
@@ -0,0 +1,122 @@
+package pl.pbs.edu.ksefprocessdemo.validation;
+
+import jakarta.xml.bind.JAXBException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import pl.pbs.edu.ksefprocessdemo.config.props.ValidationProps;
+import pl.pbs.edu.ksefprocessdemo.fake.FakeKsefServer;
+import pl.pbs.edu.ksefprocessdemo.metrics.KsefMetrics;
+import pl.pbs.edu.ksefprocessdemo.utils.FakturaUnmarshaller;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Against the real FA(3) schema - its imports are downloaded when it is compiled, as for _generateJaxb_.
+ */
+class InvoiceValidatorTest {
+
+  private static final int MAX_ERRORS = 2;
+  private static final String MOCK = readMock();
+  // Wrong currency code and issue date - at least four violations (enumeration / pattern and type of each).
+  private static final byte[] INVALID = MOCK
+      .replace("<KodWaluty>PLN</KodWaluty>", "<KodWaluty>XXX</KodWaluty>")
+      .replace("<P_1>2025-11-24</P_1>", "<P_1>yesterday</P_1>")
+      .getBytes(StandardCharsets.UTF_8);
+  private static final byte[] NOT_WELL_FORMED = MOCK
+      .substring(0, MOCK.lastIndexOf("</Faktura>"))
+      .getBytes(StandardCharsets.UTF_8);
+
+  private static final InvoiceValidator FUSED = validator(true);
+  private static final InvoiceValidator SEPARATE = validator(false);
+
+  @BeforeEach
+  void clearReports() {
+    FUSED.clearReport();
+    SEPARATE.clearReport();
+  }
+
+  @Test
+  void invalidInvoiceIsReportedWithItsErrorsCapped() {
+    long validated = SEPARATE.report().validated();
+    long invalid = SEPARATE.report().invalid();
+
+    SEPARATE.validate("invalid-1", INVALID);
+
+    InvoiceValidator.Report report = SEPARATE.report();
+    assertEquals(validated + 1, report.validated());
+    assertEquals(invalid + 1, report.invalid());
+    assertEquals(1, report.invalidInvoices().size());
+    InvoiceValidator.InvalidInvoice invoice = report.invalidInvoices().getFirst();
+    assertEquals("invalid-1", invoice.ksefId());
+    assertNotNull(invoice.validatedAt());
+    assertEquals(MAX_ERRORS, invoice.errors().size());
+  }
+
+  @Test
+  void fusedAndSeparatePassFindTheSameErrors() throws Exception {
+    assertNotNull(FUSED.bindValidated("invalid-2", INVALID, FakturaUnmarshaller.shared()));
+    SEPARATE.validate("invalid-2", INVALID);
+
+    List<String> fused = FUSED.report().invalidInvoices().getFirst().errors();
+    List<String> separate = SEPARATE.report().invalidInvoices().getFirst().errors();
+    assertEquals(MAX_ERRORS, fused.size());
+    // Positions come from different parsers (StAX vs SAX), the violations are the same.
+    assertEquals(withoutPositions(separate), withoutPositions(fused));
+  }
+
+  @Test
+  void notWellFormedInvoiceIsRecordedWithoutFailingTheValidation() {
+    long invalid = SEPARATE.report().invalid();
+
+    SEPARATE.validate("broken-1", NOT_WELL_FORMED);
+    SEPARATE.validate("invalid-3", INVALID);
+
+    InvoiceValidator.Report report = SEPARATE.report();
+    assertEquals(invalid + 2, report.invalid());
+    assertEquals(List.of("broken-1", "invalid-3"),
+        report.invalidInvoices().stream().map(InvoiceValidator.InvalidInvoice::ksefId).toList());
+    assertFalse(report.invalidInvoices().getFirst().errors().isEmpty());
+  }
+
+  @Test
+  void notWellFormedInvoiceIsRecordedBeforeTheFusedBindingFails() {
+    assertThrows(JAXBException.class,
+        () -> FUSED.bindValidated("broken-2", NOT_WELL_FORMED, FakturaUnmarshaller.shared()));
+
+    InvoiceValidator.InvalidInvoice invoice = FUSED.report().invalidInvoices().getFirst();
+    assertEquals("broken-2", invoice.ksefId());
+    assertEquals(1, invoice.errors().size());
+  }
+
+  private static InvoiceValidator validator(boolean fused) {
+    ValidationProps props = new ValidationProps();
+    ReflectionTestUtils.setField(props, "enabled", true);
+    ReflectionTestUtils.setField(props, "schema", "xsd/fa3_schema.xsd");
+    ReflectionTestUtils.setField(props, "fused", fused);
+    ReflectionTestUtils.setField(props, "maxErrors", MAX_ERRORS);
+    ReflectionTestUtils.setField(props, "reportSize", 10);
+    return new InvoiceValidator(props, KsefMetrics.noop());
+  }
+
+  private static List<String> withoutPositions(List<String> errors) {
+    return errors.stream().map(error -> error.replaceFirst("^\\d+:\\d+ ", "")).toList();
+  }
+
+  private static String readMock() {
+    try {
+      return Files.readString(Path.of(FakeKsefServer.DEFAULT_MOCK));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}